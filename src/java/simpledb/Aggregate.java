@@ -2,13 +2,14 @@ package simpledb;
 
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
 
     private OpIterator child;
     private final int afield;
@@ -17,8 +18,25 @@ public class Aggregate extends Operator {
     private Aggregator aggregator;
     private OpIterator it;
     private TupleDesc td;
+    private final int parallelism;
     private static final long serialVersionUID = 1L;
 
+    /** Number of child tuples handed to a partial aggregator at a time. */
+    static final int PARTITION_BATCH = 1024;
+
+    /**
+     * Number of batches that may wait for each partial aggregator; once its
+     * queue is full the reader blocks until the aggregator catches up.
+     */
+    static final int QUEUED_BATCHES = 4;
+
+    /** Threads running partial aggregators, shared by every Aggregate. */
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Aggregate worker");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Constructor.
      * 
@@ -38,7 +56,25 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-	// some code goes here
+        this(child, afield, gfield, aop, 1);
+    }
+
+    /**
+     * Constructor for a parallel aggregate. The child is still read by a
+     * single thread, but its tuples are partitioned across
+     * <code>parallelism</code> thread-local partial aggregators whose states
+     * are merged by a final aggregator once the child is exhausted. The
+     * results are the same as those of the serial aggregate.
+     *
+     * @param parallelism
+     *            The number of partial aggregators; 1 means serial
+     *            aggregation
+     * @see #Aggregate(OpIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int parallelism) {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
         this.child = child;
         this.afield = afield;
         this.gfield = gfield;
@@ -116,16 +152,160 @@ public class Aggregate extends Operator {
 	return aop.toString();
     }
 
+    /**
+     * @return the number of partial aggregators used by this operator
+     * */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the operator the partial aggregators compute for aop, so that
+     *         their outputs can be combined with {@link #mergeOp}
+     * */
+    static Aggregator.Op partialOp(Aggregator.Op aop) {
+        return aop == Aggregator.Op.AVG ? Aggregator.Op.SUM_COUNT : aop;
+    }
+
+    /**
+     * @return the operator that combines partial results computed with
+     *         {@link #partialOp} into the final result of aop
+     * */
+    static Aggregator.Op mergeOp(Aggregator.Op aop) {
+        switch (aop) {
+            case COUNT:
+                return Aggregator.Op.SUM;
+            case AVG:
+                return Aggregator.Op.SC_AVG;
+            default:
+                return aop;
+        }
+    }
+
+    private boolean isParallel() {
+        return parallelism > 1 && aop != Aggregator.Op.SUM_COUNT && aop != Aggregator.Op.SC_AVG;
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
         super.open();
         child.open();
-        while(this.child.hasNext())
-            aggregator.mergeTupleIntoGroup(child.next());
+        if(isParallel())
+            it = aggregateInParallel();
+        else if(TupleBatch.isColumnar(child)) {
+            TupleBatch batch;
+            while((batch = ((BatchOpIterator) child).nextBatch()) != null)
+                aggregator.mergeBatchIntoGroup(batch);
+        } else
+            while(this.child.hasNext())
+                aggregator.mergeTupleIntoGroup(child.next());
         it.open();
     }
 
+    /**
+     * Returns the aggregate results as a batch. The child is consumed in
+     * open(), through nextBatch() when it produces batches natively.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return TupleBatch.fill(this, it.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return false, as the results are copied into batches a tuple at a time
+     */
+    public boolean isColumnar() {
+        return false;
+    }
+
+    /**
+     * Feeds the child's tuples, in batches, to thread-local partial
+     * aggregators and merges their states into a single aggregator.
+     *
+     * @return an iterator over the merged aggregate results
+     */
+    private OpIterator aggregateInParallel() throws DbException, TransactionAbortedException {
+        Type gfieldtype = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+        boolean isString = child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE;
+        final Aggregator[] partials = new Aggregator[parallelism];
+        final List<BlockingQueue<List<Tuple>>> queues = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for(int i = 0; i < parallelism; i++) {
+                partials[i] = isString
+                        ? new StringAggregator(gfield, gfieldtype, afield, partialOp(aop))
+                        : new IntegerAggregator(gfield, gfieldtype, afield, partialOp(aop));
+                final Aggregator partial = partials[i];
+                final BlockingQueue<List<Tuple>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+                queues.add(queue);
+                futures.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        List<Tuple> batch;
+                        while(!(batch = queue.take()).isEmpty())
+                            for(Tuple t : batch)
+                                partial.mergeTupleIntoGroup(t);
+                        return null;
+                    }
+                }));
+            }
+
+            int next = 0;
+            List<Tuple> batch = new ArrayList<>(PARTITION_BATCH);
+            while(child.hasNext()) {
+                batch.add(child.next());
+                if(batch.size() == PARTITION_BATCH) {
+                    handOff(queues.get(next), futures.get(next), batch);
+                    next = (next + 1) % parallelism;
+                    batch = new ArrayList<>(PARTITION_BATCH);
+                }
+            }
+            if(!batch.isEmpty())
+                handOff(queues.get(next), futures.get(next), batch);
+            for(int i = 0; i < parallelism; i++)
+                handOff(queues.get(i), futures.get(i), Collections.<Tuple>emptyList());
+            for(Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted during parallel aggregation");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new DbException("parallel aggregation failed: " + e.getCause());
+        } finally {
+            for(Future<?> future : futures)
+                future.cancel(true);
+        }
+
+        // partial outputs are (groupVal, aggregateVal[, countVal])
+        int mergeGfield = gfieldtype == null ? Aggregator.NO_GROUPING : 0;
+        int mergeAfield = gfieldtype == null ? 0 : 1;
+        Aggregator merger = new IntegerAggregator(mergeGfield, gfieldtype, mergeAfield, mergeOp(aop));
+        for(Aggregator partial : partials) {
+            OpIterator pit = partial.iterator();
+            pit.open();
+            while(pit.hasNext())
+                merger.mergeTupleIntoGroup(pit.next());
+            pit.close();
+        }
+        return merger.iterator();
+    }
+
+    /**
+     * Queues a batch for a partial aggregator, waiting while its queue is
+     * full. Gives up if the aggregator has failed, as it will not take the
+     * batch.
+     */
+    private static void handOff(BlockingQueue<List<Tuple>> queue, Future<?> worker, List<Tuple> batch)
+            throws InterruptedException, ExecutionException {
+        while(!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+            if(worker.isDone()) {
+                worker.get();
+                throw new ExecutionException("partial aggregator stopped early", null);
+            }
+        }
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
@@ -76,6 +76,14 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every selected row of a batch into the aggregate, as if each
+     * row had been passed to mergeTupleIntoGroup.
+     *
+     * @param batch the batch containing aggregate and group-by columns
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Builds a BTreeFile bottom-up from tuples arriving in key order, used by
+ * {@link BTreeFile#bulkLoad(Iterator, double)}. Leaves are filled left to
+ * right and every level of internal pages is built in the same pass: when a
+ * page is finished its id and first key are handed to the level above, and
+ * the page is written once its parent (and, for a leaf, its right sibling)
+ * is known. Each level holds back at most two pages' worth of children, so
+ * the last two pages of a level can be evened out and never fall below
+ * minimum occupancy.
+ */
+class BTreeBulkLoader {
+
+	private final BTreeFile bf;
+	private final int tableid;
+	private final int keyField;
+	private final Type[] types;
+	private final Type keyType;
+	private final int npagebytes;
+
+	private final int leafMax;
+	private final int leafFill;
+	private final int internalMax;
+	private final int internalFill;
+
+	private int nextPageNo = 1;
+	private final ArrayList<Tuple> leafTuples = new ArrayList<Tuple>();
+	private BTreeLeafPage prevLeaf = null;
+	private Field prevLeafLastKey = null;
+	private Field lastKey = null;
+
+	// levels.get(i) holds the children waiting for a parent at height i + 1
+	private final ArrayList<Level> levels = new ArrayList<Level>();
+
+	// pages that are complete but wait for their parent pointer
+	private final HashMap<BTreePageId, BTreePage> unwritten = new HashMap<BTreePageId, BTreePage>();
+
+	/**
+	 * @param bf - the file to build; it must be in the catalog and empty on disk
+	 * @param fillFactor - how full to make each page, between 0 and 1. Pages are
+	 * never made less than half full
+	 */
+	BTreeBulkLoader(BTreeFile bf, double fillFactor) throws IOException {
+		this.bf = bf;
+		this.tableid = bf.getId();
+		this.keyField = bf.keyField();
+		TupleDesc td = bf.getTupleDesc();
+		this.types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		this.keyType = types[keyField];
+		this.npagebytes = BufferPool.getPageSize();
+
+		leafMax = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), keyField).getMaxTuples();
+		internalMax = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), keyField).getMaxEntries();
+		leafFill = Math.max(leafMax / 2, Math.min(leafMax, (int) (leafMax * fillFactor)));
+		internalFill = Math.max(internalMax / 2, Math.min(internalMax, (int) (internalMax * fillFactor)));
+	}
+
+	/**
+	 * Add the next tuple. Tuples must arrive in key order.
+	 * @throws DbException if t is out of order
+	 */
+	void add(Tuple t) throws DbException, IOException {
+		Field key = t.getField(keyField);
+		if(lastKey != null && key.compare(Predicate.Op.LESS_THAN, lastKey)) {
+			throw new DbException("bulk load input is not sorted on field " + keyField);
+		}
+		lastKey = key;
+		leafTuples.add(t);
+		// once two pages are held back, the first is sure not to be the last leaf
+		if(leafTuples.size() == 2 * leafFill + 1) {
+			writeLeaf(new ArrayList<Tuple>(leafTuples.subList(0, leafFill)));
+			leafTuples.subList(0, leafFill).clear();
+		}
+	}
+
+	/**
+	 * Write out the pages still held back, the root and the root pointer.
+	 */
+	void finish() throws DbException, IOException {
+		if(prevLeaf == null && leafTuples.isEmpty()) {
+			return;
+		}
+
+		// the last leaves, split in two if one page would be too full
+		int n = leafTuples.size();
+		if(n > leafFill && n >= 2 * (leafMax / 2)) {
+			writeLeaf(new ArrayList<Tuple>(leafTuples.subList(0, n / 2)));
+			writeLeaf(new ArrayList<Tuple>(leafTuples.subList(n / 2, n)));
+		}
+		else {
+			writeLeaf(new ArrayList<Tuple>(leafTuples));
+		}
+		leafTuples.clear();
+
+		// finish each level bottom-up until one is left with a single child
+		BTreePageId root = prevLeaf.getId();
+		for(int height = 0; height < levels.size(); height++) {
+			Level level = levels.get(height);
+			int m = level.children.size();
+			if(m == 1 && !level.flushed) {
+				root = level.children.get(0);
+				break;
+			}
+			int entries = m - 1;
+			if(entries > internalFill && entries - 1 >= 2 * (internalMax / 2)) {
+				int left = (entries - 1) / 2;
+				writeInternal(height, left + 1);
+			}
+			writeInternal(height, level.children.size());
+		}
+
+		BTreePage rootPage = unwritten.remove(root);
+		bf.writePage(rootPage);
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+				BTreeFileEncoder.convertToRootPtrPage(root.getPageNumber(), root.pgcateg(), 0)));
+	}
+
+	private void writeLeaf(ArrayList<Tuple> tuples) throws DbException, IOException {
+		BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF);
+		BTreeLeafPage page = new BTreeLeafPage(pid,
+				BTreeFileEncoder.convertToLeafPage(tuples, npagebytes, types.length, types, keyField), keyField);
+		if(prevLeaf != null) {
+			prevLeaf.setRightSiblingId(pid);
+			page.setLeftSiblingId(prevLeaf.getId());
+		}
+		prevLeaf = page;
+		unwritten.put(pid, page);
+		Field firstKey = tuples.get(0).getField(keyField);
+		addChild(0, pid, prevLeafLastKey == null ? firstKey : BTreeFile.separator(prevLeafLastKey, firstKey));
+		prevLeafLastKey = tuples.get(tuples.size() - 1).getField(keyField);
+	}
+
+	/**
+	 * Hand a finished page to the level above it.
+	 * @param height - the height of the parent level
+	 * @param pid - the finished page
+	 * @param firstKey - the key separating the finished page from the one before it
+	 */
+	private void addChild(int height, BTreePageId pid, Field firstKey) throws DbException, IOException {
+		while(levels.size() <= height) {
+			levels.add(new Level());
+		}
+		Level level = levels.get(height);
+		level.children.add(pid);
+		level.keys.add(firstKey);
+		if(level.children.size() == 2 * (internalFill + 1) + 1) {
+			writeInternal(height, internalFill + 1);
+		}
+	}
+
+	/**
+	 * Write the first count children of a level as an internal page, and hand
+	 * the page to the level above with the key separating it from the rest.
+	 */
+	private void writeInternal(int height, int count) throws DbException, IOException {
+		Level level = levels.get(height);
+		int childCategory = (height == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		for(int i = 1; i < count; i++) {
+			entries.add(new BTreeEntry(level.keys.get(i), level.children.get(i - 1), level.children.get(i)));
+		}
+		BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid,
+				BTreeFileEncoder.convertToInternalPage(entries, npagebytes, keyType, childCategory), keyField);
+
+		// the children now know their parent, so they can go to disk
+		for(int i = 0; i < count; i++) {
+			BTreePage child = unwritten.remove(level.children.get(i));
+			child.setParentId(pid);
+			bf.writePage(child);
+		}
+		Field firstKey = level.keys.get(0);
+		level.children.subList(0, count).clear();
+		level.keys.subList(0, count).clear();
+		level.flushed = true;
+
+		unwritten.put(pid, page);
+		addChild(height + 1, pid, firstKey);
+	}
+
+	/**
+	 * The children of the pages being built at one height of the tree, with
+	 * the key separating each child from the one before it
+	 */
+	private static class Level {
+		final ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		final ArrayList<Field> keys = new ArrayList<Field>();
+		boolean flushed = false;
+	}
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.Predicate.Op;
 
@@ -20,11 +22,56 @@ import simpledb.Predicate.Op;
  */
 public class BTreeFile implements DbFile {
 
+	/** How full {@link #bulkLoad(Iterator)} makes each page, leaving room for later inserts */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** How many leaves ahead of a scan are read in the background by default */
+	public static final int DEFAULT_PREFETCH_DEPTH = 4;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
 
+	/*
+	 * Short-term latches, held for the length of one operation on the tree.
+	 * BufferPool.getPage does not lock pages on behalf of transactions, so these
+	 * latches are what keeps concurrent readers and writers of the tree from
+	 * seeing each other's half-done changes; they do not isolate transactions
+	 * from one another. Writers hold treeLatch in shared mode while they descend the
+	 * tree, and operations that change the shape of the tree (splits, merges,
+	 * redistribution, a new root) hold it exclusively, so writers never see
+	 * internal pages change under them. Leaf pages are also latched
+	 * individually: writers take the latch of the leaf they modify exclusively,
+	 * and iterators take it shared while copying the leaf.
+	 * 
+	 * Readers hold treeLatch in shared mode while they descend to a leaf, so
+	 * they never follow a parent that a split has not updated yet; no page
+	 * carries a link that only lives in memory, and evicting any page is safe.
+	 * Once at a leaf, a reader holds only mergeLatch and the leaf's latch: a
+	 * leaf split moves the upper half of the leaf to a new page on its right
+	 * under the leaf's latch and links it in through the right sibling
+	 * pointer, which is stored on the page, so a reader walking the leaves
+	 * sees either the whole leaf or its lower half and the link. Steals and
+	 * merges move entries left, which a reader cannot recover from, so they
+	 * hold mergeLatch exclusively and readers hold it shared while they look
+	 * at a page. treeLatch is always taken before mergeLatch.
+	 * 
+	 * A leaf's latch is created the first time the leaf is latched and dropped
+	 * when the page is freed by setEmptyPage. Pages are only freed by merges,
+	 * which hold both treeLatch and mergeLatch exclusively, so no other thread
+	 * can hold or be about to take the latch being dropped.
+	 */
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock mergeLatch = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<BTreePageId, ReentrantReadWriteLock> leafLatches =
+			new ConcurrentHashMap<BTreePageId, ReentrantReadWriteLock>();
+
+	private volatile int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+	// the free page bits of the header pages, read from the file on first use
+	private volatile BTreeFreePageMap freePages = null;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -175,6 +222,27 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns how many leaves ahead of its current position an iterator over
+	 * this file asks the buffer pool to read in the background
+	 */
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Set how many leaves ahead of its current position an iterator over this
+	 * file asks the buffer pool to read in the background. Iterators opened
+	 * afterwards use the new depth
+	 * @param depth - the number of leaves to prefetch, or 0 to turn prefetching off
+	 */
+	public void setPrefetchDepth(int depth) {
+		if(depth < 0) {
+			throw new IllegalArgumentException("negative prefetch depth " + depth);
+		}
+		prefetchDepth = depth;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -193,27 +261,167 @@ public class BTreeFile implements DbFile {
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
-					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+						throws DbException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+
+		// descend into the left-most child whose subtree may contain f
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, page.findChild(f), perm, f);
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Convenience method to find a leaf page from the root when there is no
+	 * dirtypages HashMap. Used by the BTreeFile iterator. It waits for
+	 * concurrent splits, and reads the root pointer under the same latch, so
+	 * it never starts from a root that has just been replaced.
 	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
-					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
+			throws DbException, TransactionAbortedException {
+		treeLatch.readLock().lock();
+		mergeLatch.readLock().lock();
+		try {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+					tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+			return findLeafPage(tid, new HashMap<PageId, Page>(), rootPtr.getRootId(), perm, f);
+		}
+		finally {
+			mergeLatch.readLock().unlock();
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy the tuples and the right sibling pointer of a leaf page while holding
+	 * a shared latch on it, so that an iterator sees the page either before or
+	 * after a concurrent insert, delete or split, never in between. The iterator
+	 * holds no latch while it returns the copied tuples.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the id of the leaf page to read
+	 * @return the copied contents of the leaf page
+	 */
+	BTreeLeafSnapshot readLeaf(TransactionId tid, BTreePageId pid) 
+			throws DbException, TransactionAbortedException {
+		return readLeaf(tid, pid, null);
+	}
+
+	/**
+	 * Like {@link #readLeaf(TransactionId, BTreePageId)}, but only copy the tuples
+	 * whose key is greater than or equal to from, found by binary search.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the id of the leaf page to read
+	 * @param from - the smallest key to copy, or null to copy every tuple
+	 * @return the copied contents of the leaf page
+	 */
+	BTreeLeafSnapshot readLeaf(TransactionId tid, BTreePageId pid, Field from) 
+			throws DbException, TransactionAbortedException {
+		mergeLatch.readLock().lock();
+		ReentrantReadWriteLock latch = leafLatch(pid);
+		latch.readLock().lock();
+		try {
+			BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+			Iterator<Tuple> it = (from == null ? page.iterator() : page.iterator(from));
+			while(it.hasNext()) {
+				tuples.add(it.next());
+			}
+			return new BTreeLeafSnapshot(pid, tuples, page.getParentId(), page.getRightSiblingId());
+		}
+		finally {
+			latch.readLock().unlock();
+			mergeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read from an internal page the ids of the children to the right of one
+	 * of its children, in key order. This is a hint for prefetching: it gives
+	 * up and returns an empty list rather than wait for a writer that is
+	 * changing the shape of the tree, and the children may have moved by the
+	 * time the caller uses them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param parentId - the id of the internal page
+	 * @param childId - the child to start after
+	 * @param max - the largest number of ids to return
+	 * @param ipred - if not null, stop at the first child that cannot hold keys
+	 * satisfying this predicate
+	 * @return the ids of up to max children following childId
+	 */
+	ArrayList<BTreePageId> childrenAfter(TransactionId tid, BTreePageId parentId, BTreePageId childId, int max,
+			IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		// the keys of the child right of an entry start at the entry's key
+		Op bound = null;
+		Field boundField = null;
+		if(ipred != null && ipred.getUpperOp() != null) {
+			bound = ipred.getUpperOp();
+			boundField = ipred.getUpperField();
+		}
+		else if(ipred != null && (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ)) {
+			bound = ipred.getOp();
+			boundField = ipred.getField();
+		}
+		else if(ipred != null && ipred.getOp() == Op.EQUALS) {
+			bound = Op.LESS_THAN_OR_EQ;
+			boundField = ipred.getField();
+		}
+
+		ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		if(max <= 0 || parentId.pgcateg() != BTreePageId.INTERNAL || !treeLatch.readLock().tryLock()) {
+			return children;
+		}
+		try {
+			BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, parentId, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = parent.iterator();
+			boolean found = false;
+			while(it.hasNext() && children.size() < max) {
+				BTreeEntry e = it.next();
+				if(found || e.getLeftChild().equals(childId)) {
+					found = true;
+					if(bound != null && !e.getKey().compare(bound, boundField)) {
+						break;
+					}
+					children.add(e.getRightChild());
+				}
+				else if(e.getRightChild().equals(childId)) {
+					found = true;
+				}
+			}
+			return children;
+		}
+		finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of leaf pages that currently have a latch
+	 */
+	int numLeafLatches() {
+		return leafLatches.size();
+	}
+
+	private ReentrantReadWriteLock leafLatch(BTreePageId pid) {
+		ReentrantReadWriteLock latch = leafLatches.get(pid);
+		if(latch == null) {
+			latch = new ReentrantReadWriteLock();
+			ReentrantReadWriteLock prev = leafLatches.putIfAbsent(pid, latch);
+			if(prev != null) {
+				latch = prev;
+			}
+		}
+		return latch;
 	}
 
 	/**
@@ -239,18 +447,75 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
+		// Split the leaf page by adding a new page on the right of the existing
 		// page and moving half of the tuples to the new page.  Copy the middle key up
 		// into the parent page, and recursively split the parent as needed to accommodate
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moved = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moved.length - 1; i >= 0; i--) {
+			moved[i] = it.next();
+		}
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the old one. The caller holds the
+		// latch of the old page, so readers see it either before or after this
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(oldRightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy a key separating the two pages up into the parent
+		Field midKey = separator(page.reverseIterator().next().getField(keyField), moved[0].getField(keyField));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		publishRoot(tid, dirtypages, parent);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, midKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
+	/**
+	 * Choose the key to separate two neighbouring pages in their parent. Any key 
+	 * greater than the last key on the left page and no greater than the first key
+	 * on the right page will do, so for string keys this is the shortest prefix of
+	 * right that is greater than left: short keys fit many more entries on an 
+	 * internal page (see {@link BTreeInternalPage#isCompact(Type)}).
+	 * 
+	 * @param left - the last key on the left page
+	 * @param right - the first key on the right page
+	 * @return the separating key, which is right unless it is a string greater than left
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int common = 0;
+		while(common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common)) {
+			common++;
+		}
+		// r is longer than the common prefix, since it is greater than l
+		return new StringField(r.substring(0, common + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -276,16 +541,54 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
+		// Split the internal page by adding a new page on the right of the existing
 		// page and moving half of the entries to the new page.  Push the middle key up
 		// into the parent page, and recursively split the parent as needed to accommodate
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// the upper half of the entries, by the space they take, moves to the new
+		// page, and the entry just below them is pushed up
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		int half = page.getUsedEntrySpace() / 2;
+		int movedSpace = page.getEntrySize(entries.get(0).getKey());
+		int numMove = 1;
+		while(numMove < entries.size() - 1 && movedSpace + page.getEntrySize(entries.get(numMove).getKey()) <= half) {
+			movedSpace += page.getEntrySize(entries.get(numMove).getKey());
+			numMove++;
+		}
+		BTreeEntry[] moved = entries.subList(0, numMove).toArray(new BTreeEntry[numMove]);
+		BTreeEntry mid = entries.get(numMove);
+		Field midKey = mid.getKey();
+
+		// fill the new page before removing anything from the old page
+		for(int i = moved.length - 1; i >= 0; i--) {
+			BTreeEntry e = moved[i];
+			newPage.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+		}
+		for(BTreeEntry e : moved) {
+			page.deleteKeyAndRightChild(e);
+		}
+		page.deleteKeyAndRightChild(mid);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		publishRoot(tid, dirtypages, parent);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, midKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -315,11 +618,11 @@ public class BTreeFile implements DbFile {
 		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-			// update the root pointer
+			// the root pointer is only moved to the new root once it has an entry
+			// (see publishRoot), so that readers never find an empty root
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
-					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
-			rootPtr.setRootId(parent.getId());
+					BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+			BTreePageId prevRootId = rootPtr.getRootId();
 
 			// update the previous root to now point to this new root.
 			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
@@ -340,6 +643,30 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Point the root pointer at a new root page created by 
+	 * {@link #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)}, 
+	 * once its first entry has been inserted. Does nothing if page is not a new root.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the parent page an entry was just inserted into
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void publishRoot(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page) 
+			throws DbException, IOException, TransactionAbortedException {
+		if(page.getParentId().pgcateg() != BTreePageId.ROOT_PTR) {
+			return;
+		}
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		if(!page.getId().equals(rootPtr.getRootId())) {
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setRootId(page.getId());
+		}
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 * 
@@ -423,6 +750,68 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Bulk load an empty B+ tree with the default fill factor.
+	 * @see #bulkLoad(Iterator, double)
+	 */
+	public void bulkLoad(Iterator<Tuple> tuples) throws DbException, IOException {
+		bulkLoad(tuples, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Bulk load an empty B+ tree. The input is sorted on the key field with an 
+	 * external sort that holds about a buffer pool's worth of pages in memory, 
+	 * then the leaves are filled left to right and the internal pages built 
+	 * bottom-up in the same pass, writing each page to disk once. This avoids 
+	 * the root-to-leaf descent and the splits of inserting one tuple at a time.
+	 * <p>
+	 * The pages are written directly to the file, bypassing the buffer pool, so 
+	 * this must not run concurrently with transactions using the file.
+	 * 
+	 * @param tuples - the tuples to load, in any order
+	 * @param fillFactor - how full to make each page, greater than 0 and at most 1. 
+	 * Pages are never made less than half full
+	 * @throws DbException if the tree is not empty
+	 */
+	public void bulkLoad(Iterator<Tuple> tuples, double fillFactor) throws DbException, IOException {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
+		treeLatch.writeLock().lock();
+		try {
+			synchronized(this) {
+				if(f.length() > 0) {
+					BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) readPage(BTreeRootPtrPage.getId(tableid));
+					BTreePageId rootId = rootPtr.getRootId();
+					if(rootId != null && (rootId.pgcateg() != BTreePageId.LEAF 
+							|| ((BTreeLeafPage) readPage(rootId)).getNumTuples() > 0)) {
+						throw new DbException("bulk load into non-empty B+ tree " + f);
+					}
+				}
+				RandomAccessFile rf = new RandomAccessFile(f, "rw");
+				rf.setLength(0);
+				rf.close();
+			}
+			freePages = null;
+			leafLatches.clear();
+			// an empty tree has at most a root pointer and an empty root leaf cached
+			Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(tableid));
+			Database.getBufferPool().discardPage(new BTreePageId(tableid, 1, BTreePageId.LEAF));
+
+			int tuplesPerPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+			Iterator<Tuple> sorted = new ExternalSort(td, new BTreeFileEncoder.TupleComparator(keyField), 
+					BufferPool.DEFAULT_PAGES * tuplesPerPage).sort(tuples);
+			BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor);
+			while(sorted.hasNext()) {
+				loader.add(sorted.next());
+			}
+			loader.finish();
+		}
+		finally {
+			treeLatch.writeLock().unlock();
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -435,6 +824,40 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		// optimistic pass: descend with the tree latch shared and latch only the
+		// leaf. Most inserts fit in the leaf and never block each other unless
+		// they hit the same leaf
+		treeLatch.readLock().lock();
+		try {
+			ArrayList<Page> dirtyPagesArr = insertTuple(tid, t, false);
+			if(dirtyPagesArr != null) {
+				return dirtyPagesArr;
+			}
+		}
+		finally {
+			treeLatch.readLock().unlock();
+		}
+
+		// the leaf is full (or the tree is empty), so restart holding the whole
+		// tree exclusively while the leaf is split
+		treeLatch.writeLock().lock();
+		try {
+			return insertTuple(tid, t, true);
+		}
+		finally {
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * One pass of {@link #insertTuple(TransactionId, Tuple)}.
+	 * 
+	 * @param exclusive - whether the caller holds the tree latch exclusively. If not, 
+	 * the pass gives up as soon as it finds the tree would have to change shape
+	 * @return the dirtied pages, or null if the pass gave up
+	 */
+	private ArrayList<Page> insertTuple(TransactionId tid, Tuple t, boolean exclusive)
+			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
@@ -442,6 +865,9 @@ public class BTreeFile implements DbFile {
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+			if(!exclusive) {
+				return null;
+			}
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
@@ -450,17 +876,43 @@ public class BTreeFile implements DbFile {
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
 		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
-		}
+		// the leaf is latched even when the tree latch is held exclusively,
+		// since readers may be copying it while it is split
+		ReentrantReadWriteLock latch = leafLatch(leafPage.getId());
+		latch.writeLock().lock();
+		try {
+			if(leafPage.getNumEmptySlots() == 0) {
+				if(!exclusive) {
+					return null;
+				}
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+			return installDirtyPages(tid, dirtypages);
+		}
+		finally {
+			latch.writeLock().unlock();
+		}
+	}
 
+	/**
+	 * Put the pages dirtied by a pass back in the buffer pool before its latches are
+	 * released. Any of them may have been evicted while the pass was changing them, 
+	 * and readers would otherwise read the stale copy on disk until the buffer pool 
+	 * installs them after the operation returns.
+	 * 
+	 * @return the dirtied pages
+	 */
+	private ArrayList<Page> installDirtyPages(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException {
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
+		Database.getBufferPool().updateBufferPool(dirtyPagesArr, tid);
 		return dirtyPagesArr;
 	}
+
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
@@ -576,11 +1028,25 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
+		// Move some of the tuples from the sibling to the page so
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
+		int numMove = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		Tuple[] moved = new Tuple[numMove];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < numMove; i++) {
+			moved[i] = it.next();
+		}
+		for(Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(separator(left.reverseIterator().next().getField(keyField), 
+				right.iterator().next().getField(keyField)));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -656,11 +1122,27 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
+		// Move some of the entries from the left sibling to the page so
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		// move entries until the two pages take about the same space
+		int pageSpace = page.getUsedEntrySpace();
+		int siblingSpace = leftSibling.getUsedEntrySpace();
+		Field parentKey = parentEntry.getKey();
+		while(pageSpace < siblingSpace && leftSibling.getNumEntries() > 1) {
+			// rotate the last entry of the left sibling through the parent
+			BTreeEntry e = leftSibling.reverseIterator().next();
+			BTreePageId firstChild = page.iterator().next().getLeftChild();
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(parentKey, e.getRightChild(), firstChild));
+			pageSpace += page.getEntrySize(parentKey);
+			siblingSpace -= leftSibling.getEntrySize(e.getKey());
+			parentKey = e.getKey();
+		}
+		parentEntry.setKey(parentKey);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1166,27 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
+		// Move some of the entries from the right sibling to the page so
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		// move entries until the two pages take about the same space
+		int pageSpace = page.getUsedEntrySpace();
+		int siblingSpace = rightSibling.getUsedEntrySpace();
+		Field parentKey = parentEntry.getKey();
+		while(pageSpace < siblingSpace && rightSibling.getNumEntries() > 1) {
+			// rotate the first entry of the right sibling through the parent
+			BTreeEntry e = rightSibling.iterator().next();
+			BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(parentKey, lastChild, e.getLeftChild()));
+			pageSpace += page.getEntrySize(parentKey);
+			siblingSpace -= rightSibling.getEntrySize(e.getKey());
+			parentKey = e.getKey();
+		}
+		parentEntry.setKey(parentKey);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -713,12 +1211,29 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
 		// Move all the tuples from the right page to the left page, update
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightRightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightRightId);
+		if(rightRightId != null) {
+			BTreeLeafPage rightRight = (BTreeLeafPage) getPage(tid, dirtypages, rightRightId, Permissions.READ_WRITE);
+			rightRight.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -745,13 +1260,28 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
+		// Move all the entries from the right page to the left page, update
 		// the parent pointers of the children in the entries that were moved, 
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// pull the parent key down between the two halves
+		BTreePageId lastChild = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, moved.get(0).getLeftChild()));
+		for(BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -781,7 +1311,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -814,25 +1344,76 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
+		// optimistic pass: only the leaf is latched, see insertTuple
+		treeLatch.readLock().lock();
+		try {
+			ArrayList<Page> dirtyPagesArr = deleteTuple(tid, t, false);
+			if(dirtyPagesArr != null) {
+				return dirtyPagesArr;
+			}
+		}
+		finally {
+			treeLatch.readLock().unlock();
+		}
+
+		// the leaf would drop below minimum occupancy, so restart holding the
+		// whole tree exclusively while it steals or merges, and keep readers
+		// out while entries move left
+		treeLatch.writeLock().lock();
+		mergeLatch.writeLock().lock();
+		try {
+			return deleteTuple(tid, t, true);
+		}
+		finally {
+			mergeLatch.writeLock().unlock();
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * One pass of {@link #deleteTuple(TransactionId, Tuple)}.
+	 * 
+	 * @param exclusive - whether the caller holds the tree latch exclusively. If not, 
+	 * the pass gives up as soon as it finds the tree would have to change shape
+	 * @return the dirtied pages, or null if the pass gave up
+	 */
+	private ArrayList<Page> deleteTuple(TransactionId tid, Tuple t, boolean exclusive) 
+			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		ReentrantReadWriteLock latch = exclusive ? null : leafLatch(pageId);
+		if(latch != null) {
+			latch.writeLock().lock();
 		}
+		try {
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+
+			// if the page would fall below minimum occupancy, get some tuples from its 
+			// siblings or merge with one of the siblings. A root leaf has no siblings 
+			// and may hold any number of tuples
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			boolean underflow = page.getNumEmptySlots() + 1 > maxEmptySlots
+					&& page.getParentId().pgcateg() != BTreePageId.ROOT_PTR;
+			if(underflow && !exclusive) {
+				return null;
+			}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+			page.deleteTuple(t);
+			if(underflow) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+			return installDirtyPages(tid, dirtypages);
+		}
+		finally {
+			if(latch != null) {
+				latch.writeLock().unlock();
+			}
+		}
 	}
 
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -862,6 +1443,30 @@ public class BTreeFile implements DbFile {
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Get the in-memory copy of the header pages of this file, reading the
+	 * chain of header pages the first time it is needed.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the free page map of this file
+	 */
+	private BTreeFreePageMap freePageMap(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeFreePageMap map = freePages;
+		if(map == null) {
+			map = new BTreeFreePageMap();
+			BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+			while(headerId != null) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+				map.addHeader(headerPage);
+				headerId = headerPage.getNextPageId();
+			}
+			freePages = map;
+		}
+		return map;
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -876,47 +1481,30 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
-
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
+		// the free page map says which header page to look at, and the header
+		// page has the final say
+		BTreeFreePageMap map = freePageMap(tid, dirtypages);
+		int emptyPageNo;
+		while((emptyPageNo = map.nextFree()) != -1) {
+			map.setFree(emptyPageNo, false);
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, 
+					map.headerFor(emptyPageNo), Permissions.READ_WRITE);
+			int emptySlot = emptyPageNo % BTreeHeaderPage.getNumSlots();
+			if(!headerPage.isSlotUsed(emptySlot)) {
 				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				return emptyPageNo;
 			}
 		}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+		// there are no header pages or there are no free slots
+		synchronized(this) {
+			// create the new page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			bw.write(emptyData);
+			bw.close();
+			emptyPageNo = numPages();
 		}
 
 		return emptyPageNo; 
@@ -993,54 +1581,48 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
+		// the page may have been a leaf; forget its latch, see leafLatches
+		leafLatches.remove(new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF));
 
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
-		}
+		BTreeFreePageMap map = freePageMap(tid, dirtypages);
+		int headerIndex = emptyPageNo / BTreeHeaderPage.getNumSlots();
 
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
-		}
+		// add header pages until there is one with a slot for emptyPageNo. The
+		// first is linked from the BTreeRootPtrPage, the others from the page before
+		while(map.numHeaders() <= headerIndex) {
+			Page prevPage;
+			BTreePageId next;
+			if(map.numHeaders() == 0) {
+				prevPage = getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				next = ((BTreeRootPtrPage) prevPage).getHeaderId();
+			}
+			else {
+				prevPage = getPage(tid, dirtypages, map.getHeaderId(map.numHeaders() - 1), Permissions.READ_WRITE);
+				next = ((BTreeHeaderPage) prevPage).getNextPageId();
+			}
+			if(next != null) {
+				// another copy of this file added header pages; start over from disk
+				freePages = null;
+				map = freePageMap(tid, dirtypages);
+				continue;
+			}
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
 			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
+			if(prevPage instanceof BTreeRootPtrPage) {
+				((BTreeRootPtrPage) prevPage).setHeaderId(headerPage.getId());
+			}
+			else {
+				headerPage.setPrevPageId(((BTreeHeaderPage) prevPage).getId());
+				((BTreeHeaderPage) prevPage).setNextPageId(headerPage.getId());
+			}
+			map.addHeader(headerPage);
 		}
 
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, 
+				map.getHeaderId(headerIndex), Permissions.READ_WRITE);
+		headerPage.markSlotUsed(emptyPageNo % BTreeHeaderPage.getNumSlots(), false);
+		map.setFree(emptyPageNo, true);
 	}
 
 	/**
@@ -1077,7 +1659,8 @@ public class BTreeFile implements DbFile {
 class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafSnapshot curp = null;
+	BTreeLeafPrefetcher prefetcher = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1096,11 +1679,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		BTreeLeafPage leaf = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		curp = f.readLeaf(tid, leaf.getId());
 		it = curp.iterator();
+		prefetcher = new BTreeLeafPrefetcher(f, tid, null);
+		prefetcher.advance(curp);
 	}
 
 	/**
@@ -1120,8 +1703,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = f.readLeaf(tid, nextp);
+				prefetcher.advance(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1148,6 +1731,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		prefetcher = null;
 	}
 }
 
@@ -1158,7 +1742,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafSnapshot curp = null;
+	BTreeLeafPrefetcher prefetcher = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1181,17 +1766,20 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			// skip the smaller keys of the first leaf by binary search
+			leaf = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			curp = f.readLeaf(tid, leaf.getId(), ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			leaf = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			curp = f.readLeaf(tid, leaf.getId());
 		}
 		it = curp.iterator();
+		prefetcher = new BTreeLeafPrefetcher(f, tid, ipred);
+		prefetcher.advance(curp);
 	}
 
 	/**
@@ -1208,6 +1796,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			while (it.hasNext()) {
 				Tuple t = it.next();
 				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					if(ipred.getUpperOp() != null 
+							&& !t.getField(f.keyField()).compare(ipred.getUpperOp(), ipred.getUpperField())) {
+						// past the upper end of a range
+						return null;
+					}
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1229,8 +1822,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = f.readLeaf(tid, nextp);
+				prefetcher.advance(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +1845,93 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		prefetcher = null;
+	}
+}
+
+/**
+ * The tuples and right sibling pointer of a leaf page, copied under a shared
+ * latch by {@link BTreeFile#readLeaf(TransactionId, BTreePageId)}
+ */
+class BTreeLeafSnapshot {
+
+	private final BTreePageId pid;
+	private final ArrayList<Tuple> tuples;
+	private final BTreePageId parentId;
+	private final BTreePageId rightSiblingId;
+
+	BTreeLeafSnapshot(BTreePageId pid, ArrayList<Tuple> tuples, BTreePageId parentId, BTreePageId rightSiblingId) {
+		this.pid = pid;
+		this.tuples = tuples;
+		this.parentId = parentId;
+		this.rightSiblingId = rightSiblingId;
+	}
+
+	BTreePageId getId() {
+		return pid;
+	}
+
+	BTreePageId getParentId() {
+		return parentId;
+	}
+
+	Iterator<Tuple> iterator() {
+		return tuples.iterator();
+	}
+
+	BTreePageId getRightSiblingId() {
+		return rightSiblingId;
+	}
+}
+
+/**
+ * Keeps the buffer pool reading the leaves ahead of a left-to-right scan.
+ * The leaves to come are taken from the parent of the current leaf, so a scan
+ * does not have to wait for each leaf before it learns the next one; at the
+ * last child of a parent the pipeline restarts from the next parent.
+ */
+class BTreeLeafPrefetcher {
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final int depth;
+	private final IndexPredicate ipred;
+
+	// leaves already handed to the buffer pool that the scan has not reached
+	private final LinkedList<BTreePageId> ahead = new LinkedList<BTreePageId>();
+
+	/**
+	 * @param ipred - the predicate of the scan, whose upper bound if any also
+	 * bounds the prefetching, or null for a scan of the whole file
+	 */
+	BTreeLeafPrefetcher(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.depth = f.getPrefetchDepth();
+		this.ipred = ipred;
+	}
+
+	/**
+	 * The scan has moved to leaf; prefetch until depth leaves past it are on their way
+	 */
+	void advance(BTreeLeafSnapshot leaf) throws DbException, TransactionAbortedException {
+		if(depth == 0) {
+			return;
+		}
+		// forget the leaves up to this one. If a split put a leaf the scan did
+		// not expect here, the list is stale and starts over from this leaf
+		while(!ahead.isEmpty()) {
+			if(ahead.removeFirst().equals(leaf.getId())) {
+				break;
+			}
+		}
+		if(ahead.size() > depth / 2) {
+			return;
+		}
+		BTreePageId last = ahead.isEmpty() ? leaf.getId() : ahead.getLast();
+		for(BTreePageId pid : f.childrenAfter(tid, leaf.getParentId(), last, depth - ahead.size(), ipred)) {
+			Database.getBufferPool().prefetchPage(pid);
+			ahead.add(pid);
+		}
 	}
 }
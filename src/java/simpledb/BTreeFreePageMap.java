@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * An in-memory copy of the free-page bits of a BTreeFile's header pages, with
+ * the ids of the header pages in chain order, so that allocating or freeing a
+ * page goes straight to the header page holding its slot instead of walking
+ * the chain. Page number n has slot n % {@link BTreeHeaderPage#getNumSlots()}
+ * of the (n / getNumSlots())-th header page.
+ * <p>
+ * The header pages stay the authority: BTreeFile checks a slot on its header
+ * page before handing out the page, so a stale bit costs a retry, not a
+ * corrupt tree.
+ */
+class BTreeFreePageMap {
+
+	private final ArrayList<BTreePageId> headerIds = new ArrayList<BTreePageId>();
+	private final BitSet free = new BitSet();
+
+	// no page number below the cursor is free
+	private int cursor = 0;
+
+	/**
+	 * Add the next header page of the chain and the free slots it records
+	 */
+	synchronized void addHeader(BTreeHeaderPage page) {
+		int base = headerIds.size() * BTreeHeaderPage.getNumSlots();
+		headerIds.add(page.getId());
+		for(int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+			if(!page.isSlotUsed(i)) {
+				setFree(base + i, true);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of header pages in the chain
+	 */
+	synchronized int numHeaders() {
+		return headerIds.size();
+	}
+
+	/**
+	 * @return the id of the i-th header page of the chain
+	 */
+	synchronized BTreePageId getHeaderId(int i) {
+		return headerIds.get(i);
+	}
+
+	/**
+	 * @return the id of the header page holding the slot of a page
+	 */
+	synchronized BTreePageId headerFor(int pageNo) {
+		return headerIds.get(pageNo / BTreeHeaderPage.getNumSlots());
+	}
+
+	/**
+	 * @return the lowest free page number, or -1 if no page is free
+	 */
+	synchronized int nextFree() {
+		int pageNo = free.nextSetBit(cursor);
+		cursor = (pageNo == -1 ? free.length() : pageNo);
+		return pageNo;
+	}
+
+	/**
+	 * Record that a page was freed or allocated
+	 */
+	synchronized void setFree(int pageNo, boolean isFree) {
+		if(isFree) {
+			free.set(pageNo);
+			cursor = Math.min(cursor, pageNo);
+		}
+		else {
+			free.clear(pageNo);
+		}
+	}
+}
@@ -18,9 +18,16 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean compact;
 	
 	private int childCategory; // either leaf or internal
 
+	// a compact key is a length byte followed by the characters of the key
+	private static final int COMPACT_KEY_OVERHEAD = 1;
+
+	// sorted keys of the used entry slots, built on demand and dropped when a slot changes
+	private volatile BTreeKeyIndex keyIndex = null;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +44,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 		}
 	}
 	
@@ -57,6 +64,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages keyed on a string field are laid out compactly instead (see 
+	 * {@link #isCompact(Type)}): after the header, each used slot in order holds
+	 * its child pointer and, except for slot 0, its key as a length byte followed
+	 * by the characters of the key. Such a page has a slot for every entry that 
+	 * could fit if all keys were empty, and is full when there is no room left for
+	 * an entry with the longest possible key.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,7 +80,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.compact = isCompact(td.getFieldType(keyField));
+		this.numSlots = compact ? getNumCompactSlots(BufferPool.getPageSize()) : getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -87,6 +101,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(compact) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +119,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -115,6 +135,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		if(compact) {
+			// one entry's worth of space is held back, so that two pages below
+			// minimum occupancy can always be merged however long their keys are
+			return getCompactEntrySpace(BufferPool.getPageSize()) / getMaxEntrySize() - 1;
+		}
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -129,13 +154,79 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		return getHeaderSize(numSlots);
+	}
+
+	private static int getHeaderSize(int slotsPerPage) {
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return whether internal pages keyed on the given type store their keys 
+	 * compactly, in only as many bytes as each key needs. String keys are, since 
+	 * most are far shorter than {@link Type#STRING_LEN}
+	 */
+	static boolean isCompact(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the number of slots, including slot 0, on a compact page: as many 
+	 * as there could be entries if every key were empty
+	 */
+	static int getNumCompactSlots(int pageSize) {
+		int bitsPerEntryIncludingHeader = (COMPACT_KEY_OVERHEAD + INDEX_SIZE) * 8 + 1;
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		return (pageSize * 8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
+
+	/**
+	 * @return the number of bytes on a compact page for the entries in slots 1 
+	 * and up, after the parent pointer, child category, header and slot 0
+	 */
+	static int getCompactEntrySpace(int pageSize) {
+		return pageSize - 2 * INDEX_SIZE - 1 - getHeaderSize(getNumCompactSlots(pageSize));
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key takes on a compact page
+	 */
+	static int getCompactEntrySize(Field key) {
+		return INDEX_SIZE + COMPACT_KEY_OVERHEAD + ((StringField) key).getValue().length();
+	}
+
+	/**
+	 * @return the number of bytes an entry (key and child pointer) with the given 
+	 * key takes on this page
+	 */
+	public int getEntrySize(Field key) {
+		if(compact)
+			return getCompactEntrySize(key);
+		return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	private int getMaxEntrySize() {
+		if(compact)
+			return INDEX_SIZE + COMPACT_KEY_OVERHEAD + Type.STRING_LEN;
+		return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes taken by the entries (keys and right child 
+	 * pointers) on this page
+	 */
+	public int getUsedEntrySpace() {
+		int used = 0;
+		for(int i = 1; i < numSlots; i++) {
+			if(isSlotUsed(i))
+				used += getEntrySize(keys[i]);
+		}
+		return used;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -161,6 +252,80 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Read the child pointers and keys of the used slots of a compact page.
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		for(int i = 0; i < numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if(i > 0) {
+				byte[] bs = new byte[dis.readUnsignedByte()];
+				dis.readFully(bs);
+				keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+			}
+		}
+	}
+
+	/**
+	 * Serialize a compact page: the parent pointer, child page category and 
+	 * header, then the child pointer and (except in slot 0) the key of each used
+	 * slot, padded with zeroes to the page size.
+	 * @see #BTreeInternalPage
+	 */
+	static byte[] getCompactPageData(int parent, int childCategory, byte[] header, 
+			Field[] keys, int[] children, int pageSize) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(parent);
+		dos.writeByte((byte) childCategory);
+		dos.write(header);
+		for(int i = 0; i < children.length; i++) {
+			if(!isSlotUsed(header, i))
+				continue;
+			dos.writeInt(children[i]);
+			if(i > 0) {
+				String s = ((StringField) keys[i]).getValue();
+				dos.writeByte(s.length());
+				dos.writeBytes(s);
+			}
+		}
+		dos.write(new byte[pageSize - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Convert entries, sorted by key, to a compact page with no parent. Entries 
+	 * beyond those that fit are left out.
+	 * @see BTreeFileEncoder#convertToInternalPage
+	 */
+	static byte[] createCompactPageData(List<BTreeEntry> entries, int pageSize, int childCategory) 
+			throws IOException {
+		int nslots = getNumCompactSlots(pageSize);
+		byte[] header = new byte[getHeaderSize(nslots)];
+		Field[] keys = new Field[nslots];
+		int[] children = new int[nslots];
+		int space = getCompactEntrySpace(pageSize);
+		if(!entries.isEmpty()) {
+			children[0] = entries.get(0).getLeftChild().getPageNumber();
+			header[0] |= 1;
+		}
+		for(int i = 1; i <= entries.size() && i < nslots; i++) {
+			BTreeEntry e = entries.get(i - 1);
+			space -= getCompactEntrySize(e.getKey());
+			if(space < 0)
+				break;
+			keys[i] = e.getKey();
+			children[i] = e.getRightChild().getPageNumber();
+			header[i / 8] |= 1 << (i % 8);
+		}
+		return getCompactPageData(0, childCategory, header, keys, children, pageSize);
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -231,7 +396,15 @@ public class BTreeInternalPage extends BTreePage {
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
+		if(compact) {
+			try {
+				return getCompactPageData(parent, childCategory, header, keys, children, BufferPool.getPageSize());
+			} catch (IOException e) {
+				// this really shouldn't happen
+				throw new RuntimeException(e);
+			}
+		}
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -344,7 +517,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param deleteRightChild - if true, delete the right child. Otherwise
 	 *        delete the left child
 	 */
-	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+	private synchronized void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -401,7 +574,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty, or updating this key would put the entry out of 
 	 *         order on the page
 	 */
-	public void updateEntry(BTreeEntry e) throws DbException {
+	public synchronized void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -409,6 +582,9 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if(compact && getUsedEntrySpace() - getEntrySize(keys[rid.getTupleNumber()]) + getEntrySize(e.getKey()) 
+				> getCompactEntrySpace(BufferPool.getPageSize()))
+			throw new DbException("no room on page to update entry with key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -431,6 +607,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		keyIndex = null;
 	}
 
 	/**
@@ -440,7 +617,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
-	public void insertEntry(BTreeEntry e) throws DbException {
+	public synchronized void insertEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -457,7 +634,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -478,6 +655,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
+		if (compact && getUsedEntrySpace() + getEntrySize(e.getKey()) > getCompactEntrySpace(BufferPool.getPageSize()))
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
@@ -558,15 +737,67 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Choose where a search for the left-most leaf possibly containing f goes 
+	 * next: the left child of the first entry whose key is greater than or equal
+	 * to f, or the right child of the last entry. The choice is made atomically
+	 * with respect to concurrent updates of this page.
+	 * @param f - the key to search for, or null for the left-most leaf
+	 * @return the id of the page to visit next
+	 * @throws DbException if the page has no entries
+	 */
+	public synchronized BTreePageId findChild(Field f) throws DbException {
+		BTreeKeyIndex index = keyIndex();
+		if(index.size() == 0) {
+			throw new DbException("internal page " + pid + " has no entries");
+		}
+		int pos = (f == null ? 0 : index.search(f, false));
+		if(pos == index.size()) {
+			// right child of the last entry
+			return new BTreePageId(pid.getTableId(), children[index.slot(pos - 1)], childCategory);
+		}
+		// left child of the entry at pos, which is the child of the used slot before it
+		int childSlot = (pos == 0 ? 0 : index.slot(pos - 1));
+		return new BTreePageId(pid.getTableId(), children[childSlot], childCategory);
+	}
+
+	/**
+	 * @return the keys of this page in sorted order, building them if needed
+	 */
+	private BTreeKeyIndex keyIndex() {
+		BTreeKeyIndex index = keyIndex;
+		if(index == null) {
+			int n = getNumEntries();
+			int[] slots = new int[n];
+			Field[] entryKeys = new Field[n];
+			int pos = 0;
+			// slot 0 holds only a child pointer
+			for(int i = 1; i < numSlots && pos < n; i++) {
+				if(isSlotUsed(i)) {
+					slots[pos] = i;
+					entryKeys[pos++] = keys[i];
+				}
+			}
+			index = new BTreeKeyIndex(slots, entryKeys);
+			keyIndex = index;
+		}
+		return index;
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compact page, this is 
+	 * the number of entries with the longest possible key that still fit.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -575,6 +806,10 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if(compact) {
+			int free = getCompactEntrySpace(BufferPool.getPageSize()) - getMaxEntrySize() - getUsedEntrySpace();
+			return free <= 0 ? 0 : Math.min(cnt, free / getMaxEntrySize());
+		}
 		return cnt;
 	}
 
@@ -582,11 +817,22 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
+		return isSlotUsed(header, i);
+	}
+
+	private static boolean isSlotUsed(byte[] header, int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 		return (header[headerbyte] & (1 << headerbit)) != 0;
 	}
 
+	/**
+	 * @return the number of slots on this page, including slot 0
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Abstraction to fill or clear a slot on this page.
 	 */
@@ -595,6 +841,7 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		keyIndex = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -741,7 +988,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -761,8 +1008,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is in the closest used slot before this one,
+				// which need not be the one right before it
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					prev--;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
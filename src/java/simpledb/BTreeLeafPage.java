@@ -13,12 +13,17 @@ import java.io.*;
  */
 public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
-	private final Tuple tuples[];
+	private final Tuple tuples[]; // null for used slots not decoded from data yet
+	private final byte data[]; // the page as read from disk
+	private final int keyOffset; // offset of the key field within a tuple
 	private final int numSlots;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// sorted keys of the used slots, built on demand and dropped when a slot changes
+	private volatile BTreeKeyIndex keyIndex = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -93,14 +98,13 @@ public class BTreeLeafPage extends BTreePage {
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		// the records themselves are decoded from data when first used
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
+		this.data = data.clone();
+		int offset = 0;
+		for (int j=0; j<keyField; j++)
+			offset += td.getFieldType(j).getLen();
+		this.keyOffset = offset;
 		dis.close();
 
 		setBeforeImage();
@@ -154,26 +158,24 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/**
-	 * Read tuples from the source file.
+	 * @return the offset of the record in slot i within data
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
-			return null;
-		}
+	private int slotOffset(int i) {
+		return 3 * INDEX_SIZE + header.length + i * td.getSize();
+	}
+
+	/**
+	 * @return the tuple in used slot i, decoding it from data if needed
+	 */
+	private Tuple tuple(int i) throws NoSuchElementException {
+		Tuple t = tuples[i];
+		if (t != null)
+			return t;
 
 		// read fields in the tuple
-		Tuple t = new Tuple(td);
-		RecordId rid = new RecordId(pid, slotId);
-		t.setRecordId(rid);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, slotOffset(i), td.getSize()));
+		t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, i));
 		try {
 			for (int j=0; j<td.numFields(); j++) {
 				Field f = td.getFieldType(j).parse(dis);
@@ -183,10 +185,34 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
 		}
-
+		tuples[i] = t;
 		return t;
 	}
 
+	/**
+	 * @return the key of the tuple in used slot i, without decoding the rest of it
+	 */
+	private Field key(int i) {
+		if (tuples[i] != null)
+			return tuples[i].getField(keyField);
+		try {
+			return td.getFieldType(keyField).parse(new DataInputStream(
+					new ByteArrayInputStream(data, slotOffset(i) + keyOffset, td.getFieldType(keyField).getLen())));
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+	}
+
+	/**
+	 * @return the key of the tuple in used slot i, whose key field is an int
+	 */
+	private int intKey(int i) {
+		if (tuples[i] != null)
+			return ((IntField) tuples[i].getField(keyField)).getValue();
+		return CompiledPredicate.readInt(data, slotOffset(i) + keyOffset);
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -249,7 +275,15 @@ public class BTreeLeafPage extends BTreePage {
 				continue;
 			}
 
-			// non-empty slot
+			// non-empty slot, copied as read if it was never decoded
+			if (tuples[i] == null) {
+				try {
+					dos.write(data, slotOffset(i), td.getSize());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
 			for (int j=0; j<td.numFields(); j++) {
 				Field f = tuples[i].getField(j);
 				try {
@@ -322,15 +356,18 @@ public class BTreeLeafPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
+		// find the last key less than or equal to the key being inserted; the
+		// key index is left to the read paths since this insert invalidates it
 		Field key = t.getField(keyField);
+		boolean ints = key instanceof IntField;
+		int v = ints ? ((IntField) key).getValue() : 0;
+		int lessOrEqKey = -1;
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(ints ? intKey(i) <= v : key(i).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
-					break;	
+					break;
 			}
 		}
 
@@ -366,7 +403,7 @@ public class BTreeLeafPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
+			tuples[to] = tuple(from);
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
 		}
@@ -469,6 +506,7 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		keyIndex = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -483,6 +521,62 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @return an iterator over the tuples on this page whose key is greater than or 
+	 * equal to f, found by binary search (calling remove on this iterator throws an 
+	 * UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		final BTreeKeyIndex index = keyIndex();
+		final int start = index.search(f, false);
+		return new Iterator<Tuple>() {
+			int pos = start;
+
+			public boolean hasNext() {
+				return pos < index.size();
+			}
+
+			public Tuple next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return tuple(index.slot(pos++));
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return the keys of this page in sorted order, reading them from the page
+	 * bytes if needed
+	 */
+	private BTreeKeyIndex keyIndex() {
+		BTreeKeyIndex index = keyIndex;
+		if(index == null) {
+			int n = getNumTuples();
+			int[] slots = new int[n];
+			boolean ints = td.getFieldType(keyField) == Type.INT_TYPE;
+			int[] intKeys = ints ? new int[n] : null;
+			Field[] keys = ints ? null : new Field[n];
+			int pos = 0;
+			for(int i = 0; i < numSlots && pos < n; i++) {
+				if(isSlotUsed(i)) {
+					slots[pos] = i;
+					if(ints)
+						intKeys[pos++] = intKey(i);
+					else
+						keys[pos++] = key(i);
+				}
+			}
+			index = ints ? new BTreeKeyIndex(slots, intKeys) : new BTreeKeyIndex(slots, keys);
+			keyIndex = index;
+		}
+		return index;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -509,7 +603,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+			return tuple(i);
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
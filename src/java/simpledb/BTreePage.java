@@ -140,3 +140,89 @@ public abstract class BTreePage implements Page {
 
 }
 
+
+/**
+ * The keys of the used slots of a B+ tree page in sorted order, copied into a
+ * compact array so that a lookup is a binary search rather than a walk over 
+ * every slot. Integer keys are also unboxed into an int array. Pages build an
+ * index lazily and drop it whenever their slots change.
+ */
+class BTreeKeyIndex {
+	private final int[] slots;
+	private final Field[] keys; // null if built from int keys only
+	private final int[] intKeys; // null unless every key is an IntField
+
+	/**
+	 * @param slots - the used slots of the page, in key order
+	 * @param keys - the key in each of those slots
+	 */
+	BTreeKeyIndex(int[] slots, Field[] keys) {
+		this.slots = slots;
+		this.keys = keys;
+		int[] ints = new int[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			if(!(keys[i] instanceof IntField)) {
+				ints = null;
+				break;
+			}
+			ints[i] = ((IntField) keys[i]).getValue();
+		}
+		this.intKeys = ints;
+	}
+
+	/**
+	 * @param slots - the used slots of the page, in key order
+	 * @param intKeys - the int key in each of those slots
+	 */
+	BTreeKeyIndex(int[] slots, int[] intKeys) {
+		this.slots = slots;
+		this.keys = null;
+		this.intKeys = intKeys;
+	}
+
+	/**
+	 * @return the number of keys in the index
+	 */
+	int size() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the slot holding the key at position pos
+	 */
+	int slot(int pos) {
+		return slots[pos];
+	}
+
+	/**
+	 * Binary search for f.
+	 * @param f - the key to search for
+	 * @param strict - whether to skip keys equal to f
+	 * @return the first position whose key is greater than or equal to f (greater
+	 * than f if strict), or size() if there is none
+	 */
+	int search(Field f, boolean strict) {
+		int lo = 0;
+		int hi = slots.length;
+		if(intKeys != null && (keys == null || f instanceof IntField)) {
+			int v = ((IntField) f).getValue();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(intKeys[mid] < v || (strict && intKeys[mid] == v))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+		Predicate.Op op = strict ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid].compare(op, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,28 @@
+package simpledb;
+
+/**
+ * BatchOpIterator is implemented by operators that can also produce their
+ * output a {@link TupleBatch} at a time. The batch path is opt-in: the row
+ * methods of {@link OpIterator} keep working, and
+ * {@link TupleBatch#nextBatch(OpIterator)} adapts any row iterator to the
+ * batch path. A caller should consume an open iterator either through
+ * next() or through nextBatch(), not both.
+ */
+public interface BatchOpIterator extends OpIterator {
+  /**
+   * Returns the next batch of tuples. Only the rows in the batch's selection
+   * vector are part of the output, and the selection may be empty.
+   *
+   * @return the next batch, or null if there are no more tuples
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+  /**
+   * @return true if nextBatch() fills its batches without building a Tuple
+   *         per row, so that reading batches is cheaper than reading rows.
+   *         Operators that only narrow or project the batches of their child
+   *         are columnar exactly when their child is.
+   */
+  public boolean isColumnar();
+}
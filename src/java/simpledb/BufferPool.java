@@ -1,10 +1,14 @@
 package simpledb;
 
-import javax.xml.crypto.Data;
 import java.io.*;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -28,9 +32,27 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Threads reading pages for {@link #prefetchPage} */
+    private static final int PREFETCH_THREADS = 2;
+
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BufferPool prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private final int numPages;
     private  ConcurrentHashMap<PageId, Page> pageStore;
     private DoubleLinkedList<PageId> pageDoubleLinkedList;
+    // prefetches that have been started and not yet finished; replacing or
+    // discarding a page removes its prefetch, whose copy may then be stale
+    private final ConcurrentHashMap<PageId, Prefetch> prefetching =
+            new ConcurrentHashMap<PageId, Prefetch>();
+    // the pages each thread has read in, and found cached, in getPage
+    private static final ThreadLocal<long[]> pageCounts = ThreadLocal.withInitial(() -> new long[2]);
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -76,16 +98,97 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if(!pageStore.containsKey(pid)) {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            if(numPages <= pageDoubleLinkedList.getSize())
-                evictPage();
-            pageStore.put(pid, page);
-            pageDoubleLinkedList.addLast(pid);
+        // a page on its way in from a prefetch is not read a second time
+        Prefetch prefetch = prefetching.get(pid);
+        if(prefetch != null) {
+            try {
+                prefetch.done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // read it below
+            }
+        }
+        // the LRU list is not thread-safe, and two threads missing on the
+        // same page must not both read it in
+        synchronized (this) {
+            if(!pageStore.containsKey(pid)) {
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                Page page = dbFile.readPage(pid);
+                if(numPages <= pageDoubleLinkedList.getSize())
+                    evictPage();
+                pageStore.put(pid, page);
+                pageDoubleLinkedList.addLast(pid);
+                pageCounts.get()[0]++;
+            } else {
+                pageCounts.get()[1]++;
+            }
+            pageDoubleLinkedList.findAndMove(pid);
+            return pageStore.get(pid);
+        }
+    }
+
+    /**
+     * @return the number of pages the current thread has had getPage read
+     *   from disk, in any buffer pool
+     */
+    static long pagesRead() {
+        return pageCounts.get()[0];
+    }
+
+    /**
+     * @return the number of pages the current thread has had getPage find
+     *   already cached, in any buffer pool
+     */
+    static long pageHits() {
+        return pageCounts.get()[1];
+    }
+
+    /**
+     * Start reading a page into the buffer pool in the background, so that a
+     * later getPage finds it cached. This is only a hint: no lock is taken,
+     * and the page read is dropped if the page was cached, replaced or
+     * discarded in the meantime. When the buffer pool is full a clean page is
+     * evicted to make room, and the page goes in at the cold end of the LRU
+     * list, so it is the first to go again if nothing asks for it.
+     *
+     * @param pid the ID of the page that will be needed soon
+     */
+    public void prefetchPage(final PageId pid) {
+        if(pageStore.containsKey(pid) || prefetching.containsKey(pid))
+            return;
+        Prefetch prefetch = new Prefetch(pid);
+        if(prefetching.putIfAbsent(pid, prefetch) == null)
+            prefetcher.execute(prefetch.done);
+    }
+
+    /**
+     * A page being read by {@link #prefetchPage}
+     */
+    private class Prefetch implements Runnable {
+        private final PageId pid;
+        private final FutureTask<Void> done = new FutureTask<Void>(this, null);
+
+        Prefetch(PageId pid) {
+            this.pid = pid;
+        }
+
+        public void run() {
+            try {
+                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                synchronized (BufferPool.this) {
+                    if(prefetching.get(pid) == this && !pageStore.containsKey(pid)
+                            && (pageDoubleLinkedList.getSize() < numPages || evictCleanPage())) {
+                        pageStore.put(pid, page);
+                        pageDoubleLinkedList.addFirst(pid);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the table or page went away; the reader will find out
+            } finally {
+                prefetching.remove(pid, this);
+            }
         }
-        pageDoubleLinkedList.findAndMove(pid);
-        return pageStore.get(pid);
     }
 
     /**
@@ -152,14 +255,28 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        updateBufferPool(file.insertTuple(tid, t), tid);
+        ArrayList<Page> pages = file.insertTuple(tid, t);
+        updateBufferPool(pages, tid);
+        for(SecondaryIndex index : Database.getCatalog().getMaintainedIndexes(tableId))
+            updateBufferPool(index.insertTuple(tid, t), tid);
+        TableStats.tupleInserted(tableId, t, pages);
     }
 
-    private void updateBufferPool(ArrayList<Page> pageList, TransactionId tid) throws DbException {
+    /**
+     * Mark the pages dirtied by tid and put them in the pool, replacing any
+     * cached versions. Files whose pages may be evicted while an operation
+     * is still changing them call this before letting readers back in.
+     */
+    synchronized void updateBufferPool(ArrayList<Page> pageList, TransactionId tid) throws DbException {
         for(Page p : pageList) {
+            prefetching.remove(p.getId());
             p.markDirty(true, tid);
             //如果是删除操作，相当于刷新一遍
-            pageStore.put(p.getId(), p);
+            // a page evicted while it was being changed goes back in the LRU list
+            if(pageStore.put(p.getId(), p) == null)
+                pageDoubleLinkedList.addLast(p.getId());
+            else
+                pageDoubleLinkedList.findAndMove(p.getId());
             if(pageStore.size() > numPages)
                 evictPage();
         }
@@ -182,8 +299,13 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        // remove the index entries first, while t still has its RecordId
+        for(SecondaryIndex index : Database.getCatalog().getMaintainedIndexes(tableId))
+            updateBufferPool(index.deleteTuple(tid, t), tid);
         updateBufferPool(file.deleteTuple(tid, t), tid);
+        TableStats.tupleDeleted(tableId, t);
     }
 
     /**
@@ -210,7 +332,24 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pageStore.remove(pid);
+        prefetching.remove(pid);
+        if(pageStore.remove(pid) != null)
+            pageDoubleLinkedList.removeFirst(pid::equals);
+    }
+
+    /**
+     * Remove every page of a table from the buffer pool without writing it,
+     * for a table that is being dropped.
+     * @param tableid the id of the table
+     */
+    public synchronized void discardPages(int tableid) {
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        for(PageId pid : pageStore.keySet()) {
+            if(pid.getTableId() == tableid)
+                pids.add(pid);
+        }
+        for(PageId pid : pids)
+            discardPage(pid);
     }
 
     /**
@@ -253,4 +392,20 @@ public class BufferPool {
         discardPage(pd);
     }
 
+    /**
+     * Discards the least recently used page that is not dirty, if any, so
+     * that making room never writes a page.
+     * @return true if room was made
+     */
+    private synchronized boolean evictCleanPage() {
+        PageId pd = pageDoubleLinkedList.removeFirst(id -> {
+            Page p = pageStore.get(id);
+            return p == null || p.isDirty() == null;
+        });
+        if(pd == null)
+            return false;
+        discardPage(pd);
+        return true;
+    }
+
 }
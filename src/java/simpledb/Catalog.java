@@ -6,6 +6,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -31,6 +33,10 @@ public class Catalog {
     }
 
     private final ConcurrentHashMap<Integer, Table> hashTable;
+    private final ConcurrentHashMap<Integer, List<SecondaryIndex>> indexes;
+    // bumped whenever a table or index is added or removed, or an index
+    // becomes ready, so that cached plans can tell they may be out of date
+    private final AtomicLong version = new AtomicLong();
 
     /**
      * Constructor.
@@ -39,6 +45,7 @@ public class Catalog {
     public Catalog() {
         // some code goes here
         this.hashTable = new ConcurrentHashMap<Integer, Table>();
+        this.indexes = new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
     }
 
     /**
@@ -54,6 +61,7 @@ public class Catalog {
         // some code goes here
         Table table = new Table(file, name, pkeyField);
         hashTable.put(file.getId(), table);
+        changed();
     }
 
     public void addTable(DbFile file, String name) {
@@ -128,6 +136,79 @@ public class Catalog {
             throw new NoSuchElementException("not found primaryKey for table " + tableid);
     }
 
+    /**
+     * Publish a secondary index on a table. The index file is added as a
+     * table under the index name, so that its pages can be read through the
+     * buffer pool, and from then on the index is maintained by
+     * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}.
+     * @param index the index to add; its entries must already cover the table,
+     *   unless it is still being built by {@link SecondaryIndex#create}
+     */
+    public void addIndex(SecondaryIndex index) {
+        addTable(index.getFile(), index.getName());
+        indexes.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<SecondaryIndex>())
+                .add(index);
+        changed();
+    }
+
+    /**
+     * Withdraw an index whose build failed, along with the table
+     * {@link #addIndex} registered for its file and any of its pages cached
+     * in the buffer pool.
+     */
+    void removeIndex(SecondaryIndex index) {
+        List<SecondaryIndex> list = indexes.get(index.getTableId());
+        if(list != null)
+            list.remove(index);
+        int fileId = index.getFile().getId();
+        Table table = hashTable.get(fileId);
+        if(table != null && table.file == index.getFile())
+            hashTable.remove(fileId, table);
+        Database.getBufferPool().discardPages(fileId);
+        changed();
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table that are ready to
+     * be read, in the order they were added.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> ready = new ArrayList<SecondaryIndex>();
+        for(SecondaryIndex index : getMaintainedIndexes(tableid)) {
+            if(index.isReady())
+                ready.add(index);
+        }
+        return Collections.unmodifiableList(ready);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table that writers must
+     * maintain, including those still being built.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     */
+    List<SecondaryIndex> getMaintainedIndexes(int tableid) {
+        List<SecondaryIndex> list = indexes.get(tableid);
+        if(list == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns whether the specified table is the file of a secondary index,
+     * which {@link #addIndex} registered as a table.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     */
+    boolean isIndexFile(int tableid) {
+        for(List<SecondaryIndex> list : indexes.values()) {
+            for(SecondaryIndex index : list) {
+                if(index.getFile().getId() == tableid)
+                    return true;
+            }
+        }
+        return false;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return hashTable.keySet().iterator();
@@ -146,6 +227,22 @@ public class Catalog {
     public void clear() {
         // some code goes here
         this.hashTable.clear();
+        this.indexes.clear();
+        changed();
+    }
+
+    /**
+     * Returns a number that changes whenever the tables or the indexes ready
+     * to be read change, so that anything planned against the catalog can
+     * tell it may be out of date.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /** Note a change to the tables or indexes, see {@link #getVersion}. */
+    void changed() {
+        version.incrementAndGet();
     }
     
     /**
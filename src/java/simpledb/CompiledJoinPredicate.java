@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * CompiledJoinPredicate is a {@link JoinPredicate} specialized for the types
+ * of the two join columns. For int columns each operator gets its own final
+ * class comparing two primitive ints, so the join's inner loop makes one
+ * monomorphic call per pair instead of a Field.compare switch.
+ */
+public abstract class CompiledJoinPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final int field1;
+    protected final int field2;
+
+    CompiledJoinPredicate(int field1, int field2) {
+        this.field1 = field1;
+        this.field2 = field2;
+    }
+
+    /**
+     * @return true if the tuples satisfy the join predicate
+     * @see JoinPredicate#filter
+     */
+    public abstract boolean filter(Tuple t1, Tuple t2);
+
+    /**
+     * Compile a join predicate whose left field has the given type.
+     *
+     * @param p
+     *            The join predicate
+     * @param type
+     *            The type of field1 in the left tuples (and of field2 in
+     *            the right tuples)
+     */
+    public static CompiledJoinPredicate compile(JoinPredicate p, Type type) {
+        int f1 = p.getField1();
+        int f2 = p.getField2();
+        if (type != Type.INT_TYPE)
+            return new Generic(p);
+        switch (p.getOperator()) {
+        case EQUALS:
+        case LIKE:
+            return new IntEquals(f1, f2);
+        case NOT_EQUALS:
+            return new IntNotEquals(f1, f2);
+        case GREATER_THAN:
+            return new IntGreaterThan(f1, f2);
+        case GREATER_THAN_OR_EQ:
+            return new IntGreaterThanOrEq(f1, f2);
+        case LESS_THAN:
+            return new IntLessThan(f1, f2);
+        case LESS_THAN_OR_EQ:
+            return new IntLessThanOrEq(f1, f2);
+        default:
+            return new Generic(p);
+        }
+    }
+
+    static int intValue(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static final class Generic extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+        private final Predicate.Op op;
+
+        Generic(JoinPredicate p) {
+            super(p.getField1(), p.getField2());
+            this.op = p.getOperator();
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return t1.getField(field1).compare(op, t2.getField(field2));
+        }
+    }
+
+    private static final class IntEquals extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+
+        IntEquals(int field1, int field2) {
+            super(field1, field2);
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return intValue(t1, field1) == intValue(t2, field2);
+        }
+    }
+
+    private static final class IntNotEquals extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+
+        IntNotEquals(int field1, int field2) {
+            super(field1, field2);
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return intValue(t1, field1) != intValue(t2, field2);
+        }
+    }
+
+    private static final class IntGreaterThan extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+
+        IntGreaterThan(int field1, int field2) {
+            super(field1, field2);
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return intValue(t1, field1) > intValue(t2, field2);
+        }
+    }
+
+    private static final class IntGreaterThanOrEq extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+
+        IntGreaterThanOrEq(int field1, int field2) {
+            super(field1, field2);
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return intValue(t1, field1) >= intValue(t2, field2);
+        }
+    }
+
+    private static final class IntLessThan extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+
+        IntLessThan(int field1, int field2) {
+            super(field1, field2);
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return intValue(t1, field1) < intValue(t2, field2);
+        }
+    }
+
+    private static final class IntLessThanOrEq extends CompiledJoinPredicate {
+        private static final long serialVersionUID = 1L;
+
+        IntLessThanOrEq(int field1, int field2) {
+            super(field1, field2);
+        }
+
+        public boolean filter(Tuple t1, Tuple t2) {
+            return intValue(t1, field1) <= intValue(t2, field2);
+        }
+    }
+}
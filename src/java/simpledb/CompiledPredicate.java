@@ -0,0 +1,300 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * CompiledPredicate is a conjunction of {@link Predicate}s turned into a
+ * specialized evaluator. Each (type, operator) pair gets its own small final
+ * class that compares a primitive int against a constant, so the
+ * Predicate.Op switch and the virtual Field.compare call are resolved once
+ * at compile time instead of once per tuple, and the JIT sees a monomorphic
+ * comparison that it can inline.
+ * <p>
+ * Besides Filter, the predicates pushed down into a {@link SeqScan} or an
+ * {@link IndexScan} are compiled, and are tested directly against the
+ * serialized rows of a {@link HeapPage}.
+ */
+public abstract class CompiledPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param t
+     *            The tuple to test
+     * @return true if t satisfies every conjunct
+     */
+    public abstract boolean filter(Tuple t);
+
+    /**
+     * Narrows the selection of a batch to the rows that satisfy every
+     * conjunct.
+     *
+     * @return the number of rows still selected
+     */
+    public abstract int filter(TupleBatch batch);
+
+    /**
+     * Tests a row serialized in page bytes without decoding it.
+     *
+     * @param data
+     *            the page bytes
+     * @param base
+     *            the offset of the row in data
+     * @param fieldOffsets
+     *            the offset of each field of the row from base
+     * @return true if the row satisfies every conjunct
+     */
+    abstract boolean filter(byte[] data, int base, int[] fieldOffsets);
+
+    /**
+     * Compile the conjunction of the given predicates.
+     *
+     * @param conjuncts
+     *            The predicates to AND together; there must be at least one
+     * @return an evaluator equivalent to applying every predicate in turn
+     */
+    public static CompiledPredicate compile(Predicate... conjuncts) {
+        if (conjuncts.length == 0)
+            throw new IllegalArgumentException("no predicates to compile");
+        if (conjuncts.length == 1)
+            return compile(conjuncts[0]);
+        CompiledPredicate[] terms = new CompiledPredicate[conjuncts.length];
+        for (int i = 0; i < terms.length; i++)
+            terms[i] = compile(conjuncts[i]);
+        return new And(terms);
+    }
+
+    /**
+     * Compile the conjunction of the given predicates, which may be empty.
+     *
+     * @return an evaluator that accepts every row if there are no
+     *         predicates, and is otherwise the same as {@link #compile}
+     */
+    static CompiledPredicate compileAll(Predicate[] conjuncts) {
+        if (conjuncts.length == 0)
+            return new And(new CompiledPredicate[0]);
+        return compile(conjuncts);
+    }
+
+    static int readInt(byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    private static CompiledPredicate compile(Predicate p) {
+        if (p.getOperand().getType() != Type.INT_TYPE)
+            return new Generic(p);
+        int f = p.getField();
+        int v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            return new IntEquals(p, f, v);
+        case NOT_EQUALS:
+            return new IntNotEquals(p, f, v);
+        case GREATER_THAN:
+            return new IntGreaterThan(p, f, v);
+        case GREATER_THAN_OR_EQ:
+            return new IntGreaterThanOrEq(p, f, v);
+        case LESS_THAN:
+            return new IntLessThan(p, f, v);
+        case LESS_THAN_OR_EQ:
+            return new IntLessThanOrEq(p, f, v);
+        default:
+            return new Generic(p);
+        }
+    }
+
+    /** A single predicate; batches go through its primitive loops. */
+    private static abstract class Term extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final Predicate p;
+
+        Term(Predicate p) {
+            this.p = p;
+        }
+
+        public int filter(TupleBatch batch) {
+            return p.filter(batch);
+        }
+
+        static int intValue(Tuple t, int field) {
+            return ((IntField) t.getField(field)).getValue();
+        }
+    }
+
+    private static final class Generic extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f;
+        private final Predicate.Op op;
+        private final Field operand;
+
+        Generic(Predicate p) {
+            super(p);
+            this.f = p.getField();
+            this.op = p.getOp();
+            this.operand = p.getOperand();
+        }
+
+        public boolean filter(Tuple t) {
+            return t.getField(f).compare(op, operand);
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            int off = base + fieldOffsets[f];
+            Field v;
+            if (operand.getType() == Type.INT_TYPE)
+                v = new IntField(readInt(data, off));
+            else
+                v = new StringField(new String(data, off + 4, readInt(data, off)), Type.STRING_LEN);
+            return v.compare(op, operand);
+        }
+    }
+
+    private static final class IntEquals extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f, v;
+
+        IntEquals(Predicate p, int f, int v) {
+            super(p);
+            this.f = f;
+            this.v = v;
+        }
+
+        public boolean filter(Tuple t) {
+            return intValue(t, f) == v;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            return readInt(data, base + fieldOffsets[f]) == v;
+        }
+    }
+
+    private static final class IntNotEquals extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f, v;
+
+        IntNotEquals(Predicate p, int f, int v) {
+            super(p);
+            this.f = f;
+            this.v = v;
+        }
+
+        public boolean filter(Tuple t) {
+            return intValue(t, f) != v;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            return readInt(data, base + fieldOffsets[f]) != v;
+        }
+    }
+
+    private static final class IntGreaterThan extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f, v;
+
+        IntGreaterThan(Predicate p, int f, int v) {
+            super(p);
+            this.f = f;
+            this.v = v;
+        }
+
+        public boolean filter(Tuple t) {
+            return intValue(t, f) > v;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            return readInt(data, base + fieldOffsets[f]) > v;
+        }
+    }
+
+    private static final class IntGreaterThanOrEq extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f, v;
+
+        IntGreaterThanOrEq(Predicate p, int f, int v) {
+            super(p);
+            this.f = f;
+            this.v = v;
+        }
+
+        public boolean filter(Tuple t) {
+            return intValue(t, f) >= v;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            return readInt(data, base + fieldOffsets[f]) >= v;
+        }
+    }
+
+    private static final class IntLessThan extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f, v;
+
+        IntLessThan(Predicate p, int f, int v) {
+            super(p);
+            this.f = f;
+            this.v = v;
+        }
+
+        public boolean filter(Tuple t) {
+            return intValue(t, f) < v;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            return readInt(data, base + fieldOffsets[f]) < v;
+        }
+    }
+
+    private static final class IntLessThanOrEq extends Term {
+        private static final long serialVersionUID = 1L;
+        private final int f, v;
+
+        IntLessThanOrEq(Predicate p, int f, int v) {
+            super(p);
+            this.f = f;
+            this.v = v;
+        }
+
+        public boolean filter(Tuple t) {
+            return intValue(t, f) <= v;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            return readInt(data, base + fieldOffsets[f]) <= v;
+        }
+    }
+
+    private static final class And extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final CompiledPredicate[] terms;
+
+        And(CompiledPredicate[] terms) {
+            this.terms = terms;
+        }
+
+        public boolean filter(Tuple t) {
+            for (CompiledPredicate term : terms) {
+                if (!term.filter(t))
+                    return false;
+            }
+            return true;
+        }
+
+        boolean filter(byte[] data, int base, int[] fieldOffsets) {
+            for (CompiledPredicate term : terms) {
+                if (!term.filter(data, base, fieldOffsets))
+                    return false;
+            }
+            return true;
+        }
+
+        public int filter(TupleBatch batch) {
+            int n = batch.numSelected();
+            for (int i = 0; i < terms.length && n > 0; i++)
+                n = terms[i].filter(batch);
+            return n;
+        }
+    }
+}
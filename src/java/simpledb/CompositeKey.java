@@ -0,0 +1,119 @@
+package simpledb;
+
+/**
+ * CompositeKey encodes the values of several fields as one
+ * {@link StringField} whose string order is the lexicographic order of the
+ * values, so that a {@link BTreeFile} keyed on a single field can index
+ * several columns. An int becomes 8 hex digits with its sign bit flipped; a
+ * string becomes its characters followed by a terminator, with the
+ * terminator and escape characters escaped, so a shorter string sorts before
+ * any string it is a prefix of.
+ * <p>
+ * Since the encoding of a prefix of the values is a prefix of the encoding
+ * of all of them, equality on the leading fields plus a range on the next
+ * one is a single range of keys; see {@link #prefixRange}.
+ */
+public class CompositeKey {
+
+    private static final char TERMINATOR = '\u0001';
+    private static final char ESCAPE = '\u0002';
+
+    private CompositeKey() {
+    }
+
+    /**
+     * @return the key for the given values, in key order
+     * @throws DbException
+     *             if the key does not fit in a string field
+     */
+    public static StringField encode(Field[] values) throws DbException {
+        StringBuilder sb = new StringBuilder();
+        for (Field v : values)
+            append(sb, v);
+        return toField(sb.toString());
+    }
+
+    /**
+     * Build the predicate on composite keys selecting the keys whose leading
+     * fields equal prefix and whose next field satisfies op against value.
+     *
+     * @param prefix
+     *            the values of the leading fields
+     * @param op
+     *            the comparison on the field after the prefix, or null to
+     *            select every key starting with prefix
+     * @param value
+     *            the value to compare the field after the prefix with, or
+     *            null if op is null
+     * @return an IndexPredicate over keys built by {@link #encode}
+     * @throws DbException
+     *             if the bounds do not fit in a string field
+     */
+    public static IndexPredicate prefixRange(Field[] prefix, Predicate.Op op, Field value) throws DbException {
+        StringBuilder sb = new StringBuilder();
+        for (Field v : prefix)
+            append(sb, v);
+        String p = sb.toString();
+        if (op == null)
+            return range(p, successor(p));
+        append(sb, value);
+        String v = sb.toString();
+        switch (op) {
+        case EQUALS:
+            return range(v, successor(v));
+        case GREATER_THAN:
+            return range(successor(v), successor(p));
+        case GREATER_THAN_OR_EQ:
+            return range(v, successor(p));
+        case LESS_THAN:
+            return range(p, v);
+        case LESS_THAN_OR_EQ:
+            return range(p, successor(v));
+        default:
+            throw new IllegalArgumentException("no key range for " + op);
+        }
+    }
+
+    /**
+     * @return the keys from lower (inclusive) to upper (exclusive), or with
+     *         no upper end if upper is null
+     */
+    private static IndexPredicate range(String lower, String upper) throws DbException {
+        if (upper == null)
+            return new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, toField(lower));
+        return new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, toField(lower),
+                Predicate.Op.LESS_THAN, toField(upper));
+    }
+
+    /**
+     * @return the smallest string greater than every string starting with s,
+     *         or null if s is empty. Encoded values never end in the largest
+     *         character, so incrementing the last one is enough.
+     */
+    private static String successor(String s) {
+        if (s.isEmpty())
+            return null;
+        return s.substring(0, s.length() - 1) + (char) (s.charAt(s.length() - 1) + 1);
+    }
+
+    private static StringField toField(String s) throws DbException {
+        if (s.length() > Type.STRING_LEN)
+            throw new DbException("composite key longer than " + Type.STRING_LEN + " characters");
+        return new StringField(s, Type.STRING_LEN);
+    }
+
+    private static void append(StringBuilder sb, Field v) {
+        if (v.getType() == Type.INT_TYPE) {
+            sb.append(String.format("%08x", ((IntField) v).getValue() ^ Integer.MIN_VALUE));
+        } else {
+            String s = ((StringField) v).getValue();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == TERMINATOR || c == ESCAPE)
+                    sb.append(ESCAPE);
+                sb.append(c);
+            }
+            sb.append(TERMINATOR);
+        }
+    }
+}
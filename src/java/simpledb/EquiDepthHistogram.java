@@ -0,0 +1,421 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram with a list of most common values (MCVs) over a
+ * single integer-based field, built from a sample of the field's values.
+ * A histogram over a string field keeps its MCVs as whole strings, and only
+ * uses {@link StringHistogram#stringToInt} of the other values, which maps
+ * all strings sharing their first four characters to the same int, for the
+ * bounds of its buckets.
+ * <p>
+ * The most common values are kept with their own row counts, so a hot value
+ * is estimated exactly instead of being smeared over its bucket. The other
+ * values are split into buckets holding about the same number of rows each,
+ * so that buckets are narrow where the data is dense and a skewed column is
+ * described as finely as a uniform one. Within a bucket, rows are assumed to
+ * be spread evenly over the bucket's distinct values.
+ * <p>
+ * Rows added or removed after the histogram is built are counted in the
+ * most common value or bucket they fall in, so the histogram follows
+ * changes to the table until it is rebuilt from a fresh sample.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // the most common values in increasing order, and their row counts; for
+    // a string field the values are in stringMcvs and mcvs is empty
+    private final int[] mcvs;
+    private final String[] stringMcvs;
+    private final double[] mcvRows;
+
+    // the buckets in increasing order: inclusive bounds, rows and distinct
+    // values of each; a run of equal values may span several buckets
+    private int[] lows;
+    private int[] highs;
+    private double[] bucketRows;
+    private int[] distinct;
+
+    private double ntups;
+
+    /**
+     * Build a histogram from a sample of the values of a field.
+     *
+     * @param buckets
+     *            the most buckets to split the values that are not MCVs into
+     * @param maxMcvs
+     *            the most common values to keep
+     * @param sample
+     *            the sampled values, in any order
+     * @param ntups
+     *            the number of rows the sample was drawn from; the counts
+     *            of the sample are scaled up to it
+     */
+    public EquiDepthHistogram(int buckets, int maxMcvs, int[] sample, long ntups) {
+        this.ntups = ntups;
+        int[] sorted = sample.clone();
+        Arrays.sort(sorted);
+        double scale = sorted.length == 0 ? 0.0 : (double) ntups / sorted.length;
+
+        // the distinct values of the sample and how often each occurs
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                counts.add(0);
+            counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+        }
+
+        boolean[] common = mostCommon(counts, sorted.length, maxMcvs);
+        mcvs = new int[count(common)];
+        stringMcvs = null;
+        mcvRows = new double[mcvs.length];
+        int[] rest = new int[sorted.length];
+        int nrest = 0;
+        for (int i = 0, k = 0, pos = 0; i < counts.size(); pos += counts.get(i), i++) {
+            if (common[i]) {
+                mcvs[k] = sorted[pos];
+                mcvRows[k++] = counts.get(i) * scale;
+            } else {
+                System.arraycopy(sorted, pos, rest, nrest, counts.get(i));
+                nrest += counts.get(i);
+            }
+        }
+        buildBuckets(buckets, rest, nrest, scale, null);
+    }
+
+    /**
+     * Build a histogram from a sample of the values of a string field. The
+     * most common values are kept whole, so strings sharing a prefix are
+     * still told apart by equality.
+     *
+     * @param buckets
+     *            the most buckets to split the values that are not MCVs into
+     * @param maxMcvs
+     *            the most common values to keep
+     * @param sample
+     *            the sampled values, in any order
+     * @param ntups
+     *            the number of rows the sample was drawn from; the counts
+     *            of the sample are scaled up to it
+     */
+    public EquiDepthHistogram(int buckets, int maxMcvs, String[] sample, long ntups) {
+        this.ntups = ntups;
+        String[] sorted = sample.clone();
+        Arrays.sort(sorted);
+        double scale = sorted.length == 0 ? 0.0 : (double) ntups / sorted.length;
+
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || !sorted[i].equals(sorted[i - 1]))
+                counts.add(0);
+            counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+        }
+
+        boolean[] common = mostCommon(counts, sorted.length, maxMcvs);
+        mcvs = new int[0];
+        stringMcvs = new String[count(common)];
+        mcvRows = new double[stringMcvs.length];
+        // the other values in order, as ints, marking where each whole
+        // string starts so that the buckets count distinct strings
+        int[] rest = new int[sorted.length];
+        boolean[] starts = new boolean[sorted.length];
+        int nrest = 0;
+        for (int i = 0, k = 0, pos = 0; i < counts.size(); pos += counts.get(i), i++) {
+            if (common[i]) {
+                stringMcvs[k] = sorted[pos];
+                mcvRows[k++] = counts.get(i) * scale;
+            } else {
+                starts[nrest] = true;
+                for (int j = pos; j < pos + counts.get(i); j++)
+                    rest[nrest++] = StringHistogram.stringToInt(sorted[j]);
+            }
+        }
+        buildBuckets(buckets, rest, nrest, scale, starts);
+    }
+
+    /**
+     * Pick the most common values: if every value fits in the list they are
+     * all kept exactly; otherwise only values clearly more common than
+     * average are.
+     *
+     * @param counts
+     *            how often each distinct value of the sample occurs
+     * @param n
+     *            the size of the sample
+     * @return whether each distinct value is kept as an MCV
+     */
+    private static boolean[] mostCommon(final ArrayList<Integer> counts, int n, int maxMcvs) {
+        boolean[] common = new boolean[counts.size()];
+        if (counts.size() <= maxMcvs) {
+            Arrays.fill(common, true);
+        } else {
+            double threshold = Math.max(1.0, 1.25 * n / counts.size());
+            Integer[] byCount = new Integer[counts.size()];
+            for (int i = 0; i < byCount.length; i++)
+                byCount[i] = i;
+            Arrays.sort(byCount, (a, b) -> counts.get(b) - counts.get(a));
+            for (int k = 0; k < maxMcvs && counts.get(byCount[k]) > threshold; k++)
+                common[byCount[k]] = true;
+        }
+        return common;
+    }
+
+    private static int count(boolean[] flags) {
+        int n = 0;
+        for (boolean flag : flags) {
+            if (flag)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Split the sorted values rest[0..nrest) into buckets of about the same
+     * number of rows.
+     *
+     * @param starts
+     *            where each distinct value starts in rest, or null if equal
+     *            ints are the same value
+     */
+    private void buildBuckets(int buckets, int[] rest, int nrest, double scale, boolean[] starts) {
+        int nbuckets = Math.min(buckets, nrest);
+        lows = new int[nbuckets];
+        highs = new int[nbuckets];
+        bucketRows = new double[nbuckets];
+        distinct = new int[nbuckets];
+        for (int b = 0; b < nbuckets; b++) {
+            int start = (int) ((long) b * nrest / nbuckets);
+            int end = (int) ((long) (b + 1) * nrest / nbuckets);
+            lows[b] = rest[start];
+            highs[b] = rest[end - 1];
+            bucketRows[b] = (end - start) * scale;
+            distinct[b] = 1;
+            for (int i = start + 1; i < end; i++) {
+                if (starts == null ? rest[i] != rest[i - 1] : starts[i])
+                    distinct[b]++;
+            }
+        }
+    }
+
+    /**
+     * Count a row with value v added to the table. A value beyond the bounds
+     * of the nearest bucket widens it, and is assumed to be new to it.
+     */
+    public void addValue(int v) {
+        ntups++;
+        int k = Arrays.binarySearch(mcvs, v);
+        if (k >= 0) {
+            mcvRows[k]++;
+            return;
+        }
+        if (lows.length == 0) {
+            lows = new int[] { v };
+            highs = new int[] { v };
+            bucketRows = new double[] { 1 };
+            distinct = new int[] { 1 };
+            return;
+        }
+        int b = nearestBucket(v);
+        bucketRows[b]++;
+        if (v < lows[b]) {
+            lows[b] = v;
+            distinct[b]++;
+        } else if (v > highs[b]) {
+            highs[b] = v;
+            distinct[b]++;
+        }
+    }
+
+    /**
+     * Uncount a row with value v removed from the table.
+     */
+    public void removeValue(int v) {
+        ntups = Math.max(0.0, ntups - 1);
+        int k = Arrays.binarySearch(mcvs, v);
+        if (k >= 0)
+            mcvRows[k] = Math.max(0.0, mcvRows[k] - 1);
+        else if (lows.length > 0) {
+            int b = nearestBucket(v);
+            bucketRows[b] = Math.max(0.0, bucketRows[b] - 1);
+        }
+    }
+
+    /**
+     * Count a row with string value s added to a histogram over a string
+     * field.
+     */
+    public void addValue(String s) {
+        int k = Arrays.binarySearch(stringMcvs, s);
+        if (k >= 0) {
+            ntups++;
+            mcvRows[k]++;
+        } else {
+            addValue(StringHistogram.stringToInt(s));
+        }
+    }
+
+    /**
+     * Uncount a row with string value s removed from a histogram over a
+     * string field.
+     */
+    public void removeValue(String s) {
+        int k = Arrays.binarySearch(stringMcvs, s);
+        if (k >= 0) {
+            ntups = Math.max(0.0, ntups - 1);
+            mcvRows[k] = Math.max(0.0, mcvRows[k] - 1);
+        } else {
+            removeValue(StringHistogram.stringToInt(s));
+        }
+    }
+
+    /** @return the first bucket not below v, or the last bucket */
+    private int nearestBucket(int v) {
+        for (int b = 0; b < highs.length; b++) {
+            if (v <= highs[b])
+                return b;
+        }
+        return highs.length - 1;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this
+     * field.
+     *
+     * @param op
+     *            Operator
+     * @param v
+     *            Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (ntups <= 0)
+            return 0.0;
+        return selectivity(op, equalRows(v), lessRows(v));
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on a
+     * string field. Equality with an MCV is estimated from its own count;
+     * other values are estimated from the bucket their prefix falls in.
+     *
+     * @param op
+     *            Operator
+     * @param s
+     *            Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, String s) {
+        if (ntups <= 0)
+            return 0.0;
+        int v = StringHistogram.stringToInt(s);
+        int k = Arrays.binarySearch(stringMcvs, s);
+        double equal = k >= 0 ? mcvRows[k] : bucketEqualRows(v);
+        double less = bucketLessRows(v);
+        for (k = 0; k < stringMcvs.length && stringMcvs[k].compareTo(s) < 0; k++)
+            less += mcvRows[k];
+        return selectivity(op, equal, less);
+    }
+
+    /**
+     * @return the selectivity of op given the rows equal to and less than
+     *         its operand
+     */
+    private double selectivity(Predicate.Op op, double equal, double less) {
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = equal / ntups;
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - equal / ntups;
+            break;
+        case LESS_THAN:
+            sel = less / ntups;
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = (less + equal) / ntups;
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - (less + equal) / ntups;
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - less / ntups;
+            break;
+        default:
+            throw new UnsupportedOperationException("unsupported operator " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /** @return the estimated number of rows equal to v */
+    private double equalRows(int v) {
+        int k = Arrays.binarySearch(mcvs, v);
+        if (k >= 0)
+            return mcvRows[k];
+        return bucketEqualRows(v);
+    }
+
+    /** @return the estimated number of rows equal to v among the buckets */
+    private double bucketEqualRows(int v) {
+        double rows = 0.0;
+        for (int b = 0; b < lows.length && lows[b] <= v; b++) {
+            if (v <= highs[b])
+                rows += bucketRows[b] / distinct[b];
+        }
+        return rows;
+    }
+
+    /** @return the estimated number of rows less than v */
+    private double lessRows(int v) {
+        double rows = bucketLessRows(v);
+        for (int k = 0; k < mcvs.length && mcvs[k] < v; k++)
+            rows += mcvRows[k];
+        return rows;
+    }
+
+    /** @return the estimated number of rows less than v among the buckets */
+    private double bucketLessRows(int v) {
+        double rows = 0.0;
+        for (int b = 0; b < lows.length && lows[b] < v; b++) {
+            if (highs[b] < v)
+                rows += bucketRows[b];
+            else
+                rows += bucketRows[b] * ((double) v - lows[b]) / ((double) highs[b] - lows[b] + 1);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the chance that two rows picked at random have the same value
+     */
+    public double avgSelectivity() {
+        if (ntups <= 0)
+            return 1.0;
+        double sum = 0.0;
+        for (double rows : mcvRows)
+            sum += rows * rows;
+        for (int b = 0; b < lows.length; b++)
+            sum += bucketRows[b] * bucketRows[b] / distinct[b];
+        return sum / (ntups * ntups);
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EquiDepthHistogram(ntups=" + (long) ntups + ")");
+        for (int k = 0; k < mcvs.length; k++)
+            sb.append(String.format("%n  mcv %d: %.0f", mcvs[k], mcvRows[k]));
+        for (int k = 0; stringMcvs != null && k < stringMcvs.length; k++)
+            sb.append(String.format("%n  mcv '%s': %.0f", stringMcvs[k], mcvRows[k]));
+        for (int b = 0; b < lows.length; b++)
+            sb.append(String.format("%n  [%d, %d]: %.0f rows, %d distinct", lows[b], highs[b], bucketRows[b],
+                    distinct[b]));
+        return sb.toString();
+    }
+}
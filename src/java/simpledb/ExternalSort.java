@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may not fit in memory. Tuples
+ * are read into memory in runs of at most runSize tuples; each run is sorted
+ * and, unless the whole input fit in one run, spilled to a temporary file.
+ * The runs are then merged, at most {@link #MAX_FAN_IN} at a time, and the
+ * final merge is streamed back to the caller.
+ * <p>
+ * The sort is stable: tuples that compare equal come out in input order.
+ * When the whole input fits in one run the input tuples themselves are
+ * returned, RecordIds included; otherwise the returned tuples are read back
+ * from the runs and have no RecordId. Callers should not rely on either.
+ */
+public class ExternalSort {
+
+    /** The largest number of runs merged at once */
+    public static final int MAX_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> cmp;
+    private final int runSize;
+
+    /**
+     * @param td
+     *            the TupleDesc of the tuples to sort
+     * @param cmp
+     *            the sort order
+     * @param runSize
+     *            the largest number of tuples to hold in memory at once
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> cmp, int runSize) {
+        if (runSize < 1)
+            throw new IllegalArgumentException("run size must be positive");
+        this.td = td;
+        this.cmp = cmp;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Sort the input. The input is fully consumed before this returns; runs
+     * spilled to disk are deleted as the returned iterator exhausts them.
+     *
+     * @param input
+     *            the tuples to sort
+     * @return an iterator over the input in sorted order
+     * @throws IOException
+     *             if a run cannot be written
+     */
+    public Iterator<Tuple> sort(Iterator<Tuple> input) throws IOException {
+        ArrayList<File> runs = new ArrayList<File>();
+        ArrayList<Integer> runLengths = new ArrayList<Integer>();
+        ArrayList<Tuple> run = new ArrayList<Tuple>();
+        while (input.hasNext()) {
+            run.add(input.next());
+            if (run.size() == runSize) {
+                Collections.sort(run, cmp);
+                runs.add(writeRun(run.iterator()));
+                runLengths.add(run.size());
+                run.clear();
+            }
+        }
+        Collections.sort(run, cmp);
+        if (runs.isEmpty())
+            return run.iterator();
+        if (!run.isEmpty()) {
+            runs.add(writeRun(run.iterator()));
+            runLengths.add(run.size());
+        }
+        run = null;
+
+        // merge passes until a single merge can produce the output
+        while (runs.size() > MAX_FAN_IN) {
+            ArrayList<File> merged = new ArrayList<File>();
+            ArrayList<Integer> mergedLengths = new ArrayList<Integer>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                int end = Math.min(i + MAX_FAN_IN, runs.size());
+                merged.add(writeRun(new MergeIterator(runs.subList(i, end), runLengths.subList(i, end))));
+                int length = 0;
+                for (int j = i; j < end; j++)
+                    length += runLengths.get(j);
+                mergedLengths.add(length);
+            }
+            runs = merged;
+            runLengths = mergedLengths;
+        }
+        return new MergeIterator(runs, runLengths);
+    }
+
+    private File writeRun(Iterator<Tuple> tuples) throws IOException {
+        File f = File.createTempFile("sortrun", ".dat");
+        f.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                for (int i = 0; i < td.numFields(); i++)
+                    t.getField(i).serialize(dos);
+            }
+        } finally {
+            dos.close();
+        }
+        return f;
+    }
+
+    /**
+     * Merges sorted run files, deleting each one once it has been read
+     */
+    private class MergeIterator implements Iterator<Tuple> {
+        private final PriorityQueue<RunReader> heads;
+
+        MergeIterator(List<File> runs, List<Integer> lengths) throws IOException {
+            heads = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+                public int compare(RunReader r1, RunReader r2) {
+                    int c = cmp.compare(r1.head, r2.head);
+                    // equal tuples come from the earlier run first
+                    return c != 0 ? c : r1.order - r2.order;
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader r = new RunReader(runs.get(i), lengths.get(i), i);
+                if (r.advance())
+                    heads.add(r);
+            }
+        }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public Tuple next() {
+            RunReader r = heads.poll();
+            if (r == null)
+                throw new NoSuchElementException();
+            Tuple t = r.head;
+            try {
+                if (r.advance())
+                    heads.add(r);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads the tuples of one run file in order
+     */
+    private class RunReader {
+        private final File f;
+        private final DataInputStream dis;
+        private final int order;
+        private int remaining;
+        Tuple head;
+
+        RunReader(File f, int length, int order) throws IOException {
+            this.f = f;
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            this.remaining = length;
+            this.order = order;
+        }
+
+        /**
+         * Read the next tuple of the run into head, or close and delete the
+         * run if it is exhausted
+         *
+         * @return true if there was another tuple
+         */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                dis.close();
+                f.delete();
+                head = null;
+                return false;
+            }
+            remaining--;
+            head = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    head.setField(i, td.getFieldType(i).parse(dis));
+            } catch (java.text.ParseException e) {
+                throw new IOException("corrupt sort run " + f, e);
+            }
+            return true;
+        }
+    }
+}
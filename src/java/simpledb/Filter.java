@@ -5,9 +5,11 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private final Predicate p;
+    private final Predicate[] conjuncts;
+    private CompiledPredicate compiled;
     private OpIterator child;
 
     private static final long serialVersionUID = 1L;
@@ -23,15 +25,40 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
-        this.p = p;
+        this(new Predicate[] {p}, child);
+    }
+
+    /**
+     * Constructor for a filter over a conjunction of predicates. The
+     * predicates are compiled into a single {@link CompiledPredicate}.
+     *
+     * @param conjuncts
+     *            The predicates a tuple must all satisfy
+     * @param child
+     *            The child operator
+     */
+    public Filter(Predicate[] conjuncts, OpIterator child) {
+        this.p = conjuncts[0];
+        this.conjuncts = conjuncts;
+        this.compiled = CompiledPredicate.compile(conjuncts);
         this.child = child;
     }
 
+    /**
+     * @return the first predicate of this filter's conjunction
+     */
     public Predicate getPredicate() {
         // some code goes here
         return p;
     }
 
+    /**
+     * @return every predicate of this filter's conjunction
+     */
+    public Predicate[] getPredicates() {
+        return conjuncts;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return child.getTupleDesc();
@@ -62,18 +89,37 @@ public class Filter extends Operator {
      * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
-     * @see Predicate#filter
+     * @see CompiledPredicate#filter(Tuple)
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
         while(child.hasNext()) {
             Tuple tuple = child.next();
-            if(p.filter(tuple))     return tuple;
+            if(compiled.filter(tuple))     return tuple;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next batch of the child with its selection narrowed to the
+     * rows that pass the predicate. Batches in which no row passes are
+     * skipped.
+     *
+     * @see CompiledPredicate#filter(TupleBatch)
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        while((batch = TupleBatch.nextBatch(child)) != null) {
+            if(compiled.filter(batch) > 0)     return batch;
         }
         return null;
     }
 
+    public boolean isColumnar() {
+        return TupleBatch.isColumnar(child);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
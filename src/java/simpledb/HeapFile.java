@@ -160,58 +160,117 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid, this);
+        return new HeapFileIterator(tid, this, new Predicate[0], null);
     }
 
-    private static final class HeapFileIterator implements DbFileIterator {
+    /**
+     * Returns an iterator over the tuples that satisfy every predicate,
+     * restricted to the given fields. The predicates are evaluated by each
+     * {@link HeapPage} on its bytes, so rejected rows and unneeded columns
+     * are never deserialized.
+     *
+     * @param preds predicates over fields of this file's TupleDesc
+     * @param fields the fields to return, in output order, or null for all
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        return new HeapFileIterator(tid, this, preds, fields);
+    }
+
+    static final class HeapFileIterator implements DbFileIterator {
 
         private final TransactionId tid;
         private final HeapFile heapFile;
+        private final Predicate[] preds;
+        private final CompiledPredicate pred;
+        private final int[] fields;
+        private final TupleDesc outTd;
         private int curPageNum;
         private Iterator<Tuple> it;
+        private boolean open;
+        // the next slot of curPageNum for nextBatch to read
+        private int curSlot;
 
-        public HeapFileIterator(TransactionId tid, HeapFile heapFile) {
+        public HeapFileIterator(TransactionId tid, HeapFile heapFile, Predicate[] preds, int[] fields) {
             this.tid = tid;
             this.heapFile = heapFile;
+            this.preds = preds;
+            this.pred = CompiledPredicate.compileAll(preds);
+            this.fields = fields;
+            this.outTd = projectTupleDesc(heapFile.getTupleDesc(), fields);
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             curPageNum = 0;
-            it = getPageTuples(curPageNum);
+            curSlot = 0;
+            // the first page is decoded by the first hasNext(), so that an
+            // iterator read through nextBatch() never builds its tuples
+            it = null;
+            open = true;
         }
 
         private Iterator<Tuple> getPageTuples(int curPageNum) throws TransactionAbortedException, DbException {
             if(curPageNum >= 0 && curPageNum < heapFile.numPages()) {
                 PageId pageId = new HeapPageId(heapFile.getId(), curPageNum);
                 HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                return pg.iterator();
+                if(preds.length == 0 && fields == null)
+                    return pg.iterator();
+                return pg.iterator(pred, fields, outTd);
             } else
                 throw new DbException(String.format("heapfile %d page %d pageNum invalid", heapFile.getId(), curPageNum));
         }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
-            if(it == null)
+            if(!open)
                 return false;
-            if(!it.hasNext()) {
+            if(it == null)
+                it = getPageTuples(curPageNum);
+            // pages may be empty, or have no tuple passing the predicates
+            while(!it.hasNext()) {
                 if(curPageNum < (heapFile.numPages() - 1)) {
                     curPageNum++;
                     it = getPageTuples(curPageNum);
-                    return it.hasNext();
                 } else
                     return false;
-            } else
-                return true;
+            }
+            return true;
         }
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if(it == null || !it.hasNext())
+            if(!hasNext())
                 throw new NoSuchElementException();
             return it.next();
         }
 
+        /**
+         * Returns up to {@link TupleBatch#DEFAULT_CAPACITY} of the remaining
+         * tuples as a batch, decoded from the page bytes by
+         * {@link HeapPage#fillBatch}. An open iterator must be read either
+         * through this method or through next(), not both.
+         *
+         * @param batchTd the TupleDesc of the batch, with one field for each
+         *            projected field
+         * @return the next batch, or null if there are no more tuples
+         */
+        TupleBatch nextBatch(TupleDesc batchTd) throws DbException, TransactionAbortedException {
+            if(!open)
+                throw new IllegalStateException("iterator is not open");
+            TupleBatch batch = new TupleBatch(batchTd, TupleBatch.DEFAULT_CAPACITY);
+            int numPages = heapFile.numPages();
+            while(!batch.isFull() && curPageNum < numPages) {
+                PageId pageId = new HeapPageId(heapFile.getId(), curPageNum);
+                HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+                curSlot = pg.fillBatch(batch, curSlot, pred, fields);
+                if(curSlot == pg.numSlots) {
+                    curPageNum++;
+                    curSlot = 0;
+                }
+            }
+            return batch.size() == 0 ? null : batch;
+        }
+
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             close();
@@ -221,8 +280,24 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             it = null;
+            open = false;
         }
     }
 
-}
+    /**
+     * @return the TupleDesc made of the given fields of td, or td itself if
+     *         fields is null
+     */
+    static TupleDesc projectTupleDesc(TupleDesc td, int[] fields) {
+        if(fields == null)
+            return td;
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for(int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
 
+}
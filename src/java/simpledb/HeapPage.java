@@ -19,10 +19,14 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    /** Page bytes the unmodified tuples are decoded from, on demand. */
+    private final byte[] data;
+    private final int[] fieldOffsets;
+
     private boolean dirty;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     private TransactionId dirtyId;
 
     /**
@@ -52,17 +56,21 @@ public class HeapPage implements Page {
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
         
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
         dis.close();
 
-        setBeforeImage();
+        // tuples are decoded from data the first time they are needed, so a
+        // scan with pushed-down predicates never materializes rejected rows
+        tuples = new Tuple[numSlots];
+        this.data = data.clone();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        // slots that are still undecoded always hold these bytes, so they
+        // are also the before image
+        synchronized(oldDataLock) {
+            oldData = this.data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -90,8 +98,7 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
+            synchronized(oldDataLock) {
                 oldDataRef = oldData;
             }
             return new HeapPage(pid,oldDataRef);
@@ -104,9 +111,8 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-        oldData = getPageData().clone();
+        synchronized(oldDataLock) {
+            oldData = getPageData().clone();
         }
     }
 
@@ -119,39 +125,53 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in slot i, decoding it from the page bytes if it
+     *         has not been read yet, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple getTuple(int i) {
+        if (!isSlotUsed(i))
             return null;
-        }
+        if (tuples[i] == null)
+            tuples[i] = readTuple(i, null, td);
+        return tuples[i];
+    }
+
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
+    /**
+     * Suck up a tuple from the page bytes, parsing each field in place in
+     * the format {@link Type#parse} reads.
+     *
+     * @param fields the fields to read, in output order, or null for all
+     * @param outTd the TupleDesc of the returned tuple
+     */
+    private Tuple readTuple(int slotId, int[] fields, TupleDesc outTd) throws NoSuchElementException {
+        Tuple t = new Tuple(outTd);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        int base = slotOffset(slotId);
+        for (int j=0; j<outTd.numFields(); j++) {
+            int field = fields == null ? j : fields[j];
+            int off = base + fieldOffsets[field];
+            if (td.getFieldType(field) == Type.INT_TYPE) {
+                t.setField(j, new IntField(readInt(off)));
+            } else {
+                int len = readInt(off);
+                if (len < 0 || len > Type.STRING_LEN)
+                    throw new NoSuchElementException("parsing error!");
+                t.setField(j, new StringField(new String(data, off + 4, len), Type.STRING_LEN));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
 
         return t;
     }
 
+    private int readInt(int off) {
+        return CompiledPredicate.readInt(data, off);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -195,8 +215,9 @@ public class HeapPage implements Page {
             }
 
             // non-empty slot
+            Tuple t = getTuple(i);
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -249,7 +270,7 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         int tupleNum = t.getRecordId().getTupleNumber();
-        if(tuples[tupleNum] == null || !tuples[tupleNum].toString().equals(t.toString()))
+        if(getTuple(tupleNum) == null || !tuples[tupleNum].toString().equals(t.toString()))
             throw new DbException("this tuple has been wrong");
         if(!isSlotUsed(tupleNum))
             throw new DbException("the slot is already empty");
@@ -353,9 +374,111 @@ public class HeapPage implements Page {
         List<Tuple> list = new ArrayList<>();
         for(int i = 0; i < numSlots; i++)
             if(isSlotUsed(i))
-                list.add(tuples[i]);
-        return list.iterator();
+                list.add(getTuple(i));
+        return Collections.unmodifiableList(list).iterator();
     }
 
-}
+    /**
+     * Returns the tuples on this page that satisfy every predicate, restricted
+     * to the given fields. Slots that have not been decoded yet are tested
+     * against the page bytes, and only the requested fields of matching
+     * slots are deserialized.
+     *
+     * @param preds predicates over fields of this page's TupleDesc; may be empty
+     * @param fields the fields to return, in output order, or null for all
+     * @param outTd the TupleDesc of the returned tuples
+     * @return an iterator over the matching, projected tuples
+     */
+    public Iterator<Tuple> iterator(Predicate[] preds, int[] fields, TupleDesc outTd) {
+        return iterator(CompiledPredicate.compileAll(preds), fields, outTd);
+    }
+
+    /**
+     * @see #iterator(Predicate[], int[], TupleDesc)
+     */
+    Iterator<Tuple> iterator(CompiledPredicate pred, int[] fields, TupleDesc outTd) {
+        List<Tuple> list = new ArrayList<>();
+        for(int i = 0; i < numSlots; i++) {
+            Tuple t = getTuple(i, pred, fields, outTd);
+            if(t != null)
+                list.add(t);
+        }
+        return Collections.unmodifiableList(list).iterator();
+    }
+
+    /**
+     * Appends the tuples of this page that satisfy every predicate to a
+     * batch, starting at slot and stopping once the batch is full. Slots
+     * that have not been decoded yet are tested against the page bytes and
+     * their requested fields are written straight into the batch's columns,
+     * so no Tuple or Field is built for them.
+     *
+     * @param batch the batch to fill; its TupleDesc lists the requested fields
+     * @param slot the first slot to read
+     * @param pred the pushed-down predicates over fields of this page's TupleDesc
+     * @param fields the fields to append, in batch column order, or null for all
+     * @return the slot to continue from, or the number of slots once the
+     *         whole page has been read
+     */
+    int fillBatch(TupleBatch batch, int slot, CompiledPredicate pred, int[] fields) {
+        int numFields = batch.getTupleDesc().numFields();
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            Tuple t = tuples[slot];
+            int base = slotOffset(slot);
+            if (t == null ? !pred.filter(data, base, fieldOffsets) : !pred.filter(t))
+                continue;
+            int row = batch.size();
+            for (int j = 0; j < numFields; j++) {
+                int field = fields == null ? j : fields[j];
+                TupleBatch.StringDictionary dictionary = batch.getDictionary(j);
+                int value;
+                if (t != null) {
+                    Field f = t.getField(field);
+                    value = dictionary == null ? ((IntField) f).getValue()
+                            : dictionary.encode(((StringField) f).getValue());
+                } else {
+                    int off = base + fieldOffsets[field];
+                    value = dictionary == null ? readInt(off)
+                            : dictionary.encode(new String(data, off + 4, readInt(off)));
+                }
+                batch.getColumn(j)[row] = value;
+            }
+            batch.addRow(new RecordId(pid, slot));
+        }
+        return slot;
+    }
+
+    /**
+     * Reads a single slot the same way {@link #iterator(Predicate[], int[], TupleDesc)}
+     * reads each slot of the page.
+     *
+     * @return the projected tuple in slot i, or null if the slot is empty or
+     *         the tuple fails one of the predicates
+     */
+    Tuple getTuple(int i, Predicate[] preds, int[] fields, TupleDesc outTd) {
+        return getTuple(i, CompiledPredicate.compileAll(preds), fields, outTd);
+    }
 
+    /**
+     * @see #getTuple(int, Predicate[], int[], TupleDesc)
+     */
+    Tuple getTuple(int i, CompiledPredicate pred, int[] fields, TupleDesc outTd) {
+        if(i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        Tuple t = tuples[i];
+        if(t == null ? !pred.filter(data, slotOffset(i), fieldOffsets) : !pred.filter(t))
+            return null;
+        if(t == null)
+            return readTuple(i, fields, outTd);
+        if(fields == null)
+            return t;
+        Tuple out = new Tuple(outTd);
+        out.setRecordId(t.getRecordId());
+        for(int j = 0; j < fields.length; j++)
+            out.setField(j, t.getField(fields[j]));
+        return out;
+    }
+
+}
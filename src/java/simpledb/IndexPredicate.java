@@ -12,6 +12,8 @@ public class IndexPredicate implements Serializable {
 	
     private Predicate.Op op;
     private Field fieldvalue;
+    private Predicate.Op upperOp;
+    private Field upper;
 
     /**
      * Constructor.
@@ -27,6 +29,26 @@ public class IndexPredicate implements Serializable {
         this.fieldvalue = fvalue;
     }
 
+    /**
+     * Constructor for a range bounded at both ends.
+     *
+     * @param op The lower bound operation; either Predicate.Op.GREATER_THAN
+     *   or Predicate.Op.GREATER_THAN_OR_EQ
+     * @param fvalue The lower bound
+     * @param upperOp The upper bound operation; either Predicate.Op.LESS_THAN
+     *   or Predicate.Op.LESS_THAN_OR_EQ
+     * @param upper The upper bound
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue, Predicate.Op upperOp, Field upper) {
+        if ((op != Predicate.Op.GREATER_THAN && op != Predicate.Op.GREATER_THAN_OR_EQ)
+                || (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ))
+            throw new IllegalArgumentException("not a range: " + op + " and " + upperOp);
+        this.op = op;
+        this.fieldvalue = fvalue;
+        this.upperOp = upperOp;
+        this.upper = upper;
+    }
+
     public Field getField() {
         return fieldvalue;
     }
@@ -35,6 +57,20 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /**
+     * @return the upper bound of a range, or null if there is none
+     */
+    public Field getUpperField() {
+        return upper;
+    }
+
+    /**
+     * @return the upper bound operation of a range, or null if there is none
+     */
+    public Predicate.Op getUpperOp() {
+        return upperOp;
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -43,7 +79,8 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         if (ipd == null)
             return false;
-        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue));
+        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue)
+                && upperOp == ipd.upperOp && (upper == null ? ipd.upper == null : upper.equals(ipd.upper)));
     }
 
 }
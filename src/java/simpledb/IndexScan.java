@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a table through a {@link SecondaryIndex}.
+ * It walks the index entries satisfying an {@link IndexPredicate} in key
+ * order and fetches each tuple they point to from the base table, so a point
+ * or range lookup only touches the heap pages that hold matching tuples.
+ * Like {@link SeqScan}, it can also apply residual predicates and a
+ * projection while reading the heap page.
+ * <p>
+ * When the index covers the scan, that is when every returned field and
+ * every field of a residual predicate is the key or an included field of the
+ * index, the scan is index-only: tuples are built from the index entries and
+ * the heap pages are never read.
+ */
+public class IndexScan extends Operator implements IndexOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private IndexPredicate ipred;
+    private final Predicate[] indexed;
+    private final Predicate[] preds;
+    private final CompiledPredicate compiled;
+    private final int[] fields;
+    private final TupleDesc tableTd;
+    // for an index-only scan, the entry field of each returned field and the
+    // residual predicates over entry fields; null otherwise
+    private final int[] entryFields;
+    private final CompiledPredicate entryPred;
+    private TupleDesc td;
+    private DbFileIterator entries;
+
+    /**
+     * Creates an index scan.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read the table through
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param ipred
+     *            the predicate on the index key, or null to read the whole
+     *            table in key order
+     * @param preds
+     *            residual predicates over field indexes of the table's
+     *            TupleDesc
+     * @param fields
+     *            the table fields to return, in output order, or null for
+     *            all fields
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+            Predicate[] preds, int[] fields) {
+        this(tid, index, tableAlias, ipred, keyPredicates(index, ipred), preds, fields);
+    }
+
+    /**
+     * Creates an index scan whose index predicate stands for the given
+     * predicates on the table, as for a range of {@link CompositeKey}s.
+     *
+     * @param indexed
+     *            the predicates over field indexes of the table's TupleDesc
+     *            that ipred selects exactly
+     * @see #IndexScan(TransactionId, SecondaryIndex, String, IndexPredicate,
+     *      Predicate[], int[])
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+            Predicate[] indexed, Predicate[] preds, int[] fields) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+        this.indexed = indexed;
+        this.preds = preds;
+        this.compiled = CompiledPredicate.compileAll(preds);
+        this.fields = fields;
+        this.tableTd = HeapFile.projectTupleDesc(Database.getCatalog().getTupleDesc(index.getTableId()), fields);
+
+        int[] entryFields = new int[tableTd.numFields()];
+        Predicate[] entryPreds = new Predicate[preds.length];
+        boolean covered = true;
+        for (int i = 0; i < entryFields.length && covered; i++) {
+            entryFields[i] = index.entryField(fields == null ? i : fields[i]);
+            covered = entryFields[i] >= 0;
+        }
+        for (int i = 0; i < preds.length && covered; i++) {
+            int f = index.entryField(preds[i].getField());
+            entryPreds[i] = new Predicate(f, preds[i].getOp(), preds[i].getOperand());
+            covered = f >= 0;
+        }
+        this.entryFields = covered ? entryFields : null;
+        this.entryPred = covered ? CompiledPredicate.compileAll(entryPreds) : null;
+    }
+
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+        this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred, new Predicate[0], null);
+    }
+
+    /**
+     * @return the index this scan reads through
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the index key, or null for a full index scan
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return the predicates on the table that the index predicate selects
+     */
+    public Predicate[] getIndexedPredicates() {
+        return indexed;
+    }
+
+    /**
+     * @return the table predicates equivalent to a predicate on the key of a
+     *         single-field index; none for a composite key
+     */
+    private static Predicate[] keyPredicates(SecondaryIndex index, IndexPredicate ipred) {
+        if (ipred == null || index.isComposite())
+            return new Predicate[0];
+        Predicate lower = new Predicate(index.keyField(), ipred.getOp(), ipred.getField());
+        if (ipred.getUpperOp() == null)
+            return new Predicate[] { lower };
+        return new Predicate[] { lower,
+                new Predicate(index.keyField(), ipred.getUpperOp(), ipred.getUpperField()) };
+    }
+
+    /**
+     * @return the residual predicates applied to each fetched tuple
+     */
+    public Predicate[] getPushedPredicates() {
+        return preds;
+    }
+
+    /**
+     * @return the table fields this scan returns, or null for all fields
+     */
+    public int[] getProjection() {
+        return fields;
+    }
+
+    /**
+     * @return true if this scan reads only the index and never the heap
+     */
+    public boolean isIndexOnly() {
+        return entryFields != null;
+    }
+
+    /**
+     * @return the name of the table this scan reads
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this scan reads
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        BTreeFile file = index.getFile();
+        entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+        entries.open();
+        super.open();
+    }
+
+    public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        this.ipred = ipred;
+        open();
+    }
+
+    public void close() {
+        super.close();
+        if (entries != null)
+            entries.close();
+        entries = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        close();
+        open(ipred);
+    }
+
+    /**
+     * @return the TupleDesc of the table, projected and with field names
+     *         prefixed by the table alias
+     */
+    public TupleDesc getTupleDesc() {
+        if (td == null) {
+            Type[] types = new Type[tableTd.numFields()];
+            String[] names = new String[tableTd.numFields()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = tableTd.getFieldType(i);
+                names[i] = tableAlias + "." + tableTd.getFieldName(i);
+            }
+            td = new TupleDesc(types, names);
+        }
+        return td;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (entryFields != null)
+            return fetchFromIndex();
+        while (entries.hasNext()) {
+            RecordId rid = index.recordIdOf(entries.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            Tuple t = page.getTuple(rid.getTupleNumber(), compiled, fields, tableTd);
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Build the next tuple of an index-only scan from the index entries
+     */
+    private Tuple fetchFromIndex() throws DbException, TransactionAbortedException {
+        while (entries.hasNext()) {
+            Tuple entry = entries.next();
+            if (!entryPred.filter(entry))
+                continue;
+            Tuple t = new Tuple(tableTd);
+            for (int i = 0; i < entryFields.length; i++)
+                t.setField(i, entry.getField(entryFields[i]));
+            t.setRecordId(index.recordIdOf(entry));
+            return t;
+        }
+        return null;
+    }
+
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    public void setChildren(OpIterator[] children) {
+        // an index scan is a leaf of the plan
+    }
+}
@@ -4,6 +4,12 @@ package simpledb;
  */
 public class IntHistogram {
 
+    private final int[] counts;
+    private final int min;
+    private final int max;
+    private final double width;
+    private int ntups;
+
     /**
      * Create a new IntHistogram.
      * 
@@ -21,7 +27,23 @@ public class IntHistogram {
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+        this.min = min;
+        this.max = max;
+        // never use more buckets than there are distinct values
+        long range = (long) max - min + 1;
+        int n = (int) Math.max(1, Math.min(buckets, range));
+        this.counts = new int[n];
+        this.width = (double) range / n;
+    }
+
+    private int bucketOf(int v) {
+        int b = (int) ((v - (double) min) / width);
+        return Math.min(b, counts.length - 1);
+    }
+
+    /** @return the inclusive lower bound of bucket b */
+    private double bucketLeft(int b) {
+        return min + b * width;
     }
 
     /**
@@ -29,7 +51,10 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	// some code goes here
+        if (v < min || v > max)
+            return;
+        counts[bucketOf(v)]++;
+        ntups++;
     }
 
     /**
@@ -43,9 +68,48 @@ public class IntHistogram {
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
+        if (ntups == 0)
+            return 0.0;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equalsFraction(v);
+        case NOT_EQUALS:
+            return 1.0 - equalsFraction(v);
+        case GREATER_THAN:
+            return greaterFraction(v);
+        case GREATER_THAN_OR_EQ:
+            return greaterFraction(v) + equalsFraction(v);
+        case LESS_THAN:
+            return 1.0 - greaterFraction(v) - equalsFraction(v);
+        case LESS_THAN_OR_EQ:
+            return 1.0 - greaterFraction(v);
+        default:
+            throw new UnsupportedOperationException("unsupported operator " + op);
+        }
+    }
+
+    /** Fraction of values equal to v, assuming a uniform spread within the bucket. */
+    private double equalsFraction(int v) {
+        if (v < min || v > max)
+            return 0.0;
+        int b = bucketOf(v);
+        return counts[b] / Math.max(width, 1.0) / ntups;
+    }
 
-    	// some code goes here
-        return -1.0;
+    /** Fraction of values strictly greater than v. */
+    private double greaterFraction(int v) {
+        if (v < min)
+            return 1.0;
+        if (v >= max)
+            return 0.0;
+        int b = bucketOf(v);
+        double right = bucketLeft(b + 1);
+        double part = Math.max(0.0, (right - v - 1) / Math.max(width, 1.0));
+        double greater = counts[b] * Math.min(part, 1.0);
+        for (int i = b + 1; i < counts.length; i++)
+            greater += counts[i];
+        return greater / ntups;
     }
     
     /**
@@ -58,15 +122,23 @@ public class IntHistogram {
      * */
     public double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+        if (ntups == 0)
+            return 1.0;
+        // chance that two random values land on the same value
+        double sum = 0.0;
+        for (int c : counts)
+            sum += (double) c * c / Math.max(width, 1.0);
+        return sum / ((double) ntups * ntups);
     }
     
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
-        // some code goes here
-        return null;
+        StringBuilder sb = new StringBuilder("IntHistogram(min=" + min + ", max=" + max
+                + ", ntups=" + ntups + ")");
+        for (int b = 0; b < counts.length; b++)
+            sb.append(String.format("%n  [%.1f, %.1f): %d", bucketLeft(b), bucketLeft(b + 1), counts[b]));
+        return sb.toString();
     }
 }
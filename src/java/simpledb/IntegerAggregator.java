@@ -14,6 +14,7 @@ public class IntegerAggregator implements Aggregator {
 
     private Map<Field, Integer> groupMap;
     private Map<Field, List<Integer>> avgMap;
+    private Map<Field, int[]> scMap;
 
     private static final long serialVersionUID = 1L;
 
@@ -40,6 +41,7 @@ public class IntegerAggregator implements Aggregator {
         this.what = what;
         this.groupMap = new HashMap<>();
         this.avgMap = new HashMap<>();
+        this.scMap = new HashMap<>();
     }
 
     /**
@@ -56,45 +58,88 @@ public class IntegerAggregator implements Aggregator {
         int newValue = afield.getValue();
         if(gbfield != null && gbfield.getType() != this.gbfieldType)
             throw new IllegalArgumentException("given tuple's gbfieldType is wrong");
+        else if(this.what == Op.SC_AVG) {
+            // input is a partial (sum, count) pair produced by SUM_COUNT
+            int count = ((IntField) tup.getField(this.afield + 1)).getValue();
+            mergeSumCount(gbfield, newValue, count);
+        } else
+            mergeValue(gbfield, newValue);
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregate. The aggregate
+     * column is read from the batch's primitive int column, so only the
+     * group-by value is boxed into a Field.
+     *
+     * @param batch
+     *            a batch whose rows contain an aggregate field and a group-by
+     *            field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        if(this.what == Op.SC_AVG) {
+            for(int i = 0; i < batch.numSelected(); i++)
+                mergeTupleIntoGroup(batch.getTuple(batch.selectedRow(i)));
+            return;
+        }
+        if(this.gbfield != NO_GROUPING && batch.getTupleDesc().getFieldType(this.gbfield) != this.gbfieldType)
+            throw new IllegalArgumentException("given batch's gbfieldType is wrong");
+        int[] values = batch.getColumn(this.afield);
+        for(int i = 0; i < batch.numSelected(); i++) {
+            int row = batch.selectedRow(i);
+            Field gbfield = this.gbfield == NO_GROUPING ? null : batch.getField(this.gbfield, row);
+            mergeValue(gbfield, values[row]);
+        }
+    }
+
+    private void mergeValue(Field gbfield, int newValue) {
+        switch (this.what){
+            case MIN:
+                if(!this.groupMap.containsKey(gbfield))
+                    this.groupMap.put(gbfield, newValue);
+                else
+                    this.groupMap.put(gbfield, Math.min(newValue, this.groupMap.get(gbfield)));
+                break;
+            case MAX:
+                if(!this.groupMap.containsKey(gbfield))
+                    this.groupMap.put(gbfield, newValue);
+                else
+                    this.groupMap.put(gbfield, Math.max(newValue, this.groupMap.get(gbfield)));
+                break;
+            case COUNT:
+                if(!this.groupMap.containsKey(gbfield))
+                    this.groupMap.put(gbfield, 1);
+                else
+                    this.groupMap.put(gbfield, this.groupMap.get(gbfield) + 1);
+                break;
+            case SUM:
+                if(!this.groupMap.containsKey(gbfield))
+                    this.groupMap.put(gbfield, newValue);
+                else
+                    this.groupMap.put(gbfield, this.groupMap.get(gbfield) + newValue);
+                break;
+            case AVG:
+                if(!this.avgMap.containsKey(gbfield)) {
+                    List<Integer> list = new ArrayList<>();
+                    list.add(newValue);
+                    this.avgMap.put(gbfield, list);
+                } else
+                    this.avgMap.get(gbfield).add(newValue);
+                break;
+            case SUM_COUNT:
+                mergeSumCount(gbfield, newValue, 1);
+                break;
+            default:
+                throw new IllegalArgumentException("aggregate function not supported");
+        }
+    }
+
+    private void mergeSumCount(Field gbfield, int sum, int count) {
+        int[] sc = this.scMap.get(gbfield);
+        if(sc == null)
+            this.scMap.put(gbfield, new int[] {sum, count});
         else {
-            switch (this.what){
-                case MIN:
-                    if(!this.groupMap.containsKey(gbfield))
-                        this.groupMap.put(gbfield, newValue);
-                    else
-                        this.groupMap.put(gbfield, Math.min(newValue, this.groupMap.get(gbfield)));
-                    break;
-                case MAX:
-                    if(!this.groupMap.containsKey(gbfield))
-                        this.groupMap.put(gbfield, newValue);
-                    else
-                        this.groupMap.put(gbfield, Math.max(newValue, this.groupMap.get(gbfield)));
-                    break;
-                case COUNT:
-                    if(!this.groupMap.containsKey(gbfield))
-                        this.groupMap.put(gbfield, 1);
-                    else
-                        this.groupMap.put(gbfield, this.groupMap.get(gbfield) + 1);
-                    break;
-                case SUM:
-                    if(!this.groupMap.containsKey(gbfield))
-                        this.groupMap.put(gbfield, newValue);
-                    else
-                        this.groupMap.put(gbfield, this.groupMap.get(gbfield) + newValue);
-                    break;
-                case AVG:
-                    if(!this.avgMap.containsKey(gbfield)) {
-                        List<Integer> list = new ArrayList<>();
-                        list.add(newValue);
-                        this.avgMap.put(gbfield, list);
-                    } else
-                        this.avgMap.get(gbfield).add(newValue);
-                    break;
-                case SC_AVG:    break;
-                case SUM_COUNT: break;
-                default:
-                    throw new IllegalArgumentException("aggregate function not supported");
-            }
+            sc[0] += sum;
+            sc[1] += count;
         }
     }
 
@@ -104,23 +149,39 @@ public class IntegerAggregator implements Aggregator {
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor. SUM_COUNT returns (groupVal, sumVal, countVal)
+     *         so that its output can be merged by an SC_AVG aggregator.
      */
     public OpIterator iterator() {
         // some code goes here
-        return new IntAggIterator(groupMap, avgMap, gbfieldType, what);
+        return new IntAggIterator(groupMap, avgMap, scMap, gbfieldType, what);
     }
 }
 class IntAggIterator extends AggregateIterator {
 
     private Iterator<Map.Entry<Field, List<Integer>>> avgIter;
     private Map<Field, List<Integer>> avgMap;
+    private Iterator<Map.Entry<Field, int[]>> scIter;
+    private Map<Field, int[]> scMap;
     private Aggregator.Op what;
 
-    public IntAggIterator(Map<Field, Integer> groupMap, Map<Field, List<Integer>> avgMap, Type gbfieldtype, Aggregator.Op what) {
+    public IntAggIterator(Map<Field, Integer> groupMap, Map<Field, List<Integer>> avgMap, Map<Field, int[]> scMap,
+                          Type gbfieldtype, Aggregator.Op what) {
         super(groupMap, gbfieldtype);
         this.avgMap = avgMap;
+        this.scMap = scMap;
         this.what = what;
+        if(what.equals(Aggregator.Op.SUM_COUNT)) {
+            if(gbfieldtype == null)
+                this.td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE}, new String[] {"sumVal", "countVal"});
+            else
+                this.td = new TupleDesc(new Type[] {gbfieldtype, Type.INT_TYPE, Type.INT_TYPE},
+                        new String[] {"groupVal", "sumVal", "countVal"});
+        }
+    }
+
+    private boolean usesSumCount() {
+        return what.equals(Aggregator.Op.SUM_COUNT) || what.equals(Aggregator.Op.SC_AVG);
     }
 
     @Override
@@ -128,12 +189,16 @@ class IntAggIterator extends AggregateIterator {
         super.open();
         if(what.equals(Aggregator.Op.AVG))
             avgIter = avgMap.entrySet().iterator();
+        else if(usesSumCount())
+            scIter = scMap.entrySet().iterator();
     }
 
     @Override
     public boolean hasNext() throws DbException, TransactionAbortedException {
         if(what.equals(Aggregator.Op.AVG))
             return avgIter.hasNext();
+        else if(usesSumCount())
+            return scIter.hasNext();
         else
             return super.hasNext();
     }
@@ -156,6 +221,20 @@ class IntAggIterator extends AggregateIterator {
                 tuple.setField(1, new IntField(res));
             }
             return tuple;
+        } else if(usesSumCount()) {
+            Map.Entry<Field, int[]> entry = scIter.next();
+            Field f = entry.getKey();
+            int[] sc = entry.getValue();
+            Tuple tuple = new Tuple(td);
+            int i = 0;
+            if(f != null)
+                tuple.setField(i++, f);
+            if(what.equals(Aggregator.Op.SUM_COUNT)) {
+                tuple.setField(i++, new IntField(sc[0]));
+                tuple.setField(i, new IntField(sc[1]));
+            } else
+                tuple.setField(i, new IntField(sc[0] / sc[1]));
+            return tuple;
         } else
             return super.next();
     }
@@ -163,6 +242,10 @@ class IntAggIterator extends AggregateIterator {
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
         super.rewind();
+        if(what.equals(Aggregator.Op.AVG))
+            avgIter = avgMap.entrySet().iterator();
+        else if(usesSumCount())
+            scIter = scMap.entrySet().iterator();
     }
 
     @Override
@@ -8,6 +8,7 @@ import java.util.*;
 public class Join extends Operator {
 
     private final JoinPredicate p;
+    private CompiledJoinPredicate compiled;
     private OpIterator child1;
     private OpIterator child2;
     private Tuple temp;
@@ -70,6 +71,7 @@ public class Join extends Operator {
         // some code goes here
         child1.open();
         child2.open();
+        compiled = CompiledJoinPredicate.compile(p, child1.getTupleDesc().getFieldType(p.getField1()));
         super.open();
     }
 
@@ -102,7 +104,7 @@ public class Join extends Operator {
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
      * 
      * @return The next matching tuple.
-     * @see JoinPredicate#filter
+     * @see CompiledJoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -110,7 +112,7 @@ public class Join extends Operator {
             if(child1.hasNext() && temp == null)    temp = child1.next();
             while(child2.hasNext()) {
                 Tuple t = child2.next();
-                if(p.filter(temp, t)) {
+                if(compiled.filter(temp, t)) {
                     TupleDesc td1 = child1.getTupleDesc();
                     TupleDesc td2 = child2.getTupleDesc();
                     TupleDesc td = TupleDesc.merge(td1, td2);
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinFilter applies a join predicate to the tuples of a plan that already
+ * joins both of its tables, comparing two fields of the same tuple. It
+ * carries out the other predicates of a query that joins the same two
+ * tables on more than one condition.
+ */
+public class JoinFilter extends Operator {
+
+    private final JoinPredicate p;
+    private final CompiledJoinPredicate compiled;
+    private OpIterator child;
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor accepts a predicate to apply and a child operator to read
+     * tuples to filter from.
+     *
+     * @param p
+     *            The predicate to filter tuples with; both of its fields are
+     *            fields of the child's tuples
+     * @param child
+     *            The child operator
+     */
+    public JoinFilter(JoinPredicate p, OpIterator child) {
+        this.p = p;
+        this.compiled = CompiledJoinPredicate.compile(p, child.getTupleDesc().getFieldType(p.getField1()));
+        this.child = child;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        child.close();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * @return The next tuple whose fields satisfy the predicate, or null if
+     *         there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple tuple = child.next();
+            if (compiled.filter(tuple, tuple))
+                return tuple;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
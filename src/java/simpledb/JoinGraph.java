@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The join graph of a query, used by {@link JoinOptimizer}: one vertex per
+ * relation and one edge per {@link LogicalJoinNode}. A subquery joined with
+ * a {@link LogicalSubplanJoinNode} gets a vertex of its own, with a null
+ * alias. Vertices are numbered in breadth-first order, and a set of
+ * relations is a bitmask over the vertex numbers, so the graph holds at most
+ * {@link #MAX_RELATIONS} relations.
+ * <p>
+ * {@link #enumerateCcp} lists the pairs of disjoint, connected sets of
+ * relations joined by at least one edge, as in DPccp (Moerkotte and
+ * Neumann, "Analysis of two existing and one new dynamic programming
+ * algorithm for the generation of optimal bushy join trees without cross
+ * products", VLDB 2006). Each such pair is listed once, and only after
+ * every pair making up either of its halves, so a dynamic program can fill
+ * its plan table in the order the pairs arrive and never considers a cross
+ * product.
+ */
+class JoinGraph {
+
+    /** The most relations a graph can hold, one per bit of a long */
+    static final int MAX_RELATIONS = 64;
+
+    /**
+     * Receives the pairs listed by {@link JoinGraph#enumerateCcp}
+     */
+    interface PairVisitor {
+        void visit(long s1, long s2) throws ParsingException;
+    }
+
+    private final String[] aliases;
+    private final long[] neighbors;
+    private final LogicalJoinNode[] joins;
+    private final long[] t1Bits;
+    private final long[] t2Bits;
+
+    /**
+     * @param joinList
+     *            the joins of the query
+     * @throws ParsingException
+     *             if the joins do not connect all of their relations, or
+     *             there are more than {@link #MAX_RELATIONS} of them
+     */
+    JoinGraph(List<LogicalJoinNode> joinList) throws ParsingException {
+        // number the relations in order of appearance first
+        ArrayList<String> found = new ArrayList<String>();
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        int[] ends1 = new int[joinList.size()];
+        int[] ends2 = new int[joinList.size()];
+        for (int i = 0; i < joinList.size(); i++) {
+            LogicalJoinNode j = joinList.get(i);
+            ends1[i] = vertex(j.t1Alias, found, index);
+            ends2[i] = j instanceof LogicalSubplanJoinNode ? vertex(null, found, index)
+                    : vertex(j.t2Alias, found, index);
+        }
+        int n = found.size();
+        if (n > MAX_RELATIONS)
+            throw new ParsingException("Cannot order joins over " + n + " relations");
+        ArrayList<ArrayList<Integer>> adjacent = new ArrayList<ArrayList<Integer>>();
+        for (int v = 0; v < n; v++)
+            adjacent.add(new ArrayList<Integer>());
+        for (int i = 0; i < ends1.length; i++) {
+            adjacent.get(ends1[i]).add(ends2[i]);
+            adjacent.get(ends2[i]).add(ends1[i]);
+        }
+
+        // then renumber them breadth-first, which DPccp relies on
+        int[] number = new int[n];
+        Arrays.fill(number, -1);
+        int[] queue = new int[n];
+        int tail = 0;
+        if (n > 0) {
+            number[0] = 0;
+            queue[tail++] = 0;
+        }
+        for (int head = 0; head < tail; head++) {
+            for (int w : adjacent.get(queue[head])) {
+                if (number[w] == -1) {
+                    number[w] = tail;
+                    queue[tail++] = w;
+                }
+            }
+        }
+        if (tail < n)
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
+
+        aliases = new String[n];
+        neighbors = new long[n];
+        for (int v = 0; v < n; v++)
+            aliases[number[v]] = found.get(v);
+        joins = joinList.toArray(new LogicalJoinNode[joinList.size()]);
+        t1Bits = new long[joins.length];
+        t2Bits = new long[joins.length];
+        for (int i = 0; i < joins.length; i++) {
+            t1Bits[i] = 1L << number[ends1[i]];
+            t2Bits[i] = 1L << number[ends2[i]];
+            neighbors[number[ends1[i]]] |= t2Bits[i];
+            neighbors[number[ends2[i]]] |= t1Bits[i];
+        }
+    }
+
+    private static int vertex(String alias, ArrayList<String> found, HashMap<String, Integer> index) {
+        if (alias != null && index.containsKey(alias))
+            return index.get(alias);
+        found.add(alias);
+        if (alias != null)
+            index.put(alias, found.size() - 1);
+        return found.size() - 1;
+    }
+
+    /**
+     * @return the number of relations
+     */
+    int numRelations() {
+        return aliases.length;
+    }
+
+    /**
+     * @return the alias of relation v, or null for a subquery
+     */
+    String alias(int v) {
+        return aliases[v];
+    }
+
+    /**
+     * @return the set holding every relation
+     */
+    long all() {
+        return aliases.length == MAX_RELATIONS ? -1L : (1L << aliases.length) - 1;
+    }
+
+    /**
+     * @return the number of joins
+     */
+    int numJoins() {
+        return joins.length;
+    }
+
+    /**
+     * @return the i-th join, as given to the constructor
+     */
+    LogicalJoinNode join(int i) {
+        return joins[i];
+    }
+
+    /**
+     * @return the set holding the relation on the t1 side of the i-th join
+     */
+    long t1Of(int i) {
+        return t1Bits[i];
+    }
+
+    /**
+     * @return the set holding the relation on the t2 side of the i-th join
+     */
+    long t2Of(int i) {
+        return t2Bits[i];
+    }
+
+    /**
+     * @return true if the i-th join joins a relation of s1 with one of s2
+     */
+    boolean connects(int i, long s1, long s2) {
+        return ((t1Bits[i] & s1) != 0 && (t2Bits[i] & s2) != 0)
+                || ((t1Bits[i] & s2) != 0 && (t2Bits[i] & s1) != 0);
+    }
+
+    /**
+     * @return the relations joined with a relation of s, other than those
+     *         in s or x
+     */
+    long neighborhood(long s, long x) {
+        long n = 0;
+        for (long rest = s; rest != 0; rest &= rest - 1)
+            n |= neighbors[Long.numberOfTrailingZeros(rest)];
+        return n & ~s & ~x;
+    }
+
+    /**
+     * List every pair of disjoint, connected sets of relations that are
+     * joined to each other, each pair once and after all of the pairs that
+     * make up either half. The half holding the lowest numbered relation is
+     * passed first.
+     */
+    void enumerateCcp(PairVisitor visitor) throws ParsingException {
+        for (int i = aliases.length - 1; i >= 0; i--) {
+            long v = 1L << i;
+            enumerateCmp(v, visitor);
+            enumerateCsgRec(v, v | (v - 1), visitor);
+        }
+    }
+
+    /**
+     * Extend the connected set s with the relations of its neighborhood not
+     * in x, listing the pairs of each extension before recursing into it.
+     */
+    private void enumerateCsgRec(long s, long x, PairVisitor visitor) throws ParsingException {
+        long n = neighborhood(s, x);
+        if (n == 0)
+            return;
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n)
+            enumerateCmp(s | sub, visitor);
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n)
+            enumerateCsgRec(s | sub, x | n, visitor);
+    }
+
+    /**
+     * List the pairs of the connected set s1 with the connected sets joined
+     * to it whose relations all come after the lowest numbered one of s1.
+     */
+    private void enumerateCmp(long s1, PairVisitor visitor) throws ParsingException {
+        long low = Long.lowestOneBit(s1);
+        long x = (low | (low - 1)) | s1;
+        long n = neighborhood(s1, x);
+        for (int i = 63 - Long.numberOfLeadingZeros(n); n != 0 && i >= 0; i--) {
+            long v = 1L << i;
+            if ((n & v) == 0)
+                continue;
+            visitor.visit(s1, v);
+            enumerateCmpRec(s1, v, x | (n & (v | (v - 1))), visitor);
+        }
+    }
+
+    private void enumerateCmpRec(long s1, long s, long x, PairVisitor visitor) throws ParsingException {
+        long n = neighborhood(s, x);
+        if (n == 0)
+            return;
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n)
+            visitor.visit(s1, s | sub);
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n)
+            enumerateCmpRec(s1, s | sub, x | n, visitor);
+    }
+}
@@ -11,8 +11,16 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** The most relations {@link #orderJoins} can plan with exhaustive dynamic programming */
+    static final int MAX_DP_RELATIONS = 20;
+
+    /** The default for {@link #setDpThreshold}, past which exhaustive search gets slow */
+    public static final int DEFAULT_DP_THRESHOLD = 15;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    private int dpThreshold = DEFAULT_DP_THRESHOLD;
+    private boolean bushy = false;
 
     /**
      * Constructor
@@ -68,12 +76,41 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else
+            j = new Join(p, plan1, plan2);
 
         return j;
 
     }
 
+    /**
+     * Return an iterator applying a join to a plan that already joins both of
+     * its tables, as happens for the second and later predicates joining the
+     * same two tables.
+     * 
+     * @param lj
+     *            The join being applied
+     * @param plan
+     *            The plan holding both of its tables
+     */
+    public static OpIterator instantiateJoinFilter(LogicalJoinNode lj, OpIterator plan)
+            throws ParsingException {
+        int t1id, t2id;
+        try {
+            t1id = plan.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        try {
+            t2id = plan.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f2QuantifiedName);
+        }
+        return new JoinFilter(new JoinPredicate(t1id, lj.p, t2id), plan);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -106,12 +143,14 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // hash join: scan each side once, building a table from one and
+            // probing it with the other
+            return cost1 + cost2 + (double) card1 + card2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // nested loops: scan the outer once and the inner once per outer
+            // tuple, applying the predicate to every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
         }
     }
 
@@ -148,54 +187,76 @@ public class JoinOptimizer {
     }
 
     /**
-     * Estimate the join cardinality of two tables.
+     * Estimate the join cardinality of two tables. An equi-join on a key
+     * matches each tuple of the other side at most once; otherwise its
+     * cardinality is |R|*|S|/max(ndv(R), ndv(S)), from the distinct values
+     * {@link TableStats#estimateDistinct} finds in the join fields.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        double card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            // a key matches at most one tuple of the other side
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else {
+                // each value of the side with fewer distinct values is
+                // assumed to match the other side, spread evenly over its
+                // distinct values
+                int ndv1 = estimateDistinct(table1Alias, field1PureName, card1, stats, tableAliasToId);
+                int ndv2 = estimateDistinct(table2Alias, field2PureName, card2, stats, tableAliasToId);
+                if (ndv1 > 0 && ndv2 > 0)
+                    card = (double) card1 * card2 / Math.max(ndv1, ndv2);
+                else
+                    card = Math.max(card1, card2);
+            }
+        } else {
+            card = 0.3 * card1 * card2;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * @return the number of distinct values of a field among card tuples of
+     *         a table, or 0 if the table has no statistics
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    private static int estimateDistinct(String alias, String fieldPureName, int card,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId.get(alias);
+        if (tableId == null)
+            return 0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return 0;
         }
-
-        return els;
-
+        // a filter keeps at most card of the values
+        return Math.min(s.estimateDistinct(field), Math.max(card, 1));
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * Up to {@link #getDpThreshold()} relations, the optimizer is the
+     * Selinger dynamic program over sets of relations, with each set a
+     * bitmask over the {@link JoinGraph} and the best plan for each set kept
+     * in an array indexed by the mask. The connected pairs of sets are
+     * listed by DPccp, so no cross products are considered and no
+     * disconnected set is ever looked at. Plans are left-deep unless
+     * {@link #setBushy} turns on bushy plans, in which two branches of a
+     * snowflake can be joined separately and then combined. Larger queries are planned
+     * greedily instead, see {@link #greedyPlan}.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -207,8 +268,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed. Each join combines the plans
+     *         holding its two tables, so that for a bushy plan both may
+     *         already be joins themselves.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,175 +280,343 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        if (joins.isEmpty())
+            return joins;
+        JoinGraph g = new JoinGraph(joins);
+        JoinPlan[] scans = new JoinPlan[g.numRelations()];
+        for (int v = 0; v < g.numRelations(); v++) {
+            String alias = g.alias(v);
+            if (alias == null) {
+                // a subquery, costed by the join it appears in
+                scans[v] = new JoinPlan(1L << v, 0, 0);
+                continue;
+            }
+            String name = tableName(alias);
+            TableStats ts = stats.get(name);
+            Double sel = filterSelectivities.get(alias);
+            if (ts == null)
+                throw new ParsingException("No statistics for table " + name);
+            if (sel == null)
+                throw new ParsingException("No filter selectivity for table " + alias);
+            scans[v] = new JoinPlan(1L << v, ts.estimateScanCost(), ts.estimateTableCardinality(sel));
+        }
+        JoinCoster coster = new JoinCoster(g, stats);
+
+        JoinPlan best = g.numRelations() <= dpThreshold ? dpPlan(g, coster, scans)
+                : greedyPlan(g, coster, scans);
+        if (best == null)
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        PlanCache pc = explain ? new PlanCache() : null;
+        coster.appendJoins(best, order, pc);
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
+    }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+    /**
+     * @return true if {@link #orderJoins} considers bushy plans, false if
+     *         it only considers left-deep ones
+     */
+    public boolean isBushy() {
+        return bushy;
     }
 
-    // ===================== Private Methods =================================
+    /**
+     * Set whether {@link #orderJoins} considers bushy plans, in which the
+     * inner of a join may be a join itself, or only left-deep ones. Plans
+     * for queries too large for dynamic programming are always left-deep.
+     * Plans are left-deep by default.
+     */
+    public void setBushy(boolean bushy) {
+        this.bushy = bushy;
+    }
+
+    /**
+     * @return the most relations {@link #orderJoins} plans exhaustively
+     */
+    public int getDpThreshold() {
+        return dpThreshold;
+    }
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * Set the most relations {@link #orderJoins} plans exhaustively; larger
+     * queries are planned greedily.
      * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * @param dpThreshold
+     *            at most {@link #MAX_DP_RELATIONS}
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    public void setDpThreshold(int dpThreshold) {
+        if (dpThreshold > MAX_DP_RELATIONS)
+            throw new IllegalArgumentException("dynamic programming is limited to " + MAX_DP_RELATIONS
+                    + " relations");
+        this.dpThreshold = dpThreshold;
+    }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+    // ===================== Private Methods =================================
+
+    private String tableName(String alias) throws ParsingException {
+        Integer id = this.p.getTableId(alias);
+        if (id == null)
+            throw new ParsingException("Unknown table " + alias);
+        return Database.getCatalog().getTableName(id);
+    }
+
+    /**
+     * @return the cheapest plan joining all of the relations of g, found by
+     *         dynamic programming over the pairs listed by
+     *         {@link JoinGraph#enumerateCcp}
+     */
+    private JoinPlan dpPlan(JoinGraph g, final JoinCoster coster, JoinPlan[] scans) throws ParsingException {
+        final JoinPlan[] best = new JoinPlan[1 << g.numRelations()];
+        for (JoinPlan scan : scans)
+            best[(int) scan.relations] = scan;
+        g.enumerateCcp(new JoinGraph.PairVisitor() {
+            public void visit(long s1, long s2) {
+                // left-deep plans join one relation at a time
+                if (!bushy && Long.bitCount(s1) > 1 && Long.bitCount(s2) > 1)
+                    return;
+                int s = (int) (s1 | s2);
+                best[s] = coster.cheaper(best[(int) s1], best[(int) s2], !bushy, best[s]);
             }
+        });
+        return best[(int) g.all()];
+    }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+    /**
+     * Plan a join of too many relations to plan exhaustively, in time
+     * polynomial in the number of relations. From each starting relation,
+     * a left-deep plan is grown by always joining the relation that makes
+     * the cheapest plan so far; the cheapest of these is then refined by
+     * swapping adjacent relations in its join order for as long as that
+     * makes it cheaper. The costs come from the same
+     * {@link #estimateJoinCost} and {@link #estimateJoinCardinality} as the
+     * exhaustive search.
+     * 
+     * @return the plan, or null if no relation can start one
+     */
+    private JoinPlan greedyPlan(JoinGraph g, JoinCoster coster, JoinPlan[] scans) {
+        int n = g.numRelations();
+        JoinPlan best = null;
+        for (int start = 0; start < n; start++) {
+            JoinPlan plan = scans[start];
+            while (plan != null && plan.relations != g.all()) {
+                JoinPlan next = null;
+                long candidates = g.neighborhood(plan.relations, 0);
+                for (long rest = candidates; rest != 0; rest &= rest - 1)
+                    next = coster.cheaper(plan, scans[Long.numberOfTrailingZeros(rest)], true, next);
+                plan = next;
+            }
+            if (plan != null && (best == null || plan.cost < best.cost))
+                best = plan;
+        }
+        if (best == null)
+            return null;
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        int[] order = new int[n];
+        relationOrder(best, order, 0);
+        boolean improved = true;
+        for (int pass = 0; improved && pass < n; pass++) {
+            improved = false;
+            for (int i = 0; i + 1 < n; i++) {
+                swap(order, i, i + 1);
+                JoinPlan plan = leftDeep(coster, scans, order);
+                if (plan != null && plan.cost < best.cost) {
+                    best = plan;
+                    improved = true;
+                } else {
+                    swap(order, i, i + 1);
+                }
             }
         }
+        return best;
+    }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+    /**
+     * Store the relations of a left-deep plan in the order it joins them,
+     * starting at order[k].
+     * 
+     * @return the position after the last relation stored
+     */
+    private static int relationOrder(JoinPlan plan, int[] order, int k) {
+        if (plan.join == null) {
+            order[k] = Long.numberOfTrailingZeros(plan.relations);
+            return k + 1;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
+        boolean outerFirst = Long.bitCount(plan.outer.relations) >= Long.bitCount(plan.inner.relations);
+        k = relationOrder(outerFirst ? plan.outer : plan.inner, order, k);
+        return relationOrder(outerFirst ? plan.inner : plan.outer, order, k);
+    }
 
-        CostCard cc = new CostCard();
+    private static void swap(int[] a, int i, int j) {
+        int tmp = a[i];
+        a[i] = a[j];
+        a[j] = tmp;
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
+    /**
+     * @return the cheapest left-deep plan joining the relations in the given
+     *         order, or null if some relation does not join with those
+     *         before it
+     */
+    private static JoinPlan leftDeep(JoinCoster coster, JoinPlan[] scans, int[] order) {
+        JoinPlan plan = scans[order[0]];
+        for (int i = 1; plan != null && i < order.length; i++)
+            plan = coster.cheaper(plan, scans[order[i]], true, null);
+        return plan;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * A plan joining a connected set of relations: a scan of one relation,
+     * or a join of an outer and an inner plan
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private static class JoinPlan {
+        final long relations;
+        final double cost;
+        final int card;
+        /** true if some join in the plan is on a primary key */
+        final boolean hasPkey;
+        final JoinPlan outer;
+        final JoinPlan inner;
+        final LogicalJoinNode join;
+
+        JoinPlan(long relations, double cost, int card) {
+            this(relations, cost, card, false, null, null, null);
+        }
+
+        JoinPlan(long relations, double cost, int card, boolean hasPkey, JoinPlan outer, JoinPlan inner,
+                LogicalJoinNode join) {
+            this.relations = relations;
+            this.cost = cost;
+            this.card = card;
+            this.hasPkey = hasPkey;
+            this.outer = outer;
+            this.inner = inner;
+            this.join = join;
+        }
+    }
+
+    /**
+     * Costs the joins of two plans over the joins of a {@link JoinGraph}.
+     */
+    private class JoinCoster {
+        final JoinGraph g;
+        final HashMap<String, TableStats> stats;
+
+        // each join with its inner and outer swapped, and whether each side
+        // is joined on a primary key
+        final LogicalJoinNode[] swapped;
+        final boolean[] pkey1;
+        final boolean[] pkey2;
+
+        JoinCoster(JoinGraph g, HashMap<String, TableStats> stats) {
+            this.g = g;
+            this.stats = stats;
+            swapped = new LogicalJoinNode[g.numJoins()];
+            pkey1 = new boolean[g.numJoins()];
+            pkey2 = new boolean[g.numJoins()];
+            for (int i = 0; i < g.numJoins(); i++) {
+                LogicalJoinNode j = g.join(i);
+                pkey1[i] = isPkey(j.t1Alias, j.f1PureName);
+                if (!(j instanceof LogicalSubplanJoinNode)) {
+                    swapped[i] = j.swapInnerOuter();
+                    pkey2[i] = isPkey(j.t2Alias, j.f2PureName);
+                }
+            }
+        }
+
+        /**
+         * @param leftDeep
+         *            whether a side joining several relations must be the
+         *            outer, so that the inner is always a single relation
+         * @return the cheapest of best and the plans joining a and b by a
+         *         join between them, with either one as the outer. The other
+         *         joins between a and b are applied to the result, and
+         *         their selectivities reduce its cardinality.
+         */
+        JoinPlan cheaper(JoinPlan a, JoinPlan b, boolean leftDeep, JoinPlan best) {
+            int connecting = 0;
+            for (int i = 0; i < g.numJoins(); i++) {
+                if (g.connects(i, a.relations, b.relations))
+                    connecting++;
+            }
+            double[] selectivity = new double[g.numJoins()];
+            double all = 1.0;
+            for (int i = 0; connecting > 1 && i < g.numJoins(); i++) {
+                if (!g.connects(i, a.relations, b.relations))
+                    continue;
+                selectivity[i] = selectivity(i, a, b);
+                all *= selectivity[i];
+            }
+            for (int i = 0; i < g.numJoins(); i++) {
+                if (!g.connects(i, a.relations, b.relations))
+                    continue;
+                double others = connecting > 1 ? all / selectivity[i] : 1.0;
+                JoinPlan t1Side = (g.t1Of(i) & a.relations) != 0 ? a : b;
+                JoinPlan t2Side = t1Side == a ? b : a;
+                int t1Count = Long.bitCount(t1Side.relations);
+                int t2Count = Long.bitCount(t2Side.relations);
+                if (!leftDeep || t1Count >= t2Count)
+                    best = cheaper(t1Side, t2Side, g.join(i), pkey1[i], pkey2[i], others, best);
+                // the subquery of a subplan join must stay on the inner
+                if (swapped[i] != null && (!leftDeep || t2Count >= t1Count))
+                    best = cheaper(t2Side, t1Side, swapped[i], pkey2[i], pkey1[i], others, best);
+            }
+            return best;
+        }
+
+        /**
+         * @return the fraction of the pairs of tuples of a and b that satisfy
+         *         join i between them
+         */
+        private double selectivity(int i, JoinPlan a, JoinPlan b) {
+            JoinPlan t1Side = (g.t1Of(i) & a.relations) != 0 ? a : b;
+            JoinPlan t2Side = t1Side == a ? b : a;
+            boolean leftPkey = t1Side.join == null ? pkey1[i] : t1Side.hasPkey;
+            boolean rightPkey = t2Side.join == null ? pkey2[i] : t2Side.hasPkey;
+            int card = estimateJoinCardinality(g.join(i), t1Side.card, t2Side.card, leftPkey, rightPkey,
+                    stats);
+            return Math.min(1.0, (double) card / Math.max(1.0, (double) t1Side.card * t2Side.card));
+        }
+
+        private JoinPlan cheaper(JoinPlan o, JoinPlan in, LogicalJoinNode j, boolean outerPkey,
+                boolean innerPkey, double others, JoinPlan best) {
+            double c = estimateJoinCost(j, o.card, in.card, o.cost, in.cost);
+            if (best != null && c >= best.cost)
+                return best;
+            boolean leftPkey = o.join == null ? outerPkey : o.hasPkey;
+            boolean rightPkey = in.join == null ? innerPkey : in.hasPkey;
+            int card = estimateJoinCardinality(j, o.card, in.card, leftPkey, rightPkey, stats);
+            card = Math.max(1, (int) (card * others));
+            return new JoinPlan(o.relations | in.relations, c, card,
+                    o.hasPkey || in.hasPkey || outerPkey || innerPkey, o, in, j);
+        }
+
+        /**
+         * Append the joins of a plan in the order they should be executed:
+         * the joins of each side, then the join combining them, then any
+         * other joins between the two sides.
+         */
+        void appendJoins(JoinPlan plan, Vector<LogicalJoinNode> order, PlanCache pc) {
+            if (plan.join == null)
+                return;
+            appendJoins(plan.outer, order, pc);
+            appendJoins(plan.inner, order, pc);
+            append(plan, plan.join, order, pc);
+            for (int i = 0; i < g.numJoins(); i++) {
+                LogicalJoinNode j = g.join(i);
+                if (g.connects(i, plan.outer.relations, plan.inner.relations) && j != plan.join
+                        && swapped[i] != plan.join)
+                    append(plan, j, order, pc);
+            }
+        }
+
+        private void append(JoinPlan plan, LogicalJoinNode j, Vector<LogicalJoinNode> order, PlanCache pc) {
+            order.add(j);
+            if (pc != null)
+                pc.addPlan(new HashSet<LogicalJoinNode>(order), plan.cost, plan.card,
+                        new Vector<LogicalJoinNode>(order));
         }
-        return false;
     }
 
     /**
@@ -404,20 +635,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
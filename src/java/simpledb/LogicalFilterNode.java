@@ -15,6 +15,9 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The index of the parameter marker standing for c, or -1 if c is given */
+    public int param = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
@@ -32,4 +35,10 @@ public class LogicalFilterNode {
             fieldPureName=field;
         this.fieldQuantifiedName = tableAlias+"."+fieldPureName;
     }
+
+    /** Create a filter whose constant is a parameter, given when the plan is run */
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, int param) {
+        this(table, field, pred, (String) null);
+        this.param = param;
+    }
 }
@@ -3,8 +3,11 @@ import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.HashSet;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -36,6 +39,9 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private int numParameters = 0;
+    private Vector<LogicalJoinNode> joinOrder = null;
+    private boolean bushyJoins = false;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -105,6 +111,123 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a filter comparing a field against a parameter marker, whose
+     *  value is given to {@link #bind} each time the plan is run.
+     *  Parameters are numbered from 0 in the order they are added.
+     *   @param field The name of the over which the filter applies, as
+     *   for {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the number of the parameter
+     *   @throws ParsingException if field is unknown or ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, numParameters);
+        filters.addElement(lf);
+        return numParameters++;
+    }
+
+    /** @return the number of parameter markers added via {@link #addParameterFilter} */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /** Copy this plan with the parameter markers replaced by constants, so
+     *  that a plan parsed once can be run many times.
+     *  @param values the constant for each parameter, in order; an integer
+     *  field should be given a String representing an integer
+     *  @return a new plan with no parameters
+     *  @throws ParsingException if the number of values does not match, or
+     *  a value for an integer field is not an integer
+     */
+    public LogicalPlan bind(List<String> values) throws ParsingException {
+        if (values.size() != numParameters)
+            throw new ParsingException("Expected " + numParameters + " parameters but got " + values.size());
+        LogicalPlan lp = new LogicalPlan();
+        lp.joins.addAll(joins);
+        lp.tables.addAll(tables);
+        for (LogicalFilterNode lf : filters) {
+            if (lf.param >= 0) {
+                String v = values.get(lf.param);
+                if (fieldType(lf) == Type.INT_TYPE) {
+                    try {
+                        Integer.parseInt(v);
+                    } catch (NumberFormatException e) {
+                        throw new ParsingException("Value " + v + " is not an integer, expected for field "
+                                + lf.fieldQuantifiedName);
+                    }
+                }
+                lf = new LogicalFilterNode(lf.tableAlias, lf.fieldPureName, lf.p, v);
+            }
+            lp.filters.addElement(lf);
+        }
+        lp.tableMap.putAll(tableMap);
+        lp.selectList.addAll(selectList);
+        lp.groupByField = groupByField;
+        lp.hasAgg = hasAgg;
+        lp.aggOp = aggOp;
+        lp.aggField = aggField;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.query = query;
+        return lp;
+    }
+
+    /** @return the type of the field a filter compares, or null if its
+     *  table or field is unknown, which {@link #physicalPlan} reports
+     */
+    private Type fieldType(LogicalFilterNode lf) {
+        Integer id = getTableId(lf.tableAlias);
+        if (id == null)
+            return null;
+        try {
+            TupleDesc td = Database.getCatalog().getTupleDesc(id);
+            return td.getFieldType(td.fieldNameToIndex(lf.fieldPureName));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /** @return true if the plan can be bound and run more than once; a
+     *  plan joining with a subquery cannot, since the subquery's operators
+     *  are built when it is parsed
+     */
+    boolean isReusable() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return false;
+        }
+        return true;
+    }
+
+    /** Have {@link #physicalPlan} run the joins in the given order rather
+     *  than asking the {@link JoinOptimizer} for one.
+     *  @param order the joins of this plan, in an order returned by
+     *  {@link #getJoinOrder} for a plan of the same query
+     */
+    public void setJoinOrder(Vector<LogicalJoinNode> order) {
+        joinOrder = order;
+    }
+
+    /** Have the {@link JoinOptimizer} consider bushy join orders, in which
+     *  both inputs of a join may be joins themselves, rather than only
+     *  left-deep ones.
+     *  @see JoinOptimizer#setBushy
+     */
+    public void setBushyJoins(boolean bushy) {
+        bushyJoins = bushy;
+    }
+
+    /** @return the joins of the plan, in the order they are run once
+     *  {@link #physicalPlan} has been called
+     */
+    public Vector<LogicalJoinNode> getJoinOrder() {
+        return joins;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -258,6 +381,40 @@ public class LogicalPlan {
 
     }
 
+    /** Computes the fields of each table alias that the plan above the
+     *  scans refers to, so that scans only produce those columns.
+     *  @return map from table alias to the pure names of its needed fields,
+     *    or null if every field of every table is needed (e.g., SELECT *)
+     */
+    private HashMap<String,Set<String>> neededFieldsByAlias() {
+        Vector<String> names = new Vector<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.addElement(si.fname);
+        for (LogicalJoinNode lj : joins) {
+            names.addElement(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.addElement(lj.f2QuantifiedName);
+        }
+        if (hasAgg) {
+            names.addElement(aggField);
+            if (groupByField != null)
+                names.addElement(groupByField);
+        }
+        if (hasOrderBy)
+            names.addElement(oByField);
+
+        HashMap<String,Set<String>> needed = new HashMap<String,Set<String>>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*") || parts[0].equals("null"))
+                return null;
+            if (!needed.containsKey(parts[0]))
+                needed.put(parts[0], new HashSet<String>());
+            needed.get(parts[0]).add(parts[1]);
+        }
+        return needed;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -271,6 +428,152 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Choose how to read a base table. The default is a SeqScan with the
+     * table's filters pushed into it; when one of those filters is on the key
+     * of a secondary index and reading the matching tuples through the index
+     * is estimated to cost less than scanning the table, an IndexScan is
+     * used instead, with the remaining filters applied to each fetched tuple.
+     * An index that stores every field the scan reads is costed as an
+     * index-only scan, which is also considered when no filter is on its key.
+     * A composite index is used for equality filters on a prefix of its key
+     * fields plus at most one range filter on the next one.
+     */
+    private OpIterator accessPath(TransactionId t, LogicalScanNode table, Vector<Predicate> pushed,
+            int[] projection, Map<String,TableStats> statsMap) {
+        Predicate[] preds = pushed.toArray(new Predicate[pushed.size()]);
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+        OpIterator best = new SeqScan(t, table.t, table.alias, preds, projection);
+        if (s == null)
+            return best;
+        double bestCost = s.estimateScanCost();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            // an index that holds every field the scan reads answers it
+            // without touching the heap, even with no predicate on its key
+            boolean covering = covers(index, table.t, preds, projection);
+            if (covering) {
+                double cost = s.estimateIndexOnlyScanCost(index, 1.0);
+                if (cost < bestCost) {
+                    best = new IndexScan(t, index, table.alias, null, preds, projection);
+                    bestCost = cost;
+                }
+            }
+            if (index.isComposite()) {
+                IndexScan scan = compositeIndexScan(t, table, index, preds, projection);
+                if (scan != null) {
+                    double selectivity = 1.0;
+                    for (Predicate p : scan.getIndexedPredicates())
+                        selectivity *= s.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+                    double cost = covering ? s.estimateIndexOnlyScanCost(index, selectivity)
+                            : s.estimateIndexScanCost(index, selectivity);
+                    if (cost < bestCost) {
+                        best = scan;
+                        bestCost = cost;
+                    }
+                }
+                continue;
+            }
+            for (int i = 0; i < preds.length; i++) {
+                Predicate p = preds[i];
+                if (p.getField() != index.keyField() || p.getOp() == Predicate.Op.NOT_EQUALS
+                        || p.getOp() == Predicate.Op.LIKE)
+                    continue;
+                double selectivity = s.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+                double cost = covering ? s.estimateIndexOnlyScanCost(index, selectivity)
+                        : s.estimateIndexScanCost(index, selectivity);
+                if (cost < bestCost) {
+                    Predicate[] residual = new Predicate[preds.length - 1];
+                    for (int j = 0, k = 0; j < preds.length; j++) {
+                        if (j != i)
+                            residual[k++] = preds[j];
+                    }
+                    best = new IndexScan(t, index, table.alias,
+                            new IndexPredicate(p.getOp(), p.getOperand()), residual, projection);
+                    bestCost = cost;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Build a scan of a composite index from equality filters on a prefix of
+     * its key fields followed by at most one range filter on the next key
+     * field.
+     *
+     * @return the scan, or null if no filter is on the first key field
+     */
+    private static IndexScan compositeIndexScan(TransactionId t, LogicalScanNode table, SecondaryIndex index,
+            Predicate[] preds, int[] projection) {
+        boolean[] used = new boolean[preds.length];
+        ArrayList<Field> prefix = new ArrayList<Field>();
+        Predicate range = null;
+        for (int keyField : index.keyFields()) {
+            int eq = -1;
+            int other = -1;
+            for (int i = 0; i < preds.length; i++) {
+                Predicate.Op op = preds[i].getOp();
+                if (used[i] || preds[i].getField() != keyField || op == Predicate.Op.NOT_EQUALS
+                        || op == Predicate.Op.LIKE)
+                    continue;
+                if (op == Predicate.Op.EQUALS && eq == -1)
+                    eq = i;
+                else if (other == -1)
+                    other = i;
+            }
+            if (eq != -1) {
+                used[eq] = true;
+                prefix.add(preds[eq].getOperand());
+                continue;
+            }
+            if (other != -1) {
+                used[other] = true;
+                range = preds[other];
+            }
+            break;
+        }
+        if (prefix.isEmpty() && range == null)
+            return null;
+
+        IndexPredicate ipred;
+        try {
+            ipred = CompositeKey.prefixRange(prefix.toArray(new Field[prefix.size()]),
+                    range == null ? null : range.getOp(), range == null ? null : range.getOperand());
+        } catch (DbException e) {
+            // the bounds are longer than any key in the index
+            return null;
+        }
+        ArrayList<Predicate> indexed = new ArrayList<Predicate>();
+        ArrayList<Predicate> residual = new ArrayList<Predicate>();
+        for (int i = 0; i < preds.length; i++)
+            (used[i] ? indexed : residual).add(preds[i]);
+        return new IndexScan(t, index, table.alias, ipred, indexed.toArray(new Predicate[indexed.size()]),
+                residual.toArray(new Predicate[residual.size()]), projection);
+    }
+
+    /**
+     * @return true if every field of the table a scan returns or filters on
+     *         is stored in the index
+     */
+    private static boolean covers(SecondaryIndex index, int tableid, Predicate[] preds, int[] projection) {
+        if (projection == null) {
+            for (int i = 0; i < Database.getCatalog().getTupleDesc(tableid).numFields(); i++) {
+                if (index.entryField(i) < 0)
+                    return false;
+            }
+        } else {
+            for (int f : projection) {
+                if (index.entryField(f) < 0)
+                    return false;
+            }
+        }
+        for (Predicate p : preds) {
+            if (index.entryField(p.getField()) < 0)
+                return false;
+        }
+        return true;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,65 +592,94 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,Vector<Predicate>> pushedFilters = new HashMap<String,Vector<Predicate>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
-            subplanMap.put(table.alias,ss);
+
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
-
+            pushedFilters.put(table.alias, new Vector<Predicate>());
         }
 
+        // filters are pushed down into the scan of their table, where they are
+        // evaluated on the page bytes
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
-            OpIterator subplan = subplanMap.get(lf.tableAlias);
-            if (subplan == null) {
+            Vector<Predicate> pushed = pushedFilters.get(lf.tableAlias);
+            if (pushed == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
             Field f;
             Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
+            int field;
+            TupleDesc td = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias));
             
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+                ftyp = td.getFieldType(field);
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
+            if (lf.c == null)
+                throw new ParsingException("No value given for parameter " + (lf.param + 1) + " of the query");
             if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
-            }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            pushed.addElement(new Predicate(field, lf.p, f));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(field, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        HashMap<String,Set<String>> neededFields = neededFieldsByAlias();
+        tableIt = tables.iterator();
+        while (tableIt.hasNext()) {
+            LogicalScanNode table = tableIt.next();
+            Vector<Predicate> pushed = pushedFilters.get(table.alias);
+            int[] projection = null;
+            if (neededFields != null) {
+                TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+                Set<String> needed = neededFields.get(table.alias);
+                ArrayList<Integer> keep = new ArrayList<Integer>();
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (needed != null && needed.contains(td.getFieldName(i)))
+                        keep.add(i);
+                }
+                // a scan must produce at least one column
+                if (keep.isEmpty())
+                    keep.add(0);
+                projection = new int[keep.size()];
+                for (int i = 0; i < projection.length; i++)
+                    projection[i] = keep.get(i);
+            }
+            subplanMap.put(table.alias, accessPath(t, table, pushed, projection, statsMap));
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
+        jo.setBushy(bushyJoins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (joinOrder != null)
+            joins = new Vector<LogicalJoinNode>(joinOrder);
+        else
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // each join combines the subplans holding its two tables; in a bushy
+        // order both of them may already be joins
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -368,6 +700,15 @@ public class LogicalPlan {
 
             plan1 = subplanMap.get(t1name);
 
+            // another predicate between two tables that are already joined
+            // filters the plan holding both of them
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                if (plan1 == null)
+                    throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+                subplanMap.put(t1name, JoinOptimizer.instantiateJoinFilter(lj, plan1));
+                continue;
+            }
+
             if (isSubqueryJoin) {
                 plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
                 if (plan2 == null) 
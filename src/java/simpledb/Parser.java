@@ -12,6 +12,9 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /** Runs the query that follows and reports what each operator did */
+    static final String EXPLAIN_ANALYZE = "EXPLAIN ANALYZE";
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -68,6 +71,16 @@ public class Parser {
             boolean op2const = ops.elementAt(1) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
+            if (op1const && isParameter(ops.elementAt(1))
+                    || isParameter(ops.elementAt(0)) && op2const) {
+                // a field compared with a parameter marker
+                ZConstant column = (ZConstant) ops.elementAt(op1const ? 0 : 1);
+                if (column.getType() != ZConstant.COLUMNNAME)
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared with fields.");
+                lp.addParameterFilter(column.getValue(), op);
+                return;
+            }
             if (op1const && op2const) {
                 isJoin = ((ZConstant) ops.elementAt(0)).getType() == ZConstant.COLUMNNAME
                         && ((ZConstant) ops.elementAt(1)).getType() == ZConstant.COLUMNNAME;
@@ -132,6 +145,12 @@ public class Parser {
 
     }
 
+    /** @return true if e is a <tt>?</tt> parameter marker */
+    static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -276,50 +295,70 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
-        Query query = new Query(tId);
-
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        return planQuery(lp, tId);
+    }
+
+    /**
+     * Plan a query whose statement was cached by an earlier run, binding the
+     * constants of this run into its plan and reusing its join order.
+     */
+    private Query handleCachedQuery(StatementCache.Entry entry,
+            List<String> constants, TransactionId tId)
+            throws simpledb.ParsingException {
+        LogicalPlan lp = entry.bind(constants);
+        Query query = planQuery(lp, tId);
+        entry.planned(lp);
+        return query;
+    }
+
+    private Query planQuery(LogicalPlan lp, TransactionId tId)
+            throws simpledb.ParsingException {
+        Query query = new Query(tId);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
-        if (physicalPlan != null) {
-            Class<?> c;
-            try {
-                c = Class.forName("simpledb.OperatorCardinality");
-
-                Class<?> p = Operator.class;
-                Class<?> h = Map.class;
-
-                java.lang.reflect.Method m = c.getMethod(
-                        "updateOperatorCardinality", p, h, h);
-
-                System.out.println("The query plan is:");
-                m.invoke(null, (Operator) physicalPlan,
-                        lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
-                c = Class.forName("simpledb.QueryPlanVisualizer");
-                m = c.getMethod(
-                        "printQueryPlanTree", OpIterator.class, System.out.getClass());
-                m.invoke(c.newInstance(), physicalPlan,System.out);
-            } catch (ClassNotFoundException e) {
-            } catch (SecurityException e) {
-            } catch (NoSuchMethodException e) {
-                e.printStackTrace();
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-            }
-        }
+        if (physicalPlan != null)
+            printQueryPlan(lp, physicalPlan);
 
         return query;
     }
 
+    private void printQueryPlan(LogicalPlan lp, OpIterator physicalPlan) {
+        Class<?> c;
+        try {
+            c = Class.forName("simpledb.OperatorCardinality");
+
+            Class<?> p = Operator.class;
+            Class<?> h = Map.class;
+
+            java.lang.reflect.Method m = c.getMethod(
+                    "updateOperatorCardinality", p, h, h);
+
+            System.out.println("The query plan is:");
+            m.invoke(null, (Operator) physicalPlan,
+                    lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+            c = Class.forName("simpledb.QueryPlanVisualizer");
+            m = c.getMethod(
+                    "printQueryPlanTree", OpIterator.class, System.out.getClass());
+            m.invoke(c.newInstance(), physicalPlan,System.out);
+        } catch (ClassNotFoundException e) {
+        } catch (SecurityException e) {
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        }
+    }
+
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -338,48 +377,21 @@ public class Parser {
 
         TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
 
-        Tuple t = new Tuple(td);
-        int i = 0;
         OpIterator newTups;
 
         if (s.getValues() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> values = (Vector<ZExp>) s.getValues();
-            if (td.numFields() != values.size()) {
-                throw new simpledb.ParsingException(
-                        "INSERT statement does not contain same number of fields as table "
-                                + s.getTable());
-            }
-            for (ZExp e : values) {
-
-                if (!(e instanceof ZConstant))
+            int[] params = new int[values.size()];
+            Field[] fields = parseInsertValues(s.getTable(), td, values, params);
+            for (int p : params) {
+                if (p >= 0)
                     throw new simpledb.ParsingException(
-                            "Complex expressions not allowed in INSERT statements.");
-                ZConstant zc = (ZConstant) e;
-                if (zc.getType() == ZConstant.NUMBER) {
-                    if (td.getFieldType(i) != Type.INT_TYPE) {
-                        throw new simpledb.ParsingException("Value "
-                                + zc.getValue()
-                                + " is not an integer, expected a string.");
-                    }
-                    IntField f = new IntField(new Integer(zc.getValue()));
-                    t.setField(i, f);
-                } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
-                        throw new simpledb.ParsingException("Value "
-                                + zc.getValue()
-                                + " is a string, expected an integer.");
-                    }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
-                    t.setField(i, f);
-                } else {
-                    throw new simpledb.ParsingException(
-                            "Only string or int fields are supported.");
-                }
-
-                i++;
+                            "No value given for parameter " + (p + 1) + " of the statement");
             }
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < fields.length; i++)
+                t.setField(i, fields[i]);
             ArrayList<Tuple> tups = new ArrayList<Tuple>();
             tups.add(t);
             newTups = new TupleArrayIterator(tups);
@@ -394,6 +406,59 @@ public class Parser {
         return insertQ;
     }
 
+    /**
+     * Convert the VALUES of an INSERT statement into fields of the table.
+     *
+     * @param params
+     *            set to the number of the parameter marker given for each
+     *            field, or -1 for a field given as a constant
+     * @return the field for each constant, and null for each parameter
+     */
+    private Field[] parseInsertValues(String table, TupleDesc td,
+            Vector<ZExp> values, int[] params) throws simpledb.ParsingException {
+        if (td.numFields() != values.size()) {
+            throw new simpledb.ParsingException(
+                    "INSERT statement does not contain same number of fields as table "
+                            + table);
+        }
+        Field[] fields = new Field[values.size()];
+        int nparams = 0;
+        int i = 0;
+        for (ZExp e : values) {
+
+            params[i] = -1;
+            if (isParameter(e)) {
+                params[i++] = nparams++;
+                continue;
+            }
+            if (!(e instanceof ZConstant))
+                throw new simpledb.ParsingException(
+                        "Complex expressions not allowed in INSERT statements.");
+            ZConstant zc = (ZConstant) e;
+            if (zc.getType() == ZConstant.NUMBER) {
+                if (td.getFieldType(i) != Type.INT_TYPE) {
+                    throw new simpledb.ParsingException("Value "
+                            + zc.getValue()
+                            + " is not an integer, expected a string.");
+                }
+                fields[i] = new IntField(new Integer(zc.getValue()));
+            } else if (zc.getType() == ZConstant.STRING) {
+                if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    throw new simpledb.ParsingException("Value "
+                            + zc.getValue()
+                            + " is a string, expected an integer.");
+                }
+                fields[i] = new StringField(zc.getValue(), Type.STRING_LEN);
+            } else {
+                throw new simpledb.ParsingException(
+                        "Only string or int fields are supported.");
+            }
+
+            i++;
+        }
+        return fields;
+    }
+
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -408,16 +473,9 @@ public class Parser {
             throw new simpledb.ParsingException("Unknown table : "
                     + s.getTable());
         }
-        String name = s.getTable();
         Query sdbq = new Query(tid);
 
-        LogicalPlan lp = new LogicalPlan();
-        lp.setQuery(s.toString());
-
-        lp.addScan(id, name);
-        if (s.getWhere() != null)
-            processExpression(tid, (ZExpression) s.getWhere(), lp);
-        lp.addProjectField("null.*", null);
+        LogicalPlan lp = parseDeleteLogicalPlan(tid, s, id);
 
         OpIterator op = new Delete(tid, lp.physicalPlan(tid,
                 TableStats.getStatsMap(), false));
@@ -427,6 +485,22 @@ public class Parser {
 
     }
 
+    /**
+     * @return the plan reading the tuples a DELETE statement removes from
+     *         the table with the given id
+     */
+    private LogicalPlan parseDeleteLogicalPlan(TransactionId tid, ZDelete s,
+            int id) throws simpledb.ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.setQuery(s.toString());
+
+        lp.addScan(id, s.getTable());
+        if (s.getWhere() != null)
+            processExpression(tid, (ZExpression) s.getWhere(), lp);
+        lp.addProjectField("null.*", null);
+        return lp;
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -492,75 +566,235 @@ public class Parser {
         return curtrans;
     }
 
+    private final StatementCache statementCache = new StatementCache();
+
+    /** @return the cache of queries run through {@link #processNextStatement(String)} */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * Run a statement. A query that differs from one run before only in its
+     * constants reuses that query's plan, see {@link StatementCache}.
+     */
     public void processNextStatement(String s) {
+        processNextStatement(s, null);
+    }
+
+    /**
+     * Run a statement as {@link #processNextStatement(String)} does, adding
+     * the tuples it produces to rows unless that is null.
+     */
+    void processNextStatement(String s, List<Tuple> rows) {
+        String trimmed = s.trim();
+        if (trimmed.regionMatches(true, 0, EXPLAIN_ANALYZE, 0,
+                EXPLAIN_ANALYZE.length())) {
+            String query = trimmed.substring(EXPLAIN_ANALYZE.length());
+            runStatement(tid -> handleAnalyzeStatement(query, tid), rows);
+            return;
+        }
+        // explain mode shows how the joins are ordered, so always orders them
+        if (!explain) {
+            List<String> constants = new ArrayList<String>();
+            String key = StatementCache.normalize(s, constants);
+            StatementCache.Entry entry = cachedQuery(key, constants.size());
+            if (entry != null) {
+                runStatement(tid -> handleCachedQuery(entry, constants, tid),
+                        rows);
+                return;
+            }
+        }
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")),
+                    rows);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Find the cache entry of a normalized query, parsing and caching it if
+     * it is not there.
+     *
+     * @return the entry, or null if the statement is not a query whose
+     *         constants are all parameters of its plan
+     */
+    private StatementCache.Entry cachedQuery(String key, int nconstants) {
+        if (!StatementCache.isQuery(key))
+            return null;
+        StatementCache.Entry entry = statementCache.get(key);
+        if (entry == null) {
+            entry = new StatementCache.Entry();
+            try {
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                        key.getBytes("UTF-8")));
+                ZStatement s = p.readStatement();
+                if (s instanceof ZQuery) {
+                    LogicalPlan lp = parseQueryLogicalPlan(new TransactionId(),
+                            (ZQuery) s);
+                    if (lp.isReusable() && lp.numParameters() == nconstants)
+                        entry.template = lp;
+                }
+            } catch (Exception | Zql.TokenMgrError e) {
+                // some constant cannot be a parameter; the statement is
+                // parsed as written each time it runs
+            }
+            statementCache.put(key, entry);
+        }
+        return entry.template == null ? null : entry;
+    }
+
+    /**
+     * Parse and plan a query, INSERT or DELETE statement once, so that it
+     * can be run many times by {@link #execute} without being parsed or
+     * having its joins ordered again. The statement may hold <tt>?</tt>
+     * parameter markers in place of the constants of its WHERE clause or
+     * the values it inserts.
+     *
+     * @throws simpledb.ParsingException
+     *             if the statement is invalid or cannot be prepared, as
+     *             with a subquery
+     */
+    public PreparedStatement prepare(String sql)
+            throws simpledb.ParsingException {
+        ZStatement s;
+        try {
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    sql.getBytes("UTF-8")));
+            s = p.readStatement();
+        } catch (Zql.ParseException | Zql.TokenMgrError
+                | UnsupportedEncodingException e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t "
+                    + e);
+        }
+        PreparedStatement ps = new PreparedStatement(sql, s);
+        planPrepared(ps);
+        return ps;
+    }
+
+    private void planPrepared(PreparedStatement ps)
+            throws simpledb.ParsingException {
+        StatementCache.Entry plan = new StatementCache.Entry();
+        TransactionId tid = new TransactionId();
+        ZStatement s = ps.statement;
+        try {
+            if (s instanceof ZQuery) {
+                plan.template = parseQueryLogicalPlan(tid, (ZQuery) s);
+            } else if (s instanceof ZDelete) {
+                ZDelete d = (ZDelete) s;
+                plan.template = parseDeleteLogicalPlan(tid, d,
+                        tableId(d.getTable()));
+            } else if (s instanceof ZInsert) {
+                ZInsert in = (ZInsert) s;
+                ps.tableId = tableId(in.getTable());
+                if (in.getValues() != null) {
+                    @SuppressWarnings("unchecked")
+                    Vector<ZExp> values = (Vector<ZExp>) in.getValues();
+                    ps.valueParams = new int[values.size()];
+                    ps.values = parseInsertValues(in.getTable(), Database
+                            .getCatalog().getTupleDesc(ps.tableId), values,
+                            ps.valueParams);
+                } else {
+                    plan.template = parseQueryLogicalPlan(tid,
+                            (ZQuery) in.getQuery());
+                }
+            } else {
+                throw new simpledb.ParsingException(
+                        "Only queries, inserts and deletes can be prepared.");
+            }
+        } catch (IOException | Zql.ParseException e) {
+            throw new simpledb.ParsingException(e);
+        }
+        if (plan.template != null && !plan.template.isReusable())
+            throw new simpledb.ParsingException(
+                    "Statements with subqueries cannot be prepared.");
+
+        int nparams = 0;
+        if (plan.template != null)
+            nparams = plan.template.numParameters();
+        else {
+            for (int p : ps.valueParams)
+                nparams = Math.max(nparams, p + 1);
+        }
+        ps.numParameters = nparams;
+        ps.plan = plan;
+    }
+
+    private static int tableId(String table) throws simpledb.ParsingException {
+        try {
+            return Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+    }
+
+    /**
+     * Run a statement prepared by {@link #prepare}, in the current user
+     * transaction or in a transaction of its own, as
+     * {@link #processNextStatement} does. Each parameter is converted to a
+     * string and used in place of the marker with the same position.
+     *
+     * @return the tuples the statement produced: the result of a query, or
+     *         the count of tuples an INSERT or DELETE changed
+     * @throws simpledb.ParsingException
+     *             if the wrong number of parameters is given, or one is not
+     *             a valid value for its field
+     */
+    public List<Tuple> execute(PreparedStatement ps, Object... params)
+            throws simpledb.ParsingException, DbException, IOException {
+        if (params.length != ps.numParameters())
+            throw new simpledb.ParsingException("Expected "
+                    + ps.numParameters() + " parameters but got "
+                    + params.length);
+        List<String> args = new ArrayList<String>();
+        for (Object p : params)
+            args.add(String.valueOf(p));
+        if (!ps.plan.isCurrent())
+            planPrepared(ps);
+        List<Tuple> rows = new ArrayList<Tuple>();
+        runInTransaction(tid -> handlePreparedStatement(ps, args, tid), rows);
+        return rows;
+    }
+
+    private Query handlePreparedStatement(PreparedStatement ps,
+            List<String> args, TransactionId tId)
+            throws simpledb.ParsingException, DbException {
+        StatementCache.Entry plan = ps.plan;
+        if (ps.statement instanceof ZQuery)
+            return handleCachedQuery(plan, args, tId);
+
+        OpIterator op;
+        if (plan.template == null) {
+            ArrayList<Tuple> tups = new ArrayList<Tuple>();
+            tups.add(ps.bindValues(args));
+            op = new TupleArrayIterator(tups);
+        } else {
+            LogicalPlan lp = plan.bind(args);
+            op = lp.physicalPlan(tId, TableStats.getStatsMap(), false);
+            plan.planned(lp);
+        }
+        Query query = new Query(tId);
+        if (ps.statement instanceof ZInsert)
+            query.setPhysicalPlan(new Insert(tId, op, ps.tableId));
+        else
+            query.setPhysicalPlan(new Delete(tId, op));
+        return query;
+    }
+
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, null);
+    }
+
+    private void processNextStatement(InputStream is, List<Tuple> rows) {
         try {
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
 
-            Query query = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
-            else {
-                if (!this.inUserTrans) {
-                    curtrans = new Transaction();
-                    curtrans.start();
-                    System.out.println("Started a new transaction tid = "
-                            + curtrans.getId().getId());
-                }
-                try {
-                    if (s instanceof ZInsert)
-                        query = handleInsertStatement((ZInsert) s,
-                                curtrans.getId());
-                    else if (s instanceof ZDelete)
-                        query = handleDeleteStatement((ZDelete) s,
-                                curtrans.getId());
-                    else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
-                    else {
-                        System.out
-                                .println("Can't parse "
-                                        + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
-                    }
-                    if (query != null)
-                        query.execute();
-
-                    if (!inUserTrans && curtrans != null) {
-                        curtrans.commit();
-                        System.out.println("Transaction "
-                                + curtrans.getId().getId() + " committed.");
-                    }
-                } catch (Throwable a) {
-                    // Whenever error happens, abort the current transaction
-                    if (curtrans != null) {
-                        curtrans.abort();
-                        System.out.println("Transaction "
-                                + curtrans.getId().getId()
-                                + " aborted because of unhandled error");
-                    }
-                    this.inUserTrans = false;
-
-                    if (a instanceof simpledb.ParsingException
-                            || a instanceof Zql.ParseException)
-                        throw new ParsingException((Exception) a);
-                    if (a instanceof Zql.TokenMgrError)
-                        throw (Zql.TokenMgrError) a;
-                    throw new DbException(a.getMessage());
-                } finally {
-                    if (!inUserTrans)
-                        curtrans = null;
-                }
-            }
+            else
+                runInTransaction(tid -> handleStatement(s, tid), rows);
 
         } catch (TransactionAbortedException e) {
             e.printStackTrace();
@@ -578,14 +812,148 @@ public class Parser {
         }
     }
 
+    private Query handleStatement(ZStatement s, TransactionId tId)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        if (s instanceof ZInsert)
+            return handleInsertStatement((ZInsert) s, tId);
+        else if (s instanceof ZDelete)
+            return handleDeleteStatement((ZDelete) s, tId);
+        else if (s instanceof ZQuery)
+            return handleQueryStatement((ZQuery) s, tId);
+        System.out
+                .println("Can't parse "
+                        + s
+                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+        return null;
+    }
+
+    /**
+     * Run a query and print its plan with the estimated cardinality of each
+     * operator next to the rows it actually produced, the time spent in it
+     * and the pages it read, as measured by {@link ProfiledIterator}. The
+     * rows of the query are counted but not printed.
+     */
+    private Query handleAnalyzeStatement(String sql, TransactionId tId)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                sql.getBytes("UTF-8")));
+        ZStatement s = p.readStatement();
+        if (!(s instanceof ZQuery))
+            throw new simpledb.ParsingException(
+                    "EXPLAIN ANALYZE only supports queries.");
+        LogicalPlan lp = parseQueryLogicalPlan(tId, (ZQuery) s);
+        OpIterator physicalPlan = lp.physicalPlan(tId,
+                TableStats.getStatsMap(), explain);
+        if (physicalPlan instanceof Operator)
+            OperatorCardinality.updateOperatorCardinality(
+                    (Operator) physicalPlan, lp.getTableAliasToIdMapping(),
+                    TableStats.getStatsMap());
+
+        Map<OpIterator, ProfiledIterator> profiles = new IdentityHashMap<OpIterator, ProfiledIterator>();
+        ProfiledIterator root = ProfiledIterator.instrument(physicalPlan,
+                profiles);
+        try {
+            root.open();
+            try {
+                while (root.hasNext())
+                    root.next();
+            } finally {
+                root.close();
+            }
+        } finally {
+            ProfiledIterator.uninstrument(physicalPlan);
+        }
+
+        System.out.println("The query plan, with estimated (card) and actual rows, is:");
+        new QueryPlanVisualizer().printQueryPlanTree(physicalPlan, System.out,
+                profiles);
+        System.out.printf("\n %d rows, %.3f ms.%n", root.rows(),
+                root.nanos() / 1e6);
+        return null;
+    }
+
+    /**
+     * Run a statement as {@link #runInTransaction} does, reporting any error
+     * the way {@link #processNextStatement(InputStream)} does.
+     */
+    private void runStatement(StatementPlanner planner, List<Tuple> rows) {
+        try {
+            runInTransaction(planner, rows);
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (simpledb.ParsingException e) {
+            System.out.println("Invalid SQL expression: \n \t"
+                    + e.getMessage());
+        } catch (Zql.TokenMgrError e) {
+            System.out.println("Invalid SQL expression: \n \t " + e);
+        }
+    }
+
+    /** Builds the query for a statement once its transaction has started. */
+    private interface StatementPlanner {
+        Query plan(TransactionId tId) throws TransactionAbortedException,
+                DbException, IOException, simpledb.ParsingException,
+                Zql.ParseException;
+    }
+
+    /**
+     * Plan and run a statement in the current user transaction, or in a
+     * transaction of its own that commits when it is done, adding the tuples
+     * it produces to rows unless that is null. Whenever an error happens the
+     * transaction is aborted.
+     */
+    private void runInTransaction(StatementPlanner planner, List<Tuple> rows)
+            throws DbException, IOException, simpledb.ParsingException {
+        if (!this.inUserTrans) {
+            curtrans = new Transaction();
+            curtrans.start();
+            System.out.println("Started a new transaction tid = "
+                    + curtrans.getId().getId());
+        }
+        try {
+            Query query = planner.plan(curtrans.getId());
+            if (query != null)
+                query.execute(rows);
+
+            if (!inUserTrans && curtrans != null) {
+                curtrans.commit();
+                System.out.println("Transaction "
+                        + curtrans.getId().getId() + " committed.");
+            }
+        } catch (Throwable a) {
+            // Whenever error happens, abort the current transaction
+            if (curtrans != null) {
+                curtrans.abort();
+                System.out.println("Transaction "
+                        + curtrans.getId().getId()
+                        + " aborted because of unhandled error");
+            }
+            this.inUserTrans = false;
+
+            if (a instanceof simpledb.ParsingException
+                    || a instanceof Zql.ParseException)
+                throw new ParsingException((Exception) a);
+            if (a instanceof Zql.TokenMgrError)
+                throw (Zql.TokenMgrError) a;
+            throw new DbException(a.getMessage());
+        } finally {
+            if (!inUserTrans)
+                curtrans = null;
+        }
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "explain analyze" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,10 +963,15 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-fullstats] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            TableStats.saveStatistics();
+        } catch (IOException e) {
+            System.out.println("Unable to save table statistics: " + e.getMessage());
+        }
         System.out.println("Bye");
     }
 
@@ -607,15 +980,17 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
+        boolean fullStats = false;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-fullstats")) {
+                    fullStats = true;
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -631,6 +1006,14 @@ public class Parser {
                 }
             }
         }
+        // statistics saved by an earlier run are reused, and the others come
+        // from a sample of each table unless asked for in full, so the
+        // prompt comes up quickly however big the tables are
+        File statsFile = new File(argv[0] + ".stats");
+        if (fullStats)
+            TableStats.loadStatistics(statsFile, 1.0, 0.0);
+        else
+            TableStats.loadStatistics(statsFile, TableStats.DEFAULT_SAMPLE_RATE, TableStats.DEFAULT_ERROR_BOUND);
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -674,7 +1057,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +1065,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
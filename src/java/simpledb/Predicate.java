@@ -107,6 +107,76 @@ public class Predicate implements Serializable {
         return t.getField(f).compare(op, operand);
     }
 
+    /**
+     * Applies this predicate to every selected row of a batch and narrows the
+     * batch's selection vector to the rows that pass. Integer columns are
+     * compared as primitives in a loop specialized for the operator; for
+     * string columns the predicate is evaluated once per dictionary entry.
+     *
+     * @param batch
+     *            The batch to filter
+     * @return the number of rows still selected
+     */
+    public int filter(TupleBatch batch) {
+        int[] col = batch.getColumn(f);
+        int n = batch.numSelected();
+        int[] sel = new int[n];
+        int out = 0;
+        TupleBatch.StringDictionary dict = batch.getDictionary(f);
+        if (dict != null) {
+            boolean[] pass = new boolean[dict.size()];
+            for (int code = 0; code < pass.length; code++)
+                pass[code] = new StringField(dict.decode(code), Type.STRING_LEN).compare(op, operand);
+            for (int i = 0; i < n; i++) {
+                int row = batch.selectedRow(i);
+                if (pass[col[row]]) sel[out++] = row;
+            }
+        } else {
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++) {
+                    int row = batch.selectedRow(i);
+                    if (col[row] == v) sel[out++] = row;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++) {
+                    int row = batch.selectedRow(i);
+                    if (col[row] != v) sel[out++] = row;
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++) {
+                    int row = batch.selectedRow(i);
+                    if (col[row] > v) sel[out++] = row;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int row = batch.selectedRow(i);
+                    if (col[row] >= v) sel[out++] = row;
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++) {
+                    int row = batch.selectedRow(i);
+                    if (col[row] < v) sel[out++] = row;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int row = batch.selectedRow(i);
+                    if (col[row] <= v) sel[out++] = row;
+                }
+                break;
+            }
+        }
+        batch.setSelection(sel, out);
+        return out;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
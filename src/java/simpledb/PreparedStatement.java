@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.List;
+
+import Zql.ZStatement;
+
+/**
+ * A PreparedStatement is a query, INSERT or DELETE statement parsed and
+ * planned once by {@link Parser#prepare}, to be run many times by
+ * {@link Parser#execute} with different values for its <tt>?</tt>
+ * parameter markers.
+ * <p>
+ * Markers may stand for the constant of a WHERE clause filter or for a value
+ * of an INSERT statement, and are numbered in the order they appear. A
+ * statement prepared against a catalog or statistics that have since
+ * changed is planned again the next time it runs.
+ */
+public class PreparedStatement {
+
+    private final String sql;
+    final ZStatement statement;
+
+    // set by Parser each time the statement is planned
+    int numParameters;
+    /** how the statement was planned; its template is null for INSERT ... VALUES */
+    StatementCache.Entry plan;
+    /** the table of an INSERT */
+    int tableId;
+    /** the values of an INSERT ... VALUES, null where a parameter goes */
+    Field[] values;
+    /** the parameter for each value of an INSERT ... VALUES, or -1 */
+    int[] valueParams;
+
+    PreparedStatement(String sql, ZStatement statement) {
+        this.sql = sql;
+        this.statement = statement;
+    }
+
+    /** @return the text the statement was prepared from */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the number of <tt>?</tt> markers values must be given for */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /**
+     * Build the tuple an INSERT ... VALUES statement adds, with the given
+     * parameters in place of its markers.
+     *
+     * @throws ParsingException
+     *             if a parameter is not a valid value for its field
+     */
+    Tuple bindValues(List<String> params) throws ParsingException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < values.length; i++) {
+            if (valueParams[i] < 0) {
+                t.setField(i, values[i]);
+                continue;
+            }
+            String v = params.get(valueParams[i]);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                try {
+                    t.setField(i, new IntField(Integer.parseInt(v.trim())));
+                } catch (NumberFormatException e) {
+                    throw new ParsingException("Value " + v + " is not an integer, expected for field "
+                            + td.getFieldName(i));
+                }
+            } else {
+                t.setField(i, new StringField(v, Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    public String toString() {
+        return sql;
+    }
+}
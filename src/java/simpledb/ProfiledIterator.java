@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A ProfiledIterator wraps an operator of a query plan and records what it
+ * does at runtime: the rows it produces, the time spent in it, and the pages
+ * read from disk and found in the buffer pool while doing so. The time and
+ * pages include those of the operator's children, and of the work it does
+ * in open(), such as building a hash table or computing an aggregate.
+ * <p>
+ * {@link #instrument} wraps every operator of a plan in place, so that each
+ * child is read through its own ProfiledIterator, and {@link #uninstrument}
+ * puts the plan back as it was. Pages are counted for the thread running
+ * the plan only.
+ */
+public class ProfiledIterator implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private long rows = 0;
+    private long nanos = 0;
+    private long pagesRead = 0;
+    private long pageHits = 0;
+
+    // the counters when the current call into the child started
+    private long startNanos;
+    private long startRead;
+    private long startHits;
+
+    /**
+     * Wrap an iterator. Use {@link #wrap} to keep a child that produces
+     * batches producing them.
+     */
+    public ProfiledIterator(OpIterator child) {
+        this.child = child;
+    }
+
+    /** @return an iterator recording what child does */
+    public static ProfiledIterator wrap(OpIterator child) {
+        if (child instanceof BatchOpIterator)
+            return new ProfiledBatchIterator((BatchOpIterator) child);
+        return new ProfiledIterator(child);
+    }
+
+    /**
+     * Wrap every operator of a plan, including the leaves, and have each
+     * operator read its children through their wrappers.
+     *
+     * @param plan
+     *            the root of the plan
+     * @param profiles
+     *            the map the wrapper of each operator of the plan is added to
+     * @return the wrapper of the root, to read the plan's output through
+     */
+    public static ProfiledIterator instrument(OpIterator plan, Map<OpIterator, ProfiledIterator> profiles) {
+        if (plan instanceof Operator) {
+            Operator o = (Operator) plan;
+            OpIterator[] children = o.getChildren();
+            if (children != null && children.length > 0) {
+                OpIterator[] wrapped = new OpIterator[children.length];
+                for (int i = 0; i < children.length; i++)
+                    wrapped[i] = children[i] == null ? null : instrument(children[i], profiles);
+                o.setChildren(wrapped);
+            }
+        }
+        ProfiledIterator p = wrap(plan);
+        profiles.put(plan, p);
+        return p;
+    }
+
+    /**
+     * Undo {@link #instrument}, so that each operator of a plan reads its
+     * children directly again.
+     */
+    public static void uninstrument(OpIterator plan) {
+        if (!(plan instanceof Operator))
+            return;
+        Operator o = (Operator) plan;
+        OpIterator[] children = o.getChildren();
+        if (children == null || children.length == 0)
+            return;
+        OpIterator[] unwrapped = new OpIterator[children.length];
+        boolean changed = false;
+        for (int i = 0; i < children.length; i++) {
+            unwrapped[i] = children[i];
+            if (children[i] instanceof ProfiledIterator) {
+                unwrapped[i] = ((ProfiledIterator) children[i]).child;
+                changed = true;
+            }
+            uninstrument(unwrapped[i]);
+        }
+        if (changed)
+            o.setChildren(unwrapped);
+    }
+
+    /** @return the iterator this one wraps */
+    public OpIterator getChild() {
+        return child;
+    }
+
+    /** @return the number of rows produced */
+    public long rows() {
+        return rows;
+    }
+
+    /** @return the time spent opening and reading the iterator, in nanoseconds */
+    public long nanos() {
+        return nanos;
+    }
+
+    /** @return the number of pages read from disk meanwhile */
+    public long pagesRead() {
+        return pagesRead;
+    }
+
+    /** @return the number of pages found in the buffer pool meanwhile */
+    public long pageHits() {
+        return pageHits;
+    }
+
+    void start() {
+        startRead = BufferPool.pagesRead();
+        startHits = BufferPool.pageHits();
+        startNanos = System.nanoTime();
+    }
+
+    void stop() {
+        nanos += System.nanoTime() - startNanos;
+        pagesRead += BufferPool.pagesRead() - startRead;
+        pageHits += BufferPool.pageHits() - startHits;
+    }
+
+    void produced(long n) {
+        rows += n;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        start();
+        try {
+            child.open();
+        } finally {
+            stop();
+        }
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        start();
+        try {
+            return child.hasNext();
+        } finally {
+            stop();
+        }
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        start();
+        try {
+            Tuple t = child.next();
+            rows++;
+            return t;
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Rewind the child. Rows produced after a rewind are counted again, as
+     * the inner side of a nested loops join produces them again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        start();
+        try {
+            child.rewind();
+        } finally {
+            stop();
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+
+    public String toString() {
+        return String.format("%d rows, %.3f ms, %d pages read, %d buffer pool hits", rows, nanos / 1e6, pagesRead,
+                pageHits);
+    }
+}
+
+/**
+ * A ProfiledIterator over an iterator that produces batches, which counts
+ * the selected rows of each batch.
+ */
+class ProfiledBatchIterator extends ProfiledIterator implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchOpIterator child;
+
+    ProfiledBatchIterator(BatchOpIterator child) {
+        super(child);
+        this.child = child;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        start();
+        try {
+            TupleBatch batch = child.nextBatch();
+            if (batch != null)
+                produced(batch.numSelected());
+            return batch;
+        } finally {
+            stop();
+        }
+    }
+
+    public boolean isColumnar() {
+        return child.isColumnar();
+    }
+}
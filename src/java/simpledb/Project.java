@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
@@ -80,6 +80,21 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the child restricted to the projected
+     * columns. The column arrays are shared with the child's batch.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = TupleBatch.nextBatch(child);
+        if (batch == null)
+            return null;
+        return batch.project(outFieldIds, td);
+    }
+
+    public boolean isColumnar() {
+        return TupleBatch.isColumnar(child);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -93,6 +93,16 @@ public class Query implements Serializable {
     }
 
     public void execute() throws IOException, DbException, TransactionAbortedException {
+        execute(null);
+    }
+
+    /**
+     * Run the query, printing its result as {@link #execute()} does.
+     * 
+     * @param rows
+     *            the list to add the tuples of the result to, or null
+     */
+    public void execute(List<Tuple> rows) throws IOException, DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
         String names = "";
@@ -110,6 +120,8 @@ public class Query implements Serializable {
         while (this.hasNext()) {
             Tuple tup = this.next();
             System.out.println(tup);
+            if (rows != null)
+                rows.add(tup);
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
@@ -3,6 +3,7 @@ package simpledb;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 import simpledb.TupleDesc.TDItem;
 
 public class QueryPlanVisualizer {
@@ -13,15 +14,19 @@ public class QueryPlanVisualizer {
     private static final String PROJECT = "π";
     private static final String RENAME = "ρ";
     private static final String SCAN = "scan";
+    private static final String INDEX_SCAN = "index scan";
     private static final String ORDERBY = "o";
     private static final String GROUPBY = "g";
     private static final String SPACE = "  ";
 
+    // what each operator did when the plan ran, or null to print estimates only
+    private Map<OpIterator, ProfiledIterator> profiles = null;
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
 
-        if (!(root instanceof Operator))
+        if (!(root instanceof Operator) || root instanceof IndexScan)
             return 2;
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
@@ -56,6 +61,18 @@ public class QueryPlanVisualizer {
 
     }
 
+    /**
+     * @return what an operator did when the plan ran, to print after its
+     *         estimates, or an empty string if the plan has not run
+     */
+    private String actual(OpIterator op) {
+        ProfiledIterator p = profiles == null ? null : profiles.get(op);
+        if (p == null)
+            return "";
+        return String.format(",actual:%d,time:%.3fms,pages:%d read/%d hit", p.rows(), p.nanos() / 1e6,
+                p.pagesRead(), p.pageHits());
+    }
+
     private SubTreeDescriptor buildTree(int queryPlanDepth, int currentDepth,
                                         OpIterator queryPlan, int currentStartPosition,
                                         int parentUpperBarStartShift) {
@@ -64,18 +81,56 @@ public class QueryPlanVisualizer {
 
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
+        String actual = actual(queryPlan);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+            String tableName, alias, scan;
+            Predicate[] pushed;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                pushed = s.getPushedPredicates();
+                scan = SCAN;
+            } else {
+                IndexScan s = (IndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                pushed = s.getPushedPredicates();
+                scan = INDEX_SCAN;
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            TupleDesc tableTd = Database.getCatalog().getTupleDesc(
+                    Database.getCatalog().getTableId(tableName));
+            if (queryPlan instanceof IndexScan) {
+                IndexScan s = (IndexScan) queryPlan;
+                String keyPreds = "";
+                for (Predicate p : s.getIndexedPredicates()) {
+                    keyPreds += (keyPreds.isEmpty() ? ": " : ", ") + tableTd.getFieldName(p.getField())
+                            + p.getOp() + p.getOperand();
+                }
+                thisNode.text += String.format(" [%1$s%2$s]%3$s", s.getIndex().getName(),
+                        keyPreds, s.isIndexOnly() ? " index only" : "");
+            }
+            for (Predicate p : pushed) {
+                thisNode.text += String.format(" %1$s(%2$s)", SELECT,
+                        tableTd.getFieldName(p.getField()) + p.getOp()
+                                + p.getOperand());
+            }
+            // the estimates of scans are only worth their space next to
+            // what the scan actually produced
+            if (!actual.isEmpty() && queryPlan instanceof IndexScan)
+                thisNode.text += ",card:" + ((IndexScan) queryPlan).getEstimatedCardinality();
+            else if (!actual.isEmpty() && TableStats.getTableStats(tableName) != null)
+                thisNode.text += ",card:" + OperatorCardinality.scanCardinality((SeqScan) queryPlan,
+                        TableStats.getStatsMap());
+            thisNode.text += actual;
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -115,7 +170,7 @@ public class QueryPlanVisualizer {
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality()) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = JOIN.length() / 2;
@@ -144,7 +199,7 @@ public class QueryPlanVisualizer {
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                        + jp.getOperator() + field2,j.getEstimatedCardinality()) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = HASH_JOIN.length() / 2;
@@ -174,12 +229,12 @@ public class QueryPlanVisualizer {
 
                 if (gfield == Aggregator.NO_GROUPING) {
                     thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality()) + actual;
                     alignTxt = td.getFieldName(00);
                 } else {
                     thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
                             GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                            a.aggregateFieldName(),a.getEstimatedCardinality()) + actual;
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -198,11 +253,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                StringBuilder cond = new StringBuilder();
+                for (Predicate p : f.getPredicates()) {
+                    if (cond.length() > 0)
+                        cond.append(" AND ");
+                    cond.append(children[0].getTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand());
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        cond.toString(), f.getEstimatedCardinality()) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -223,7 +282,7 @@ public class QueryPlanVisualizer {
                         "%1$s(%2$s),card:%3$d",
                         ORDERBY,
                         children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                                o.getOrderByField()),o.getEstimatedCardinality()) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -245,7 +304,7 @@ public class QueryPlanVisualizer {
                 while (it.hasNext())
                     fields += it.next().fieldName + ",";
                 fields = fields.substring(0, fields.length() - 1);
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields,p.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields,p.getEstimatedCardinality()) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (PROJECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = PROJECT.length() / 2;
@@ -271,7 +330,7 @@ public class QueryPlanVisualizer {
                     e.printStackTrace();
                 } 
 
-                thisNode.text = String.format("%1$s,card:%2$d", name,card);
+                thisNode.text = String.format("%1$s,card:%2$d", name,card) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (name.length() / 2 > parentUpperBarStartShift)
                     upBarShift = name.length() / 2;
@@ -306,7 +365,7 @@ public class QueryPlanVisualizer {
                     e.printStackTrace();
                 } 
                 String oldName = plan.getChildren()[0].getTupleDesc().getFieldName(fieldIdx);
-                thisNode.text = String.format("%1$s,%2$s->%3$s,card:%4$d", RENAME,oldName,newName,plan.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s,%2$s->%3$s,card:%4$d", RENAME,oldName,newName,plan.getEstimatedCardinality()) + actual;
                 int upBarShift = parentUpperBarStartShift;
                 if (RENAME.length() / 2 > parentUpperBarStartShift)
                     upBarShift = RENAME.length() / 2;
@@ -390,6 +449,24 @@ public class QueryPlanVisualizer {
         return sb.reverse().toString();
     }
 
+    /**
+     * Print a plan that has run, with what each operator actually did after
+     * its estimated cardinality.
+     *
+     * @param profiles
+     *            the wrapper each operator of the plan ran in, as added by
+     *            {@link ProfiledIterator#instrument}
+     */
+    public void printQueryPlanTree(OpIterator physicalPlan, PrintStream out,
+            Map<OpIterator, ProfiledIterator> profiles) {
+        this.profiles = profiles;
+        try {
+            printQueryPlanTree(physicalPlan, out);
+        } finally {
+            this.profiles = null;
+        }
+    }
+
     public void printQueryPlanTree(OpIterator physicalPlan, PrintStream out) {
         if (out == null)
             out = System.out;
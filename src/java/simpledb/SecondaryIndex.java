@@ -0,0 +1,544 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * SecondaryIndex is a B+ tree over one or more fields of a {@link HeapFile}
+ * table. Each entry of the index is a tuple <code>(key, pageNo, tupleNo)</code>
+ * naming the RecordId of a tuple in the base table, and the entries are kept
+ * sorted on the key by a {@link BTreeFile}. An index may also store copies
+ * of other fields of the table after the RecordId, so that queries that only
+ * need the key and those included fields can be answered from the index
+ * alone. The key of an index on several fields is their
+ * {@link CompositeKey} encoding, ordered on the fields in turn.
+ * <p>
+ * Once an index has been published with {@link Catalog#addIndex}, the
+ * BufferPool keeps it up to date on every insertTuple and deleteTuple
+ * against the base table, and {@link IndexScan} can use it as an access
+ * path. {@link #create} builds an index online: writers keep going while
+ * the table is scanned, and the index only becomes visible to the planner
+ * once it has caught up with them.
+ */
+public class SecondaryIndex {
+
+    /** The position of the first included field in an index entry */
+    static final int INCLUDED_OFFSET = 3;
+
+    private final String name;
+    private final int tableid;
+    private final int[] keyFields;
+    private final int[] included;
+    private final BTreeFile file;
+
+    // the build in progress, or null once the index is ready to be read
+    volatile IndexBuild build;
+
+    /**
+     * Wrap an existing index file with no included fields.
+     *
+     * @param name
+     *            the name of the index; the BTreeFile is registered in the
+     *            catalog under this name
+     * @param tableid
+     *            the id of the indexed table
+     * @param keyField
+     *            the field of the indexed table the index is keyed on
+     * @param file
+     *            the BTreeFile holding the index entries, keyed on field 0
+     *            and with a TupleDesc from {@link #entryTupleDesc(Type)}
+     */
+    public SecondaryIndex(String name, int tableid, int keyField, BTreeFile file) {
+        this(name, tableid, keyField, new int[0], file);
+    }
+
+    /**
+     * Wrap an existing index file.
+     *
+     * @param name
+     *            the name of the index; the BTreeFile is registered in the
+     *            catalog under this name
+     * @param tableid
+     *            the id of the indexed table
+     * @param keyField
+     *            the field of the indexed table the index is keyed on
+     * @param included
+     *            the fields of the indexed table stored in each entry after
+     *            the RecordId, in entry order
+     * @param file
+     *            the BTreeFile holding the index entries, keyed on field 0
+     *            and with a TupleDesc from
+     *            {@link #entryTupleDesc(Type, Type[])}
+     */
+    public SecondaryIndex(String name, int tableid, int keyField, int[] included, BTreeFile file) {
+        this(name, tableid, new int[] { keyField }, included, file);
+    }
+
+    /**
+     * Wrap an existing index file keyed on one or more fields.
+     *
+     * @param name
+     *            the name of the index; the BTreeFile is registered in the
+     *            catalog under this name
+     * @param tableid
+     *            the id of the indexed table
+     * @param keyFields
+     *            the fields of the indexed table the index is keyed on, most
+     *            significant first
+     * @param included
+     *            the fields of the indexed table stored in each entry after
+     *            the RecordId, in entry order
+     * @param file
+     *            the BTreeFile holding the index entries, keyed on field 0
+     *            and with a TupleDesc from
+     *            {@link #entryTupleDesc(Type, Type[])}; the key type is
+     *            STRING_TYPE for more than one key field
+     */
+    public SecondaryIndex(String name, int tableid, int[] keyFields, int[] included, BTreeFile file) {
+        if (keyFields.length == 0)
+            throw new IllegalArgumentException("an index needs a key field");
+        this.name = name;
+        this.tableid = tableid;
+        this.keyFields = keyFields.clone();
+        this.included = included.clone();
+        this.file = file;
+    }
+
+    /**
+     * Build a new index over every tuple currently in a table and publish it
+     * in the catalog. Any previous contents of f are discarded.
+     *
+     * @param tid
+     *            the transaction building the index
+     * @param name
+     *            the name of the index
+     * @param tableid
+     *            the id of the table to index
+     * @param keyField
+     *            the field to index
+     * @param f
+     *            the file to store the index in
+     * @return the new index
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableid, int keyField, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        return create(tid, name, tableid, keyField, new int[0], f);
+    }
+
+    /**
+     * Build a new index that also stores the given fields of the table, so
+     * that it covers queries reading only the key and those fields, and
+     * publish it in the catalog. Any previous contents of f are discarded.
+     *
+     * @param tid
+     *            the transaction building the index
+     * @param name
+     *            the name of the index
+     * @param tableid
+     *            the id of the table to index
+     * @param keyField
+     *            the field to index
+     * @param included
+     *            the other fields of the table to store in the index
+     * @param f
+     *            the file to store the index in
+     * @return the new index
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableid, int keyField,
+            int[] included, File f) throws DbException, IOException, TransactionAbortedException {
+        return create(tid, name, tableid, new int[] { keyField }, included, f);
+    }
+
+    /**
+     * Build a new index keyed on one or more fields of a table, storing the
+     * given other fields, and publish it in the catalog. Any previous
+     * contents of f are discarded.
+     * <p>
+     * Concurrent inserts and deletes on the table are not blocked: while the
+     * table is scanned and the index bulk loaded, the changes they make are
+     * kept in a side log, which is then replayed into the index before it
+     * is made visible to {@link Catalog#getIndexes}. The log is replayed
+     * whether or not the writers commit, see {@link IndexBuild}.
+     *
+     * @param tid
+     *            the transaction building the index
+     * @param name
+     *            the name of the index
+     * @param tableid
+     *            the id of the table to index
+     * @param keyFields
+     *            the fields to index, most significant first
+     * @param included
+     *            the other fields of the table to store in the index
+     * @param f
+     *            the file to store the index in
+     * @return the new index
+     * @throws DbException
+     *             if the key of a tuple does not fit in a composite key
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableid, int[] keyFields,
+            int[] included, File f) throws DbException, IOException, TransactionAbortedException {
+        SecondaryIndex index = beginBuild(name, tableid, keyFields, included, f);
+        try {
+            index.build.load(tid);
+            index.build.publish(tid);
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            Database.getCatalog().removeIndex(index);
+            throw e;
+        }
+        return index;
+    }
+
+    /**
+     * Register a new, empty index in the catalog in the building state, so
+     * that writers start logging their changes to it. The caller then runs
+     * {@link IndexBuild#load} and {@link IndexBuild#publish}.
+     */
+    static SecondaryIndex beginBuild(String name, int tableid, int[] keyFields, int[] included, File f)
+            throws IOException {
+        Catalog catalog = Database.getCatalog();
+        TupleDesc tableTd = catalog.getTupleDesc(tableid);
+        Type[] includedTypes = new Type[included.length];
+        for (int i = 0; i < included.length; i++)
+            includedTypes[i] = tableTd.getFieldType(included[i]);
+        Type keyType = keyFields.length == 1 ? tableTd.getFieldType(keyFields[0]) : Type.STRING_TYPE;
+        new FileOutputStream(f).close();
+        BTreeFile bf = new BTreeFile(f, 0, entryTupleDesc(keyType, includedTypes));
+        SecondaryIndex index = new SecondaryIndex(name, tableid, keyFields, included, bf);
+        index.build = new IndexBuild(index);
+        catalog.addIndex(index);
+        return index;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on a field of the
+     *         given type
+     */
+    public static TupleDesc entryTupleDesc(Type keyType) {
+        return entryTupleDesc(keyType, new Type[0]);
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on a field of the
+     *         given type that also stores fields of the given types
+     */
+    public static TupleDesc entryTupleDesc(Type keyType, Type[] includedTypes) {
+        Type[] types = new Type[INCLUDED_OFFSET + includedTypes.length];
+        String[] names = new String[types.length];
+        types[0] = keyType;
+        types[1] = Type.INT_TYPE;
+        types[2] = Type.INT_TYPE;
+        names[0] = "key";
+        names[1] = "pageNo";
+        names[2] = "tupleNo";
+        for (int i = 0; i < includedTypes.length; i++) {
+            types[INCLUDED_OFFSET + i] = includedTypes[i];
+            names[INCLUDED_OFFSET + i] = "included" + i;
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return true once the index covers the whole table and can be read;
+     *         until then it is only maintained, not used by the planner
+     */
+    public boolean isReady() {
+        return build == null;
+    }
+
+    /**
+     * @return the name of this index
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the field of the indexed table this index is keyed on, or the
+     *         first of them for a composite key
+     */
+    public int keyField() {
+        return keyFields[0];
+    }
+
+    /**
+     * @return the fields of the indexed table this index is keyed on, most
+     *         significant first
+     */
+    public int[] keyFields() {
+        return keyFields.clone();
+    }
+
+    /**
+     * @return true if this index is keyed on more than one field, so that
+     *         its keys are {@link CompositeKey} encodings
+     */
+    public boolean isComposite() {
+        return keyFields.length > 1;
+    }
+
+    /**
+     * @return the other fields of the indexed table stored in the index
+     */
+    public int[] includedFields() {
+        return included.clone();
+    }
+
+    /**
+     * @return the position in an index entry of a field of the indexed
+     *         table, or -1 if the index does not store that field
+     */
+    public int entryField(int tableField) {
+        if (!isComposite() && tableField == keyFields[0])
+            return 0;
+        for (int i = 0; i < included.length; i++) {
+            if (included[i] == tableField)
+                return INCLUDED_OFFSET + i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the BTreeFile holding the index entries
+     */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index entry for a tuple of the base table; t must have a
+     *         RecordId
+     */
+    Tuple entryFor(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(file.getTupleDesc());
+        entry.setField(0, keyOf(t));
+        entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(2, new IntField(rid.getTupleNumber()));
+        for (int i = 0; i < included.length; i++)
+            entry.setField(INCLUDED_OFFSET + i, t.getField(included[i]));
+        return entry;
+    }
+
+    /**
+     * @return the index key of a tuple of the base table
+     * @throws DbException
+     *             if the key does not fit in a composite key
+     */
+    Field keyOf(Tuple t) throws DbException {
+        if (!isComposite())
+            return t.getField(keyFields[0]);
+        Field[] values = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            values[i] = t.getField(keyFields[i]);
+        return CompositeKey.encode(values);
+    }
+
+    /**
+     * @return the RecordId of the base table tuple an index entry points to
+     */
+    RecordId recordIdOf(Tuple entry) {
+        int pageNo = ((IntField) entry.getField(1)).getValue();
+        int tupleNo = ((IntField) entry.getField(2)).getValue();
+        return new RecordId(new HeapPageId(tableid, pageNo), tupleNo);
+    }
+
+    /**
+     * Add the entry for a tuple that was just inserted into the base table.
+     *
+     * @return the index pages dirtied by the insert
+     */
+    ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple entry = entryFor(t);
+        IndexBuild b = build;
+        if (b != null && b.record(true, entry))
+            return new ArrayList<Page>();
+        return file.insertTuple(tid, entry);
+    }
+
+    /**
+     * Remove the entry for a tuple that is about to be deleted from the base
+     * table.
+     *
+     * @return the index pages dirtied by the delete
+     * @throws DbException
+     *             if the index has no entry for t
+     */
+    ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        IndexBuild b = build;
+        if (b != null && b.record(false, entryFor(t)))
+            return new ArrayList<Page>();
+        Tuple entry = findEntry(tid, keyOf(t), t.getRecordId());
+        if (entry == null)
+            throw new DbException("index " + name + " has no entry for " + t.getRecordId());
+        return file.deleteTuple(tid, entry);
+    }
+
+    /**
+     * @return the entry with the given key pointing to rid, or null if there
+     *         is none
+     */
+    Tuple findEntry(TransactionId tid, Field key, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (recordIdOf(entry).equals(rid))
+                    return entry;
+            }
+        } finally {
+            it.close();
+        }
+        return null;
+    }
+}
+
+/**
+ * The online build of a SecondaryIndex. Until the build is published,
+ * writers to the base table append their index changes to a side log
+ * instead of touching the index file, so {@link #load} can bulk load the
+ * file from a scan of the table without blocking them. {@link #publish}
+ * then replays the log in batches, and replays the last, short batch with
+ * writers held off before marking the index ready.
+ * <p>
+ * The scan may or may not see a change that was also logged, so replay is
+ * idempotent: an insert is applied only if its entry is missing, and a
+ * delete only if its entry is present. Entries carry both the key and the
+ * RecordId, so a slot reused by a new tuple is told apart.
+ * <p>
+ * Logged changes are replayed whatever becomes of the transactions that made
+ * them. This relies on aborts not rolling back the table:
+ * {@link BufferPool#transactionComplete(TransactionId, boolean)} has no
+ * abort path, so the changes of an aborted writer stay in the table and
+ * their entries must stay in the index. Once aborts roll the table back,
+ * each change has to carry its transaction and only committed changes may
+ * be replayed.
+ */
+class IndexBuild {
+
+    /** Publish once the log is down to this many changes */
+    static final int CATCH_UP_BATCH = 100;
+
+    private final SecondaryIndex index;
+    private ArrayList<Change> log = new ArrayList<Change>();
+    private boolean published = false;
+
+    IndexBuild(SecondaryIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Log a change to the index made by a writer.
+     *
+     * @return false if the build is already published, in which case the
+     *         writer must apply the change to the index itself
+     */
+    synchronized boolean record(boolean insert, Tuple entry) {
+        if (published)
+            return false;
+        log.add(new Change(insert, entry));
+        return true;
+    }
+
+    /**
+     * @return the number of logged changes not yet replayed
+     */
+    synchronized int pending() {
+        return log.size();
+    }
+
+    /**
+     * Fill the index with the entries of every tuple now in the table.
+     */
+    void load(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        final DbFileIterator it = Database.getCatalog().getDatabaseFile(index.getTableId()).iterator(tid);
+        it.open();
+        try {
+            index.getFile().bulkLoad(new Iterator<Tuple>() {
+                public boolean hasNext() {
+                    try {
+                        return it.hasNext();
+                    } catch (DbException | TransactionAbortedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                public Tuple next() {
+                    try {
+                        return index.entryFor(it.next());
+                    } catch (DbException | TransactionAbortedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof DbException)
+                throw (DbException) e.getCause();
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            throw e;
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Replay the logged changes and make the index ready.
+     */
+    void publish(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        while (true) {
+            List<Change> batch;
+            synchronized (this) {
+                if (log.size() <= CATCH_UP_BATCH) {
+                    replay(tid, log);
+                    log.clear();
+                    published = true;
+                    index.build = null;
+                    Database.getCatalog().changed();
+                    return;
+                }
+                batch = log;
+                log = new ArrayList<Change>();
+            }
+            replay(tid, batch);
+        }
+    }
+
+    private void replay(TransactionId tid, List<Change> changes)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        int fileId = index.getFile().getId();
+        for (Change c : changes) {
+            Tuple existing = index.findEntry(tid, c.entry.getField(0), index.recordIdOf(c.entry));
+            if (c.insert && existing == null)
+                bp.insertTuple(tid, fileId, c.entry);
+            else if (!c.insert && existing != null)
+                bp.deleteTuple(tid, existing);
+        }
+    }
+
+    private static class Change {
+        final boolean insert;
+        final Tuple entry;
+
+        Change(boolean insert, Tuple entry) {
+            this.insert = insert;
+            this.entry = entry;
+        }
+    }
+}
@@ -7,12 +7,15 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private final TransactionId tid;
     private int tableid;
     private String tableAlias;
     private DbFileIterator it;
+    private Predicate[] preds;
+    private int[] fields;
+    private TupleDesc td;
     private static final long serialVersionUID = 1L;
 
     /**
@@ -33,9 +36,28 @@ public class SeqScan implements OpIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, new Predicate[0], null);
+    }
+
+    /**
+     * Creates a sequential scan with pushed-down predicates and projection.
+     * Only tuples satisfying every predicate are returned, and they contain
+     * only the given fields. Over a {@link HeapFile} both are applied to the
+     * page bytes during iteration.
+     *
+     * @param preds
+     *            predicates over field indexes of the table's TupleDesc
+     * @param fields
+     *            the table fields to return, in output order, or null for
+     *            all fields
+     * @see #SeqScan(TransactionId, int, String)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Predicate[] preds, int[] fields) {
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.preds = preds;
+        this.fields = fields;
     }
 
     /**
@@ -72,6 +94,21 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.td = null;
+    }
+
+    /**
+     * @return the predicates pushed down into this scan
+     */
+    public Predicate[] getPushedPredicates() {
+        return preds;
+    }
+
+    /**
+     * @return the table fields this scan returns, or null for all fields
+     */
+    public int[] getProjection() {
+        return fields;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -80,7 +117,14 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if(file instanceof HeapFile)
+            it = ((HeapFile) file).iterator(tid, preds, fields);
+        else if(preds.length > 0 || fields != null)
+            it = new PushdownIterator(file.iterator(tid), preds, fields,
+                    HeapFile.projectTupleDesc(file.getTupleDesc(), fields));
+        else
+            it = file.iterator(tid);
         it.open();
     }
 
@@ -96,7 +140,17 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return Database.getCatalog().getTupleDesc(tableid);
+        if(td == null) {
+            TupleDesc tableTd = HeapFile.projectTupleDesc(Database.getCatalog().getTupleDesc(tableid), fields);
+            Type[] types = new Type[tableTd.numFields()];
+            String[] names = new String[tableTd.numFields()];
+            for(int i = 0; i < types.length; i++) {
+                types[i] = tableTd.getFieldType(i);
+                names[i] = tableAlias + "." + tableTd.getFieldName(i);
+            }
+            td = new TupleDesc(types, names);
+        }
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -119,6 +173,28 @@ public class SeqScan implements OpIterator {
         return t;
     }
 
+    /**
+     * Returns up to {@link TupleBatch#DEFAULT_CAPACITY} tuples of the table
+     * in columnar form. Over a {@link HeapFile} the batch is decoded from
+     * the page bytes, keeping only the rows that satisfy the pushed-down
+     * predicates; other files are read a tuple at a time.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if(it == null)
+            throw new IllegalStateException("scan is not open");
+        if(it instanceof HeapFile.HeapFileIterator)
+            return ((HeapFile.HeapFileIterator) it).nextBatch(getTupleDesc());
+        return TupleBatch.fill(this, getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return true if the table is a {@link HeapFile}, whose pages this scan
+     *         decodes into batches directly
+     */
+    public boolean isColumnar() {
+        return Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile;
+    }
+
     public void close() {
         // some code goes here
         it = null;
@@ -130,3 +206,52 @@ public class SeqScan implements OpIterator {
         it.rewind();
     }
 }
+
+/**
+ * Applies pushed-down predicates and projection to a DbFileIterator that
+ * cannot evaluate them itself.
+ */
+class PushdownIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator child;
+    private final CompiledPredicate pred;
+    private final int[] fields;
+    private final TupleDesc outTd;
+
+    PushdownIterator(DbFileIterator child, Predicate[] preds, int[] fields, TupleDesc outTd) {
+        this.child = child;
+        this.pred = CompiledPredicate.compileAll(preds);
+        this.fields = fields;
+        this.outTd = outTd;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        super.close();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while(child.hasNext()) {
+            Tuple t = child.next();
+            if(!pred.filter(t))
+                continue;
+            if(fields == null)
+                return t;
+            Tuple out = new Tuple(outTd);
+            out.setRecordId(t.getRecordId());
+            for(int i = 0; i < fields.length; i++)
+                out.setField(i, t.getField(fields[i]));
+            return out;
+        }
+        return null;
+    }
+}
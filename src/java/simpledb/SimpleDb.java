@@ -1,5 +1,6 @@
 package simpledb;
 import java.io.*;
+import java.util.Iterator;
 
 public class SimpleDb {
     public static void main (String args[])
@@ -7,7 +8,7 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
-            if (args.length<3 || args.length>5){
+            if (args.length<3 || args.length>6){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
             }
@@ -39,12 +40,33 @@ public class SimpleDb {
                                 return;
                             }
                 }
-                if (args.length==5)
+                if (args.length>=5)
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+            if (args.length == 6) {
+                // write a B+ tree keyed on the given field instead of a heap
+                // file, bulk loading it from a temporary heap file
+                int keyField = Integer.parseInt(args[5]);
+                File tmpHeapFile = File.createTempFile("convert", ".dat");
+                tmpHeapFile.deleteOnExit();
+                HeapFileEncoder.convert(sourceTxtFile,tmpHeapFile,
                         BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+                TupleDesc td = new TupleDesc(ts);
+                HeapFile hf = new HeapFile(tmpHeapFile, td);
+                Database.getCatalog().addTable(hf);
+                BTreeFile bf = new BTreeFile(targetDatFile, keyField, td);
+                Database.getCatalog().addTable(bf);
+
+                DbFileIterator it = hf.iterator(new TransactionId());
+                it.open();
+                bf.bulkLoad(tuples(it));
+                it.close();
+                tmpHeapFile.delete();
+            } else {
+                HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            }
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -96,4 +118,35 @@ public class SimpleDb {
         }
     }
 
+    /**
+     * Adapt an open DbFileIterator to an Iterator
+     */
+    private static Iterator<Tuple> tuples(final DbFileIterator it) {
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                try {
+                    return it.hasNext();
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                } catch (TransactionAbortedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public Tuple next() {
+                try {
+                    return it.next();
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                } catch (TransactionAbortedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
 }
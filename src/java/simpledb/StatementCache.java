@@ -0,0 +1,227 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A StatementCache remembers how queries were planned, so that a query
+ * repeated with different constants is neither parsed nor optimized again.
+ * <p>
+ * Queries are looked up by their normalized text, in which every number and
+ * quoted string is replaced by a <tt>?</tt> marker (see {@link #normalize}).
+ * An entry holds the logical plan parsed from the normalized text, whose
+ * filters compare against the markers, and the join order chosen the first
+ * time it was run; running it again binds the new constants into a copy of
+ * the plan and builds its operators in the same order. An entry is dropped
+ * once the catalog or the table statistics it was planned against change.
+ * <p>
+ * Statements whose normalized text cannot be planned this way are kept as
+ * entries without a plan, so they are only tried once.
+ *
+ * @Threadsafe
+ */
+public class StatementCache {
+
+    /** The number of statements kept by default */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * How one normalized statement was planned.
+     */
+    static class Entry {
+        final Catalog catalog;
+        final long catalogVersion;
+        final long statsVersion;
+
+        /** The plan with a parameter for each marker, or null if there is none */
+        volatile LogicalPlan template;
+        /** The join order chosen the first time the plan ran, or null */
+        volatile Vector<LogicalJoinNode> joinOrder;
+
+        /**
+         * Create an entry for a statement about to be parsed against the
+         * current catalog and statistics.
+         */
+        Entry() {
+            catalog = Database.getCatalog();
+            catalogVersion = catalog.getVersion();
+            statsVersion = TableStats.getVersion();
+        }
+
+        /**
+         * Bind constants into a copy of the plan, which runs its joins in
+         * the order chosen the first time the plan was run.
+         */
+        LogicalPlan bind(List<String> constants) throws ParsingException {
+            LogicalPlan lp = template.bind(constants);
+            Vector<LogicalJoinNode> order = joinOrder;
+            if (order != null)
+                lp.setJoinOrder(order);
+            return lp;
+        }
+
+        /** Remember the join order of a plan from {@link #bind} once it is planned. */
+        void planned(LogicalPlan lp) {
+            joinOrder = lp.getJoinOrder();
+        }
+
+        /** @return true if neither the catalog nor the statistics changed */
+        boolean isCurrent() {
+            return catalog == Database.getCatalog() && catalogVersion == catalog.getVersion()
+                    && statsVersion == TableStats.getVersion();
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a cache holding at most DEFAULT_CAPACITY statements.
+     */
+    public StatementCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a cache holding at most capacity statements, dropping the least
+     * recently used one when it is full.
+     */
+    public StatementCache(final int capacity) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Look up a normalized statement.
+     *
+     * @return its entry, or null if it is not cached or was planned against
+     *         a catalog or statistics that have since changed
+     */
+    synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isCurrent()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null)
+            misses++;
+        else
+            hits++;
+        return entry;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    /** Drop every cached statement. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found a current entry */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that did not */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return true if a normalized statement is a query, the only kind of
+     *         statement the cache plans
+     */
+    static boolean isQuery(String key) {
+        return key.regionMatches(true, 0, "select ", 0, 7);
+    }
+
+    /**
+     * Normalize the text of a statement, so that statements differing only
+     * in their constants or spacing have the same text. Every number and
+     * single-quoted string is replaced by a <tt>?</tt> marker and its text,
+     * without quotes, is added to constants in order. Double-quoted names and
+     * strings holding an escaped quote are left as they are, as are digits
+     * inside names. Runs of whitespace outside quotes become single spaces.
+     *
+     * @param sql
+     *            the text of the statement
+     * @param constants
+     *            the list the replaced constants are added to
+     * @return the normalized text
+     */
+    public static String normalize(String sql, List<String> constants) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                int end = i + 1;
+                while (end < n) {
+                    if (sql.charAt(end) == c) {
+                        if (end + 1 < n && sql.charAt(end + 1) == c)
+                            end += 2;
+                        else
+                            break;
+                    } else {
+                        end++;
+                    }
+                }
+                String body = sql.substring(i + 1, Math.min(end, n));
+                if (c == '\'' && end < n && body.indexOf('\'') < 0) {
+                    constants.add(body);
+                    sb.append('?');
+                } else {
+                    sb.append(sql, i, Math.min(end + 1, n));
+                }
+                i = end + 1;
+            } else if (Character.isDigit(c) && (i == 0 || !isNameChar(sql.charAt(i - 1)))) {
+                int end = i;
+                while (end < n && Character.isDigit(sql.charAt(end)))
+                    end++;
+                if (end + 1 < n && sql.charAt(end) == '.' && Character.isDigit(sql.charAt(end + 1))) {
+                    end++;
+                    while (end < n && Character.isDigit(sql.charAt(end)))
+                        end++;
+                }
+                if (end < n && isNameChar(sql.charAt(end))) {
+                    // not a number after all, but a name starting with digits
+                    while (end < n && isNameChar(sql.charAt(end)))
+                        end++;
+                    sb.append(sql, i, end);
+                } else {
+                    constants.add(sql.substring(i, end));
+                    sb.append('?');
+                }
+                i = end;
+            } else if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i)))
+                    i++;
+                if (sb.length() > 0 && i < n)
+                    sb.append(' ');
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+}
@@ -53,6 +53,23 @@ public class StringAggregator implements Aggregator {
             this.groupMap.put(gbfield, this.groupMap.get(gbfield) + 1);
     }
 
+    /**
+     * Merge the selected rows of a batch into the aggregate. Only COUNT is
+     * supported, so the string column itself is never decoded.
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        if(this.gbfield != NO_GROUPING && batch.getTupleDesc().getFieldType(this.gbfield) != gbfieldtype)
+            throw new IllegalArgumentException("given batch has wrong type");
+        for(int i = 0; i < batch.numSelected(); i++) {
+            Field gbfield = this.gbfield == NO_GROUPING ? null : batch.getField(this.gbfield, batch.selectedRow(i));
+            if(!this.groupMap.containsKey(gbfield))
+                this.groupMap.put(gbfield, 1);
+            else
+                this.groupMap.put(gbfield, this.groupMap.get(gbfield) + 1);
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
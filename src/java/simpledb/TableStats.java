@@ -1,28 +1,88 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * The statistics in the stats map are kept up to date as tuples are inserted
+ * and deleted through the BufferPool, and rebuilt from a fresh sample in the
+ * background once enough of the table has changed. They can be saved to a
+ * sidecar file next to the catalog, so that the next start does not have to
+ * compute them again.
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    // bumped whenever the statistics of a table are replaced, so that cached
+    // plans can tell they may be out of date
+    private static final AtomicLong version = new AtomicLong();
+
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * Returns the statistics of a table. Once {@link #loadStatistics} has
+     * been called, the statistics of a table that has none yet are loaded
+     * or computed here, on first use.
+     * 
+     * @return the statistics, or null for a table without any, such as an
+     *         index file
+     */
     public static TableStats getTableStats(String tablename) {
-        return statsMap.get(tablename);
+        TableStats s = statsMap.get(tablename);
+        StatsSource src = source;
+        if (s != null || src == null || tablename == null)
+            return s;
+        // loaded outside the map, so that a scan does not hold up other
+        // tables; of two threads loading the same table, the first wins
+        s = src.load(tablename);
+        if (s == null)
+            return null;
+        TableStats prev = statsMap.putIfAbsent(tablename, s);
+        if (prev != null)
+            return prev;
+        version.incrementAndGet();
+        return s;
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever the statistics of some table are
+     * set or rebuilt. Rows counted in incrementally do not change it.
+     */
+    public static long getVersion() {
+        return version.get();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -43,22 +103,226 @@ public class TableStats {
 
     }
 
+    /**
+     * @return the stats map, whose get() loads the statistics of a table as
+     *         {@link #getTableStats} does
+     */
     public static Map<String, TableStats> getStatsMap() {
-        return statsMap;
+        return statsView;
     }
 
+    // the stats map as the planner reads it
+    private static final Map<String, TableStats> statsView = new AbstractMap<String, TableStats>() {
+        @Override
+        public TableStats get(Object name) {
+            return name instanceof String ? getTableStats((String) name) : null;
+        }
+
+        @Override
+        public TableStats put(String name, TableStats s) {
+            TableStats old = statsMap.put(name, s);
+            version.incrementAndGet();
+            return old;
+        }
+
+        @Override
+        public Set<Map.Entry<String, TableStats>> entrySet() {
+            return statsMap.entrySet();
+        }
+    };
+
+    /**
+     * The least fraction of the pages of each table that
+     * {@link #computeStatistics()} reads
+     */
+    static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+    /**
+     * The largest error in selectivity estimates that
+     * {@link #computeStatistics()} aims for
+     */
+    static final double DEFAULT_ERROR_BOUND = 0.01;
+
+    /**
+     * Compute the statistics of every table in the catalog from a sample of
+     * its pages, at the default sample rate and error bound.
+     */
     public static void computeStatistics() {
+        computeStatistics(DEFAULT_SAMPLE_RATE, DEFAULT_ERROR_BOUND);
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog.
+     * 
+     * @param sampleRate
+     *            the least fraction of the pages of each table to read, or
+     *            1.0 to scan every table in full
+     * @param errorBound
+     *            the largest error wanted in selectivity estimates, see
+     *            {@link #TableStats(int, int, double, double)}
+     */
+    public static void computeStatistics(double sampleRate, double errorBound) {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+            if (Database.getCatalog().isIndexFile(tableid))
+                continue;
+            TableStats s = new TableStats(tableid, IOCOSTPERPAGE, sampleRate, errorBound);
             setTableStats(Database.getCatalog().getTableName(tableid), s);
         }
         System.out.println("Done.");
     }
 
+    // the file the stats map is saved to, once loaded from it
+    private static volatile File statsFile;
+
+    /**
+     * Where {@link #getTableStats} finds the statistics of a table not in the
+     * stats map yet: saved in the sidecar file, or computed from a sample.
+     */
+    private static final class StatsSource {
+        final Map<String, TableStats> saved;
+        final double sampleRate;
+        final double errorBound;
+
+        StatsSource(Map<String, TableStats> saved, double sampleRate, double errorBound) {
+            this.saved = saved;
+            this.sampleRate = sampleRate;
+            this.errorBound = errorBound;
+        }
+
+        /**
+         * @return the saved statistics of a table if they still describe it
+         *         with the same schema and number of pages, else new ones,
+         *         or null if there is no such table or it is an index file
+         */
+        TableStats load(String name) {
+            int tableid;
+            try {
+                tableid = Database.getCatalog().getTableId(name);
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            if (Database.getCatalog().isIndexFile(tableid))
+                return null;
+            DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+            TableStats s = saved.get(name);
+            if (s != null && s.tableid == tableid && s.td.equals(f.getTupleDesc()) && s.numPages == numPages(f))
+                return s;
+            return new TableStats(tableid, IOCOSTPERPAGE, sampleRate, errorBound);
+        }
+    }
+
+    // set by loadStatistics
+    private static volatile StatsSource source;
+
+    // rebuilds stale statistics in the background
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TableStats refresher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Read the statistics saved in a sidecar file by {@link #saveStatistics},
+     * and drop those in the stats map. From then on, the statistics of a
+     * table are loaded by the first {@link #getTableStats} for it: the saved
+     * ones if they still describe the table with the same schema and number
+     * of pages, else new ones computed from a sample. A sample rate of 1.0
+     * asks for full scans, and ignores the saved statistics. Index files get
+     * no statistics. The statistics are saved back to the same file by
+     * {@link #saveStatistics}, on shutdown and whenever a table's are rebuilt.
+     * 
+     * @param file
+     *            the sidecar file, which need not exist yet
+     * @param sampleRate
+     *            the least fraction of the pages of a table to read when
+     *            computing its statistics
+     * @param errorBound
+     *            the largest error wanted in selectivity estimates, see
+     *            {@link #TableStats(int, int, double, double)}
+     */
+    @SuppressWarnings("unchecked")
+    public static void loadStatistics(File file, double sampleRate, double errorBound) throws IOException {
+        Map<String, TableStats> saved = new HashMap<String, TableStats>();
+        if (file.exists() && sampleRate < 1.0) {
+            ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+            try {
+                saved = (Map<String, TableStats>) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("unreadable statistics in " + file, e);
+            } finally {
+                in.close();
+            }
+        }
+
+        source = new StatsSource(saved, sampleRate, errorBound);
+        statsMap.clear();
+        version.incrementAndGet();
+        statsFile = file;
+    }
+
+    /**
+     * Save the stats map to the file it was loaded from, replacing it
+     * atomically, along with the saved statistics of the tables that have not
+     * been loaded yet. Does nothing if the statistics were not loaded from a
+     * file.
+     */
+    public static synchronized void saveStatistics() throws IOException {
+        File file = statsFile;
+        if (file == null)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmp));
+        try {
+            HashMap<String, TableStats> all = new HashMap<String, TableStats>();
+            StatsSource src = source;
+            if (src != null)
+                all.putAll(src.saved);
+            all.putAll(statsMap);
+            out.writeObject(all);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Update the statistics of a table in the stats map, if it has any, for
+     * a tuple inserted into it.
+     * 
+     * @param pages
+     *            the pages the insert dirtied, as returned by
+     *            {@link DbFile#insertTuple}, which show whether the file grew
+     */
+    static void tupleInserted(int tableid, Tuple t, List<Page> pages) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.addTuple(t, pages);
+    }
+
+    /**
+     * Update the statistics of a table in the stats map, if it has any, for
+     * a tuple deleted from it.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.removeTuple(t);
+    }
+
+    private static TableStats statsOf(int tableid) {
+        try {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+            return s != null && s.tableid == tableid ? s : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,9 +330,43 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** The most common values kept apart from the buckets of a histogram */
+    static final int NUM_MCVS = 100;
+
+    /**
+     * The number of rows sampled to build the histograms; tables no bigger
+     * than this are described exactly
+     */
+    static final int SAMPLE_ROWS = 30000;
+
+    /**
+     * The fraction of the rows of a table that must change before its
+     * statistics are rebuilt, and the least number of changes that can
+     */
+    static final double STALE_FRACTION = 0.2;
+    static final int MIN_STALE_MODIFICATIONS = 1000;
+
+    private final int tableid;
+    private final int ioCostPerPage;
+    private final double sampleRate;
+    private final double errorBound;
+    private int numPages;
+    private int ntups;
+    // tuples inserted or deleted since the statistics were built
+    private int modifications;
+    private transient volatile boolean refreshing;
+    private final TupleDesc td;
+    // the histograms and sketches change as tuples are counted, so they are
+    // only read and written while holding this object's monitor
+    private final EquiDepthHistogram[] hists;
+    private final HyperLogLog[] sketches;
+    // distinct values extrapolated from a sample of the pages, 0 after a
+    // full scan
+    private final int[] sampledDistinct;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table, from a full scan of the table
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -77,14 +375,232 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, 1.0, 0.0);
+    }
+
+    /**
+     * Create a new TableStats object from a block sample of the table: whole
+     * pages of a HeapFile are read in random order until both at least
+     * sampleRate of the pages and enough rows for errorBound have been read.
+     * Selectivities from n sampled rows are off by at most 1/sqrt(n) at 95%
+     * confidence if rows are not clustered by value within pages, so
+     * errorBound asks for about 1/errorBound^2 rows. The row count is scaled
+     * up from the pages read, and distinct values are extrapolated with the
+     * Duj1 estimator of Haas et al. ("Sampling-based estimation of the number
+     * of distinct values of an attribute", VLDB 1995). Files other than
+     * HeapFiles are always scanned in full.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO. This doesn't differentiate between
+     *            sequential-scan IO and disk seeks.
+     * @param sampleRate
+     *            The least fraction of the pages to read, in (0, 1]; 1.0
+     *            reads every page
+     * @param errorBound
+     *            The largest error wanted in selectivity estimates, or 0.0
+     *            to be bound by sampleRate alone
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate, double errorBound) {
+        this(tableid, ioCostPerPage, sampleRate, errorBound, System.nanoTime());
+    }
+
+    /**
+     * Create a new TableStats object from a block sample of the table, as
+     * {@link #TableStats(int, int, double, double)} does, choosing the pages
+     * and the rows kept from them with a given seed.
+     * 
+     * @param seed
+     *            The seed of the random choices of the sample, so that the
+     *            same seed gives the same statistics
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate, double errorBound, long seed) {
+        if (!(sampleRate > 0.0 && sampleRate <= 1.0))
+            throw new IllegalArgumentException("sample rate must be in (0, 1], not " + sampleRate);
+        if (!(errorBound >= 0.0))
+            throw new IllegalArgumentException("error bound must not be negative, not " + errorBound);
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.sampleRate = sampleRate;
+        this.errorBound = errorBound;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.td = file.getTupleDesc();
+        this.numPages = numPages(file);
+        this.hists = new EquiDepthHistogram[td.numFields()];
+        this.sketches = new HyperLogLog[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++)
+            sketches[i] = new HyperLogLog();
+        this.sampledDistinct = new int[td.numFields()];
+
+        Random rand = new Random(seed);
+        RowSample sample = new RowSample(td.numFields(), rand);
+        int pagesRead = numPages;
+        TransactionId tid = new TransactionId();
+        try {
+            if (file instanceof HeapFile && sampleRate < 1.0) {
+                long minRows = errorBound == 0.0 ? 0 : (long) Math.ceil(1.0 / (errorBound * errorBound));
+                pagesRead = samplePages(tid, sampleRate, minRows, sample, rand);
+            } else {
+                DbFileIterator it = file.iterator(tid);
+                it.open();
+                while (it.hasNext())
+                    sample.add(it.next(), sketches);
+                it.close();
+            }
+        } catch (DbException e) {
+            throw new RuntimeException("failed to compute statistics for table " + tableid, e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException("failed to compute statistics for table " + tableid, e);
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        ntups = sample.rows;
+        if (pagesRead < numPages) {
+            ntups = (int) Math.min(Integer.MAX_VALUE, Math.round((double) sample.rows * numPages / pagesRead));
+            for (int i = 0; i < td.numFields(); i++)
+                sampledDistinct[i] = sample.estimateDistinct(i, ntups);
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                hists[i] = new EquiDepthHistogram(NUM_HIST_BINS, NUM_MCVS, sample.strings(i), ntups);
+            else
+                hists[i] = new EquiDepthHistogram(NUM_HIST_BINS, NUM_MCVS, sample.values(i), ntups);
+        }
+    }
+
+    /**
+     * Read whole pages of a HeapFile in random order into sample until at
+     * least sampleRate of them and minRows rows have been read, choosing
+     * them with rand.
+     * 
+     * @return the number of pages read
+     */
+    private int samplePages(TransactionId tid, double sampleRate, long minRows, RowSample sample,
+            Random rand) throws DbException, TransactionAbortedException {
+        int[] order = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            order[i] = i;
+        int minPages = (int) Math.ceil(sampleRate * numPages);
+        int read = 0;
+        while (read < numPages && (read < minPages || sample.rows < minRows)) {
+            int j = read + rand.nextInt(numPages - read);
+            int pgNo = order[j];
+            order[j] = order[read];
+            order[read++] = pgNo;
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableid, pgNo),
+                    Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                sample.add(it.next(), sketches);
+        }
+        return read;
+    }
+
+    private synchronized void addTuple(Tuple t, List<Page> pages) {
+        ntups++;
+        for (Page p : pages) {
+            PageId pid = p.getId();
+            if (pid.getTableId() == tableid)
+                numPages = Math.max(numPages, pagesHolding(pid));
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (f instanceof StringField)
+                hists[i].addValue(((StringField) f).getValue());
+            else
+                hists[i].addValue(key(f));
+            sketches[i].add(f);
+        }
+        modified();
+    }
+
+    private synchronized void removeTuple(Tuple t) {
+        ntups = Math.max(0, ntups - 1);
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (f instanceof StringField)
+                hists[i].removeValue(((StringField) f).getValue());
+            else
+                hists[i].removeValue(key(f));
+        }
+        modified();
+    }
+
+    /**
+     * Rebuild the statistics in the background once they are stale. The
+     * rebuilt statistics replace these in the stats map, and are saved if
+     * the map was loaded from a file.
+     */
+    private void modified() {
+        modifications++;
+        if (refreshing || modifications < Math.max(MIN_STALE_MODIFICATIONS, STALE_FRACTION * ntups))
+            return;
+        refreshing = true;
+        refresher.execute(() -> {
+            boolean replaced = false;
+            try {
+                TableStats fresh = new TableStats(tableid, ioCostPerPage, sampleRate, errorBound);
+                replaced = statsMap.replace(Database.getCatalog().getTableName(tableid), this, fresh);
+                if (replaced) {
+                    version.incrementAndGet();
+                    saveStatistics();
+                }
+            } catch (RuntimeException | IOException e) {
+                Debug.log("Failed to rebuild the statistics of table %d: %s", tableid, e);
+            } finally {
+                // statistics that were not replaced may be rebuilt later
+                if (!replaced)
+                    refreshing = false;
+            }
+        });
+    }
+
+    /**
+     * @return true if a rebuild of these statistics has been started
+     */
+    boolean isRefreshing() {
+        return refreshing;
+    }
+
+    // a snapshot taken while no tuple is being counted
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * @return the int the histograms use for the value of a field; strings
+     *         are mapped in an order-preserving way, as StringHistogram does,
+     *         which is only used for the bucket bounds of string fields
+     */
+    static int key(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return ((IntField) f).getValue();
+        return StringHistogram.stringToInt(((StringField) f).getValue());
+    }
+
+    /**
+     * @return the least number of pages a file holding the page has; the
+     *         pages of a BTreeFile are numbered from 1, after its root
+     *         pointer page
+     */
+    private static int pagesHolding(PageId pid) {
+        if (pid instanceof BTreePageId)
+            return pid.getPageNumber();
+        return pid.getPageNumber() + 1;
+    }
+
+    private static int numPages(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).numPages();
+        return 1;
     }
 
     /**
@@ -99,9 +615,48 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
-        // some code goes here
-        return 0;
+    public synchronized double estimateScanCost() {
+        return (double) numPages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate with
+     * selectivity selectivityFactor through a secondary index on this table.
+     * The lookup descends the tree once, reads the leaf pages holding the
+     * matching entries, and then reads one heap page per matching tuple,
+     * since the heap is not clustered on the index key.
+     * 
+     * @param index
+     *            a secondary index on this table
+     * @param selectivityFactor
+     *            the selectivity of the predicate on the index key
+     * @return The estimated cost of the index scan.
+     */
+    public synchronized double estimateIndexScanCost(SecondaryIndex index, double selectivityFactor) {
+        double heapPages = Math.ceil(ntups * selectivityFactor);
+        return estimateIndexOnlyScanCost(index, selectivityFactor) + heapPages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of an index-only scan, which answers a query from
+     * the entries of a secondary index that covers it: the lookup descends
+     * the tree once and reads the leaf pages holding the matching entries,
+     * but never reads the heap.
+     * 
+     * @param index
+     *            a secondary index on this table
+     * @param selectivityFactor
+     *            the selectivity of the predicate on the index key, or 1.0
+     *            for a scan of the whole index
+     * @return The estimated cost of the index-only scan.
+     */
+    public double estimateIndexOnlyScanCost(SecondaryIndex index, double selectivityFactor) {
+        int indexPages = Math.max(1, index.getFile().numPages());
+        int keyLen = index.getFile().getTupleDesc().getFieldType(0).getLen();
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keyLen + Type.INT_TYPE.getLen()));
+        double height = Math.ceil(Math.log(indexPages) / Math.log(fanout)) + 1;
+        double leafPages = Math.ceil(indexPages * selectivityFactor);
+        return (height + leafPages) * ioCostPerPage;
     }
 
     /**
@@ -113,9 +668,8 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
+        return (int) Math.round(ntups * selectivityFactor);
     }
 
     /**
@@ -128,9 +682,17 @@ public class TableStats {
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
+        double eq = hists[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        default:
+            return (1.0 - eq) / 2;
+        }
     }
 
     /**
@@ -146,17 +708,133 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        if (constant instanceof StringField)
+            return hists[field].estimateSelectivity(op, ((StringField) constant).getValue());
+        return hists[field].estimateSelectivity(op, key(constant));
+    }
+
+    /**
+     * Estimate the number of distinct values of a field, from a HyperLogLog
+     * sketch of the field built while scanning the table, extrapolated to
+     * the whole table if only some of its pages were read.
+     * 
+     * @param field
+     *            The index of the field
+     * @return The estimated number of distinct values, between 1 and the
+     *         number of tuples, or 0 if the table is empty
+     */
+    public synchronized int estimateDistinct(int field) {
+        if (ntups == 0)
+            return 0;
+        long distinct = Math.max(sketches[field].estimate(), sampledDistinct[field]);
+        return (int) Math.max(1, Math.min(ntups, distinct));
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return ntups;
     }
+}
+
+/**
+ * A uniform sample of the rows of a table, kept with reservoir sampling as
+ * the rows are read, from which {@link TableStats} builds its histograms.
+ * Values are kept as {@link TableStats#key} maps them, and the values of
+ * string fields are also kept whole.
+ */
+class RowSample {
+
+    int rows;
+    private int[][] values;
+    private String[][] strings;
+    private final Random rand;
 
+    RowSample(int numFields, Random rand) {
+        this.values = new int[numFields][64];
+        this.strings = new String[numFields][];
+        this.rand = rand;
+    }
+
+    /**
+     * Count a row, feed its values to the distinct value sketches, and keep
+     * it if it is picked for the sample.
+     */
+    void add(Tuple t, HyperLogLog[] sketches) {
+        rows++;
+        for (int i = 0; i < values.length; i++)
+            sketches[i].add(t.getField(i));
+        int slot = rows <= TableStats.SAMPLE_ROWS ? rows - 1 : rand.nextInt(rows);
+        if (slot >= TableStats.SAMPLE_ROWS)
+            return;
+        if (slot == values[0].length) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Arrays.copyOf(values[i], Math.min(2 * slot, TableStats.SAMPLE_ROWS));
+                if (strings[i] != null)
+                    strings[i] = Arrays.copyOf(strings[i], values[i].length);
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            Field f = t.getField(i);
+            values[i][slot] = TableStats.key(f);
+            if (f instanceof StringField) {
+                if (strings[i] == null)
+                    strings[i] = new String[values[i].length];
+                strings[i][slot] = ((StringField) f).getValue();
+            }
+        }
+    }
+
+    /**
+     * @return the sampled values of field i
+     */
+    int[] values(int i) {
+        return Arrays.copyOf(values[i], Math.min(rows, TableStats.SAMPLE_ROWS));
+    }
+
+    /**
+     * @return the sampled values of string field i
+     */
+    String[] strings(int i) {
+        if (strings[i] == null)
+            return new String[0];
+        return Arrays.copyOf(strings[i], Math.min(rows, TableStats.SAMPLE_ROWS));
+    }
+
+    /**
+     * Extrapolate the distinct values of field i to a table of ntups rows
+     * with Duj1: n * d / (n - f1 + f1 * n / ntups), for d distinct values in
+     * n sampled rows of which f1 were seen only once. A sample of unique
+     * values makes the field unique, and one without values seen once keeps
+     * the distinct values it has.
+     */
+    int estimateDistinct(int i, int ntups) {
+        int[] sorted = values(i);
+        if (strings[i] != null) {
+            // number whole strings in order, so that strings with the same
+            // prefix are not counted as one value
+            String[] whole = strings(i);
+            Arrays.sort(whole);
+            for (int j = 0; j < whole.length; j++)
+                sorted[j] = j > 0 && whole[j].equals(whole[j - 1]) ? sorted[j - 1] : j;
+        } else {
+            Arrays.sort(sorted);
+        }
+        int n = sorted.length;
+        int distinct = 0;
+        int once = 0;
+        for (int j = 0; j < n; j++) {
+            if (j > 0 && sorted[j] == sorted[j - 1])
+                continue;
+            distinct++;
+            if (j + 1 == n || sorted[j + 1] != sorted[j])
+                once++;
+        }
+        if (n == 0)
+            return 0;
+        double estimate = (double) n * distinct / (n - once + (double) once * n / ntups);
+        return (int) Math.min(ntups, Math.round(estimate));
+    }
 }
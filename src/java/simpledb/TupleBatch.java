@@ -0,0 +1,297 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * TupleBatch holds up to a fixed number of rows in columnar form. Integer
+ * columns are stored as primitive <code>int[]</code> arrays; string columns
+ * are stored as <code>int[]</code> codes into a per-column dictionary, so
+ * repeated values are kept once and a predicate over a string column can be
+ * evaluated once per distinct value.
+ * <p>
+ * A selection vector lists the rows of the batch that are still live.
+ * Operators such as {@link Filter} narrow the selection instead of copying
+ * rows, and consumers should only look at rows returned by
+ * {@link #selectedRow(int)}.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of rows in a batch unless a capacity is given. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] columns;
+    private final StringDictionary[] dictionaries;
+    private final RecordId[] recordIds;
+    private int size;
+    private int[] selection;
+    private int numSelected;
+
+    /**
+     * Per-column dictionary of the distinct strings in a batch.
+     */
+    static class StringDictionary implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> values = new ArrayList<>();
+        private final HashMap<String, Integer> codes = new HashMap<>();
+
+        int encode(String s) {
+            Integer code = codes.get(s);
+            if (code == null) {
+                code = values.size();
+                values.add(s);
+                codes.put(s, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td
+     *            the schema of the rows in this batch
+     * @param capacity
+     *            the maximum number of rows this batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = new int[td.numFields()][capacity];
+        this.dictionaries = new StringDictionary[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                dictionaries[i] = new StringDictionary();
+        }
+        this.recordIds = new RecordId[capacity];
+        this.selection = new int[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] columns, StringDictionary[] dictionaries,
+                       RecordId[] recordIds, int size, int[] selection, int numSelected) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = columns;
+        this.dictionaries = dictionaries;
+        this.recordIds = recordIds;
+        this.size = size;
+        this.selection = selection;
+        this.numSelected = numSelected;
+    }
+
+    /**
+     * @return the schema of the rows in this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows stored in this batch, selected or not
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more rows can be appended to this batch
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the number of rows in the selection vector
+     */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /**
+     * @param i
+     *            position in the selection vector, between 0 and
+     *            numSelected() - 1
+     * @return the index of the i-th selected row
+     */
+    public int selectedRow(int i) {
+        return selection[i];
+    }
+
+    /**
+     * Replace the selection vector. The new selection must be a subset of
+     * the rows currently stored in this batch.
+     *
+     * @param rows
+     *            array whose first n entries are the selected row indexes
+     * @param n
+     *            the number of selected rows
+     */
+    public void setSelection(int[] rows, int n) {
+        this.selection = rows;
+        this.numSelected = n;
+    }
+
+    /**
+     * Append a row to this batch and select it.
+     *
+     * @param t
+     *            the tuple to append; its TupleDesc must match this batch's
+     * @throws IllegalStateException
+     *             if the batch is full
+     */
+    public void append(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < columns.length; i++) {
+            Field f = t.getField(i);
+            if (dictionaries[i] != null)
+                columns[i][size] = dictionaries[i].encode(((StringField) f).getValue());
+            else
+                columns[i][size] = ((IntField) f).getValue();
+        }
+        addRow(t.getRecordId());
+    }
+
+    /**
+     * Select row size() and count it as stored. The caller must already have
+     * written the row's values into the arrays returned by
+     * {@link #getColumn(int)}, encoding strings with
+     * {@link #getDictionary(int)}.
+     *
+     * @throws IllegalStateException
+     *             if the batch is full
+     */
+    void addRow(RecordId rid) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        recordIds[size] = rid;
+        selection[numSelected++] = size;
+        size++;
+    }
+
+    /**
+     * @return the int value of an integer column at the given row
+     */
+    public int getInt(int col, int row) {
+        return columns[col][row];
+    }
+
+    /**
+     * @return the string value of a string column at the given row
+     */
+    public String getString(int col, int row) {
+        return dictionaries[col].decode(columns[col][row]);
+    }
+
+    /**
+     * Returns the raw column array. For a string column the entries are
+     * dictionary codes, see {@link #getDictionary(int)}.
+     */
+    int[] getColumn(int col) {
+        return columns[col];
+    }
+
+    /**
+     * @return the dictionary of a string column, or null for an int column
+     */
+    StringDictionary getDictionary(int col) {
+        return dictionaries[col];
+    }
+
+    /**
+     * @return the value at the given column and row as a Field
+     */
+    public Field getField(int col, int row) {
+        if (dictionaries[col] != null)
+            return new StringField(getString(col, row), Type.STRING_LEN);
+        return new IntField(columns[col][row]);
+    }
+
+    /**
+     * Materialize a row of this batch as a Tuple.
+     *
+     * @param row
+     *            the row index, normally obtained from selectedRow()
+     * @return a new Tuple holding the row's values and record id
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+
+    /**
+     * Returns a batch containing only the given columns of this batch. The
+     * column arrays, dictionaries and selection are shared, not copied.
+     *
+     * @param fields
+     *            the indexes of the columns to keep, in output order
+     * @param outTd
+     *            the schema of the projected batch
+     * @return the projected batch
+     */
+    public TupleBatch project(List<Integer> fields, TupleDesc outTd) {
+        int[][] cols = new int[fields.size()][];
+        StringDictionary[] dicts = new StringDictionary[fields.size()];
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = columns[fields.get(i)];
+            dicts[i] = dictionaries[fields.get(i)];
+        }
+        return new TupleBatch(outTd, capacity, cols, dicts, recordIds, size, selection, numSelected);
+    }
+
+    /**
+     * Row-to-batch adapter: returns the next batch of it. Iterators that
+     * implement {@link BatchOpIterator} produce the batch themselves; for any
+     * other iterator up to {@link #DEFAULT_CAPACITY} tuples are read through
+     * hasNext()/next() and copied into a new batch.
+     *
+     * @param it
+     *            an open iterator
+     * @return the next batch, or null if it is exhausted
+     */
+    public static TupleBatch nextBatch(OpIterator it) throws DbException, TransactionAbortedException {
+        if (it instanceof BatchOpIterator)
+            return ((BatchOpIterator) it).nextBatch();
+        return fill(it, it.getTupleDesc(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return true if it is a {@link BatchOpIterator} that produces its
+     *         batches natively, see {@link BatchOpIterator#isColumnar()}
+     */
+    public static boolean isColumnar(OpIterator it) {
+        return it instanceof BatchOpIterator && ((BatchOpIterator) it).isColumnar();
+    }
+
+    /**
+     * Read up to capacity tuples from it into a new batch.
+     *
+     * @return the new batch, or null if it had no more tuples
+     */
+    static TupleBatch fill(OpIterator it, TupleDesc td, int capacity)
+            throws DbException, TransactionAbortedException {
+        if (!it.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(td, capacity);
+        while (!batch.isFull() && it.hasNext())
+            batch.append(it.next());
+        return batch;
+    }
+}
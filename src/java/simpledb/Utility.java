@@ -181,6 +181,32 @@ class DoubleLinkedList<E> {
         this.size++;
     }
 
+    public void addFirst(E e) {
+        Node<E> newNode = new Node<>(first, e, first.next);
+        first.next.prev = newNode;
+        first.next = newNode;
+        this.size++;
+    }
+
+    /**
+     * Removes the element nearest the front that satisfies p.
+     * @return the element removed, or null if none satisfies p
+     */
+    public E removeFirst(java.util.function.Predicate<? super E> p) {
+        Node<E> cur = first.next;
+        while(cur != last) {
+            if(p.test(cur.item)) {
+                cur.prev.next = cur.next;
+                cur.next.prev = cur.prev;
+                cur.next = cur.prev = null;
+                this.size--;
+                return cur.item;
+            }
+            cur = cur.next;
+        }
+        return null;
+    }
+
     public E removeFirst() {
         if(first.next != last) {
             Node<E> tmp = first.next;
@@ -196,7 +222,7 @@ class DoubleLinkedList<E> {
     public E findAndMove(E e) {
         Node<E> cur = first.next;
         while(cur != last) {
-            if(cur.item == e) {
+            if(cur.item.equals(e)) {
                 //从头部移除
                 cur.prev.next = cur.next;
                 cur.next.prev = cur.prev;
@@ -176,6 +176,30 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() with several partial aggregators;
+   * the input spans many partition batches so every partial gets tuples
+   */
+  @Test public void parallelAggregate() throws Exception {
+    int rows = Aggregate.PARTITION_BATCH * 7 + 13;
+    int[] data = new int[rows * width1];
+    for (int i = 0; i < rows; i++) {
+      data[i * width1] = i % 5;
+      data[i * width1 + 1] = i;
+    }
+    Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT };
+    for (Aggregator.Op aop : ops) {
+      for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+        Aggregate serial = new Aggregate(TestUtil.createTupleList(width1, data), 1, gfield, aop);
+        Aggregate parallel = new Aggregate(TestUtil.createTupleList(width1, data), 1, gfield, aop, 4);
+        serial.open();
+        parallel.open();
+        TestUtil.matchAllTuples(serial, parallel);
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,158 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile emptyFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	/**
+	 * Load random tuples with duplicate keys and check that the tree is
+	 * valid, sorted and complete
+	 */
+	private void checkLoad(int rows, double fillFactor) throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		Random rand = new Random(rows);
+		for(int i = 0; i < rows; i++) {
+			int key = rand.nextInt(rows / 4 + 1);
+			keys.add(key);
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {key, i}));
+		}
+		Collections.sort(keys);
+
+		BTreeFile bf = emptyFile();
+		bf.bulkLoad(tuples.iterator(), fillFactor);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(int key : keys) {
+			assertTrue(it.hasNext());
+			assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		// small pages, so that the tree has several levels of internal pages
+		BufferPool.setPageSize(256);
+		Database.reset();
+		checkLoad(1, 1.0);
+		checkLoad(40, 1.0);
+		checkLoad(20000, 1.0);
+		checkLoad(20000, 0.6);
+		checkLoad(20000, BTreeFile.DEFAULT_FILL_FACTOR);
+	}
+
+	@Test
+	public void testFillFactor() throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 10000; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {i, i}));
+		}
+		BTreeFile full = emptyFile();
+		full.bulkLoad(tuples.iterator(), 1.0);
+		BTreeFile loose = emptyFile();
+		loose.bulkLoad(tuples.iterator(), 0.5);
+		assertTrue(loose.numPages() > full.numPages() * 3 / 2);
+
+		// a loosely packed tree takes inserts without splitting
+		int pages = loose.numPages();
+		for(int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, loose.getId(), BTreeUtility.getBTreeTuple(new int[] {i, -i}));
+		}
+		assertEquals(pages, loose.numPages());
+		BTreeChecker.checkRep(loose, tid, new HashMap<PageId, Page>(), true);
+
+		DbFileIterator it = loose.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(50)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(2, count);
+	}
+
+	@Test(expected = DbException.class)
+	public void testNonEmpty() throws Exception {
+		BTreeFile bf = emptyFile();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {1, 1}));
+		Database.getBufferPool().flushAllPages();
+		bf.bulkLoad(new ArrayList<Tuple>().iterator());
+	}
+
+	@Test
+	public void testExternalSort() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Random rand = new Random(0);
+		for(int i = 0; i < 5000; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {rand.nextInt(100), i}));
+		}
+
+		// 500 runs need more than one merge pass
+		Iterator<Tuple> sorted = new ExternalSort(td, new BTreeFileEncoder.TupleComparator(0), 10)
+				.sort(tuples.iterator());
+		int prevKey = -1;
+		int prevSeq = -1;
+		int count = 0;
+		while(sorted.hasNext()) {
+			Tuple t = sorted.next();
+			int key = ((IntField) t.getField(0)).getValue();
+			int seq = ((IntField) t.getField(1)).getValue();
+			assertTrue(key >= prevKey);
+			// the sort is stable
+			if(key == prevKey)
+				assertTrue(seq > prevSeq);
+			prevKey = key;
+			prevSeq = seq;
+			count++;
+		}
+		assertEquals(5000, count);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -27,6 +27,10 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@After
 	public void tearDown() throws Exception {
 		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
 	}
 
 	/**
@@ -52,6 +56,28 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(it.hasNext());
 	}
 
+	/**
+	 * The latches of leaves freed by merges are dropped with the pages
+	 */
+	@Test public void leafLatchesOfFreedPages() throws Exception {
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		int leaves = f.numLeafLatches();
+		assertTrue(leaves > 1);
+
+		for(Tuple t : tuples) {
+			f.deleteTuple(tid, t);
+		}
+		// only the root leaf is left
+		assertEquals(1, f.numLeafLatches());
+	}
+
 	@Test
 	public void testStealFromLeftLeafPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -370,6 +396,63 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}    
 
+	@Test
+	public void testStringKeys() throws Exception {
+		// small pages, so that there are several levels of compact internal pages
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(1000);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+		BTreeFile bf = new BTreeFile(emptyFile, 0, td);
+		Database.getCatalog().addTable(bf);
+
+		// keys of very different lengths, so that pages are balanced by space
+		// rather than by number of entries
+		Random rand = new Random(0);
+		ArrayList<String> keys = new ArrayList<String>();
+		for(int i = 0; i < 2000; i++) {
+			StringBuilder key = new StringBuilder("/items/");
+			int len = 1 + rand.nextInt(Type.STRING_LEN - 10);
+			for(int j = 0; j < len; j++) {
+				key.append((char) ('a' + rand.nextInt(4)));
+			}
+			keys.add(key.toString());
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(key.toString(), Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// delete all but a few in random order, so that internal pages steal
+		// from and merge with their siblings
+		Collections.shuffle(keys, rand);
+		for(int i = 0; i < keys.size() - 20; i++) {
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new StringField(keys.get(i), Type.STRING_LEN));
+			DbFileIterator it = bf.indexIterator(tid, ipred);
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			if(i % 200 == 0) {
+				BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(20, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -172,6 +172,214 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testReuseLowestFreePage() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 10);
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		empty.setEmptyPage(tid, dirtypages, 7);
+		empty.setEmptyPage(tid, dirtypages, 3);
+		empty.setEmptyPage(tid, dirtypages, 9);
+		// the lowest free page is handed out first
+		assertEquals(3, empty.getEmptyPageNo(tid, dirtypages));
+		empty.setEmptyPage(tid, dirtypages, 5);
+
+		// a new BTreeFile over the same file finds the free pages on the header page
+		for(Page p : dirtypages.values()) {
+			empty.writePage(p);
+		}
+		Database.reset();
+		BTreeFile reopened = new BTreeFile(emptyFile, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(reopened);
+		dirtypages.clear();
+		assertEquals(5, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(7, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(9, reopened.getEmptyPageNo(tid, dirtypages));
+		int pages = reopened.numPages();
+		assertEquals(pages + 1, reopened.getEmptyPageNo(tid, dirtypages));
+	}
+
+	@Test
+	public void testStringKeys() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+		BTreeFile bf = new BTreeFile(emptyFile, 0, td);
+		Database.getCatalog().addTable(bf);
+
+		// keys with a long common prefix, so that only their suffixes separate them
+		Random rand = new Random(0);
+		ArrayList<String> keys = new ArrayList<String>();
+		for(int i = 0; i < 1500; i++) {
+			String key = "http://www.example.com/items/" + rand.nextInt(1000000);
+			keys.add(key);
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(key, Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		Collections.sort(keys);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// the root takes every leaf, where 29 fixed width string keys would fit
+		BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
+		assertTrue(root.getNumEntries() > 29);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+
+		// separators are truncated
+		Iterator<BTreeEntry> entries = root.iterator();
+		while(entries.hasNext()) {
+			String sep = ((StringField) entries.next().getKey()).getValue();
+			assertTrue(sep.length() < "http://www.example.com/items/".length() + 6);
+		}
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(String key : keys) {
+			assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	@Test
+	public void testConcurrentInserts() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		final int threads = 4;
+		final int perThread = 1500;
+
+		// each thread inserts its own keys; with latching they can run
+		// through the same leaves and split them concurrently
+		Thread[] inserters = new Thread[threads];
+		final Exception[] errors = new Exception[threads];
+		for(int i = 0; i < threads; i++) {
+			final int offset = i;
+			inserters[i] = new Thread() {
+				public void run() {
+					try {
+						TransactionId itid = new TransactionId();
+						for(int k = 0; k < perThread; k++) {
+							Tuple t = BTreeUtility.getBTreeTuple(new int[] {k * threads + offset, offset});
+							Database.getBufferPool().insertTuple(itid, bf.getId(), t);
+						}
+						Database.getBufferPool().transactionComplete(itid);
+					} catch (Exception e) {
+						errors[offset] = e;
+					}
+				}
+			};
+			inserters[i].start();
+		}
+		for(int i = 0; i < threads; i++) {
+			inserters[i].join();
+			if(errors[i] != null)
+				throw errors[i];
+		}
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int expected = 0;
+		while(it.hasNext()) {
+			assertEquals(expected++, ((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(threads * perThread, expected);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	@Test
+	public void testReadersDuringSplits() throws Exception {
+		readersDuringSplits(BufferPool.DEFAULT_PAGES);
+	}
+
+	/**
+	 * Readers must find every key while splits run even when the buffer pool
+	 * is so small that the pages they visit keep being evicted and read back
+	 * from disk, since no page carries state that only lives in memory
+	 */
+	@Test
+	public void testReadersDuringSplitsWithEviction() throws Exception {
+		readersDuringSplits(8);
+	}
+
+	private void readersDuringSplits(int poolPages) throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		Database.resetBufferPool(poolPages);
+		final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		final int total = 6000;
+		final int readers = 3;
+		final int[] inserted = new int[1];
+
+		// readers look up keys that have already been inserted while the
+		// writer keeps splitting leaves and internal pages; they must always
+		// find them
+		Thread[] threads = new Thread[readers];
+		final Exception[] errors = new Exception[readers + 1];
+		for(int i = 0; i < readers; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						TransactionId rtid = new TransactionId();
+						Random rand = new Random(id);
+						int done;
+						do {
+							synchronized(inserted) {
+								done = inserted[0];
+							}
+							if(done == 0)
+								continue;
+							int key = rand.nextInt(done);
+							DbFileIterator it = bf.indexIterator(rtid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+							it.open();
+							if(!it.hasNext())
+								throw new DbException("key " + key + " not found");
+							it.close();
+						} while(done < total);
+						Database.getBufferPool().transactionComplete(rtid);
+					} catch (Exception e) {
+						errors[id] = e;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		try {
+			TransactionId wtid = new TransactionId();
+			for(int k = 0; k < total; k++) {
+				Database.getBufferPool().insertTuple(wtid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {k, k}));
+				synchronized(inserted) {
+					inserted[0] = k + 1;
+				}
+			}
+			Database.getBufferPool().transactionComplete(wtid);
+		} catch (Exception e) {
+			errors[readers] = e;
+			synchronized(inserted) {
+				inserted[0] = total;
+			}
+		}
+		for(int i = 0; i < readers; i++)
+			threads[i].join();
+		// a failed writer stops the readers short, so report it first
+		for(int i = readers; i >= 0; i--) {
+			if(errors[i] != null)
+				throw errors[i];
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -201,6 +201,52 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for leaf prefetching by the BTreeFile iterators
+	 */
+	@Test public void prefetch() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+
+		// the hints for the first leaf are the leaves that follow it
+		BTreeLeafPage leaf = bigFile.findLeafPage(tid, Permissions.READ_ONLY, null);
+		ArrayList<BTreePageId> chain = new ArrayList<BTreePageId>();
+		BTreeLeafSnapshot snapshot = bigFile.readLeaf(tid, leaf.getId());
+		while(snapshot.getRightSiblingId() != null) {
+			chain.add(snapshot.getRightSiblingId());
+			snapshot = bigFile.readLeaf(tid, snapshot.getRightSiblingId());
+		}
+		assertTrue(chain.size() > 4);
+		assertEquals(chain.subList(0, 3), bigFile.childrenAfter(tid, leaf.getParentId(), leaf.getId(), 3, null));
+		assertEquals(chain.subList(3, 5), bigFile.childrenAfter(tid, leaf.getParentId(), chain.get(2), 2, null));
+
+		// an upper bound in the first leaf stops the hints there
+		Field first = bigFile.readLeaf(tid, chain.get(0)).iterator().next().getField(0);
+		assertEquals(0, bigFile.childrenAfter(tid, leaf.getParentId(), leaf.getId(), 3,
+				new IndexPredicate(Op.LESS_THAN, first)).size());
+		assertEquals(chain.subList(0, 1), bigFile.childrenAfter(tid, leaf.getParentId(), leaf.getId(), 3,
+				new IndexPredicate(Op.LESS_THAN_OR_EQ, first)).subList(0, 1));
+
+		// and scans return the same tuples with prefetching on and off
+		IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN, new IntField(1000));
+		bigFile.setPrefetchDepth(0);
+		ArrayList<String> plain = scan(bigFile.iterator(tid));
+		ArrayList<String> plainRange = scan(bigFile.indexIterator(tid, ipred));
+		bigFile.setPrefetchDepth(8);
+		assertEquals(plain, scan(bigFile.iterator(tid)));
+		assertEquals(plainRange, scan(bigFile.indexIterator(tid, ipred)));
+		assertEquals(10000, plain.size());
+	}
+
+	private static ArrayList<String> scan(DbFileIterator it) throws Exception {
+		ArrayList<String> tuples = new ArrayList<String>();
+		it.open();
+		while(it.hasNext()) {
+			tuples.add(it.next().toString());
+		}
+		it.close();
+		return tuples;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
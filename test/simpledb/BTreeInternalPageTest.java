@@ -204,6 +204,18 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		assertEquals(false, dirtier != null);
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(1, page.findChild(null).getPageNumber());
+		assertEquals(1, page.findChild(new IntField(1000)).getPageNumber());
+		assertEquals(2, page.findChild(new IntField(3596)).getPageNumber());
+		assertEquals(21, page.findChild(new IntField(70000)).getPageNumber());
+		assertEquals(20, page.findChild(new IntField(62778)).getPageNumber());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.addEntry()
 	 */
@@ -313,6 +325,53 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for the compact layout of pages keyed on strings
+	 */
+	@Test public void compactStringKeys() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+		BTreePageId spid = new BTreePageId(-2, -1, BTreePageId.INTERNAL);
+
+		// far more short keys than the 29 that would fit at Type.STRING_LEN each
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		for (int i = 0; i < 200; i++) {
+			entries.add(new BTreeEntry(new StringField(String.format("key%04d", i), Type.STRING_LEN),
+					new BTreePageId(-2, i + 1, BTreePageId.LEAF), new BTreePageId(-2, i + 2, BTreePageId.LEAF)));
+		}
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries, BufferPool.getPageSize(),
+				Type.STRING_TYPE, BTreePageId.LEAF);
+		BTreeInternalPage page = new BTreeInternalPage(spid, data, 0);
+		assertEquals(200, page.getNumEntries());
+
+		// fill the page with the longest keys until it reports itself full
+		StringBuilder sb = new StringBuilder("kez");
+		while (sb.length() < Type.STRING_LEN - 3)
+			sb.append('z');
+		int child = 201;
+		while (page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(new StringField(sb.toString() + child, Type.STRING_LEN),
+					new BTreePageId(-2, child, BTreePageId.LEAF), new BTreePageId(-2, child + 1, BTreePageId.LEAF)));
+			child++;
+		}
+		assertTrue(page.getNumEntries() > 200);
+
+		// and the page reads back the same
+		BTreeInternalPage copy = new BTreeInternalPage(spid, page.getPageData(), 0);
+		assertEquals(page.getNumEntries(), copy.getNumEntries());
+		Iterator<BTreeEntry> it = page.iterator();
+		Iterator<BTreeEntry> copyIt = copy.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry c = copyIt.next();
+			assertEquals(e.getKey(), c.getKey());
+			assertEquals(e.getLeftChild(), c.getLeftChild());
+			assertEquals(e.getRightChild(), c.getRightChild());
+		}
+		assertFalse(copyIt.hasNext());
+		assertEquals(2, copy.findChild(new StringField("key0001", Type.STRING_LEN)).getPageNumber());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
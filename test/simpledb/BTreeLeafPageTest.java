@@ -185,6 +185,62 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), including after the page
+	 * has changed
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int[] tuple : EXAMPLE_VALUES)
+			keys.add(tuple[0]);
+		Collections.sort(keys);
+
+		// an existing key, a key between two others, and keys beyond both ends
+		int[] starts = new int[] { 22064, 22100, 0, 70000 };
+		for (int start : starts) {
+			Iterator<Tuple> it = page.iterator(new IntField(start));
+			for (int key : keys) {
+				if (key >= start)
+					assertEquals(new IntField(key), it.next().getField(0));
+			}
+			assertFalse(it.hasNext());
+		}
+
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 22100, 0 }));
+		Iterator<Tuple> it = page.iterator(new IntField(22100));
+		assertEquals(new IntField(22100), it.next().getField(0));
+		assertEquals(new IntField(22189), it.next().getField(0));
+	}
+
+	/**
+	 * Tuples are decoded from the page bytes as they are used, so the page
+	 * should serialize the same whether or not they have been decoded
+	 */
+	@Test public void undecodedTuples() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+		// insert between existing keys, moving tuples that were never decoded
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 22100, 7 }));
+		ArrayList<int[]> expected = new ArrayList<int[]>(Arrays.asList(EXAMPLE_VALUES));
+		expected.add(new int[] { 22100, 7 });
+		Collections.sort(expected, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+
+		BTreeLeafPage reread = new BTreeLeafPage(pid, page.getPageData(), 0);
+		Iterator<Tuple> it = reread.iterator();
+		for (int[] tuple : expected) {
+			Tuple t = it.next();
+			assertEquals(new IntField(tuple[0]), t.getField(0));
+			assertEquals(new IntField(tuple[1]), t.getField(1));
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -133,6 +133,31 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.prefetchPage() into a full buffer pool: a clean
+     * page makes room, and getPage finds the prefetched page without reading it
+     */
+    @Test public void prefetchIntoFullPool() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*3, null, null);
+        Database.resetBufferPool(2);
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId[] pids = new HeapPageId[3];
+        for (int i = 0; i < pids.length; i++)
+            pids[i] = new HeapPageId(hf.getId(), i);
+
+        pool.getPage(tid, pids[0], Permissions.READ_ONLY);
+        pool.getPage(tid, pids[1], Permissions.READ_ONLY);
+        long reads = BufferPool.pagesRead();
+        pool.prefetchPage(new HeapPageId(hf.getId(), 2));
+        pool.getPage(tid, pids[2], Permissions.READ_ONLY);
+        pool.getPage(tid, pids[1], Permissions.READ_ONLY);
+        assertEquals(reads, BufferPool.pagesRead());
+
+        // the least recently used page was the one evicted
+        pool.getPage(tid, pids[0], Permissions.READ_ONLY);
+        assertEquals(reads + 1, BufferPool.pagesRead());
+    }
+
     /**
      * JUnit suite target
      */
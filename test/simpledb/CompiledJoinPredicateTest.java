@@ -0,0 +1,90 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompiledJoinPredicateTest extends SimpleDbTestBase {
+
+  private static final TupleDesc STRING_TD = new TupleDesc(new Type[] { Type.STRING_TYPE });
+
+  private static Tuple stringTuple(String s) {
+    Tuple t = new Tuple(STRING_TD);
+    t.setField(0, new StringField(s, Type.STRING_LEN));
+    return t;
+  }
+
+  /**
+   * Check a compiled predicate against the expected results of comparing
+   * left with each of right.
+   */
+  private static void check(Predicate.Op op, Type type, Tuple left, Tuple[] right, boolean[] expected) {
+    JoinPredicate p = new JoinPredicate(0, op, 0);
+    CompiledJoinPredicate compiled = CompiledJoinPredicate.compile(p, type);
+    for (int i = 0; i < right.length; i++) {
+      String msg = left + " " + op + " " + right[i];
+      assertEquals(msg, expected[i], compiled.filter(left, right[i]));
+      assertEquals(msg, p.filter(left, right[i]), compiled.filter(left, right[i]));
+    }
+  }
+
+  /**
+   * Unit test for CompiledJoinPredicate.filter() over int fields, for every
+   * operator
+   */
+  @Test public void intFields() {
+    for (int v : new int[] { -1, 0, 1 }) {
+      Tuple left = Utility.getHeapTuple(v);
+      Tuple[] right = new Tuple[] { Utility.getHeapTuple(v - 1), Utility.getHeapTuple(v),
+          Utility.getHeapTuple(v + 1) };
+      check(Predicate.Op.EQUALS, Type.INT_TYPE, left, right, new boolean[] { false, true, false });
+      check(Predicate.Op.NOT_EQUALS, Type.INT_TYPE, left, right, new boolean[] { true, false, true });
+      check(Predicate.Op.GREATER_THAN, Type.INT_TYPE, left, right, new boolean[] { true, false, false });
+      check(Predicate.Op.GREATER_THAN_OR_EQ, Type.INT_TYPE, left, right, new boolean[] { true, true, false });
+      check(Predicate.Op.LESS_THAN, Type.INT_TYPE, left, right, new boolean[] { false, false, true });
+      check(Predicate.Op.LESS_THAN_OR_EQ, Type.INT_TYPE, left, right, new boolean[] { false, true, true });
+      check(Predicate.Op.LIKE, Type.INT_TYPE, left, right, new boolean[] { false, true, false });
+    }
+  }
+
+  /**
+   * Unit test for CompiledJoinPredicate.filter() over string fields, for
+   * every operator
+   */
+  @Test public void stringFields() {
+    Tuple left = stringTuple("bc");
+    Tuple[] right = new Tuple[] { stringTuple("a"), stringTuple("bc"), stringTuple("c"), stringTuple("bcd") };
+    check(Predicate.Op.EQUALS, Type.STRING_TYPE, left, right, new boolean[] { false, true, false, false });
+    check(Predicate.Op.NOT_EQUALS, Type.STRING_TYPE, left, right, new boolean[] { true, false, true, true });
+    check(Predicate.Op.GREATER_THAN, Type.STRING_TYPE, left, right, new boolean[] { true, false, false, false });
+    check(Predicate.Op.GREATER_THAN_OR_EQ, Type.STRING_TYPE, left, right,
+        new boolean[] { true, true, false, false });
+    check(Predicate.Op.LESS_THAN, Type.STRING_TYPE, left, right, new boolean[] { false, false, true, true });
+    check(Predicate.Op.LESS_THAN_OR_EQ, Type.STRING_TYPE, left, right, new boolean[] { false, true, true, true });
+    // LIKE matches strings containing the right value
+    check(Predicate.Op.LIKE, Type.STRING_TYPE, left, right, new boolean[] { false, true, true, false });
+  }
+
+  /**
+   * Join fields need not be the first field of either tuple
+   */
+  @Test public void otherFields() {
+    Tuple left = Utility.getHeapTuple(new int[] { 5, 7 });
+    Tuple right = Utility.getHeapTuple(new int[] { 7, 5, 9 });
+    assertEquals(true, CompiledJoinPredicate.compile(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+        Type.INT_TYPE).filter(left, right));
+    assertEquals(true, CompiledJoinPredicate.compile(new JoinPredicate(0, Predicate.Op.LESS_THAN, 2),
+        Type.INT_TYPE).filter(left, right));
+    assertEquals(false, CompiledJoinPredicate.compile(new JoinPredicate(1, Predicate.Op.GREATER_THAN, 2),
+        Type.INT_TYPE).filter(left, right));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CompiledJoinPredicateTest.class);
+  }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompositeKeyTest extends SimpleDbTestBase {
+
+    private static StringField key(Object... values) throws DbException {
+        Field[] fields = new Field[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof Integer)
+                fields[i] = new IntField((Integer) values[i]);
+            else
+                fields[i] = new StringField((String) values[i], Type.STRING_LEN);
+        }
+        return CompositeKey.encode(fields);
+    }
+
+    private static boolean selects(IndexPredicate ipred, Field key) {
+        return key.compare(ipred.getOp(), ipred.getField())
+                && (ipred.getUpperOp() == null || key.compare(ipred.getUpperOp(), ipred.getUpperField()));
+    }
+
+    /**
+     * Unit test for the order of encoded keys
+     */
+    @Test
+    public void order() throws Exception {
+        // each key is smaller than the next
+        StringField[] keys = new StringField[] {
+                key(Integer.MIN_VALUE, "z"), key(-1, ""), key(-1, "a"), key(-1, "a\u0001"),
+                key(-1, "a\u0002"), key(-1, "ab"), key(0, "a"), key(1, ""), key(Integer.MAX_VALUE, "") };
+        for (int i = 0; i + 1 < keys.length; i++)
+            assertTrue(i + ": " + keys[i], keys[i].compare(Predicate.Op.LESS_THAN, keys[i + 1]));
+        assertEquals(key(5, "x", 7), key(5, "x", 7));
+    }
+
+    /**
+     * Unit test for prefix ranges over encoded keys
+     */
+    @Test
+    public void prefixRange() throws Exception {
+        Field[] tenant = new Field[] { new IntField(5) };
+        IndexPredicate all = CompositeKey.prefixRange(tenant, null, null);
+        IndexPredicate from = CompositeKey.prefixRange(tenant, Predicate.Op.GREATER_THAN, new IntField(10));
+        IndexPredicate upTo = CompositeKey.prefixRange(tenant, Predicate.Op.LESS_THAN_OR_EQ, new IntField(10));
+        IndexPredicate at = CompositeKey.prefixRange(tenant, Predicate.Op.EQUALS, new IntField(10));
+        for (int t = 4; t <= 6; t++) {
+            for (int ts = 8; ts <= 12; ts++) {
+                for (StringField k : new StringField[] { key(t, ts), key(t, ts, "more") }) {
+                    assertEquals(t == 5, selects(all, k));
+                    assertEquals(t == 5 && ts > 10, selects(from, k));
+                    assertEquals(t == 5 && ts <= 10, selects(upTo, k));
+                    assertEquals(t == 5 && ts == 10, selects(at, k));
+                }
+            }
+        }
+
+        // with no prefix only one end may be bounded
+        IndexPredicate below = CompositeKey.prefixRange(new Field[0], Predicate.Op.LESS_THAN, new IntField(0));
+        assertTrue(selects(below, key(-1, 99)));
+        assertFalse(selects(below, key(0, -99)));
+    }
+
+    @Test(expected = DbException.class)
+    public void tooLong() throws Exception {
+        char[] chars = new char[Type.STRING_LEN];
+        Arrays.fill(chars, 'x');
+        key(new String(chars), 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompositeKeyTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * Draw n values from a Zipf distribution over 1..domain, so that value 1
+	 * is by far the most common and most values are rare.
+	 */
+	private static int[] zipf(Random rand, int n, int domain, double skew) {
+		double[] cdf = new double[domain];
+		double total = 0.0;
+		for (int v = 1; v <= domain; v++) {
+			total += 1.0 / Math.pow(v, skew);
+			cdf[v - 1] = total;
+		}
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			int k = Arrays.binarySearch(cdf, rand.nextDouble() * total);
+			values[i] = (k >= 0 ? k : -k - 1) + 1;
+		}
+		return values;
+	}
+
+	private static double fraction(int[] values, Op op, int v) {
+		int n = 0;
+		for (int x : values) {
+			if (new IntField(x).compare(op, new IntField(v)))
+				n++;
+		}
+		return (double) n / values.length;
+	}
+
+	/**
+	 * On skewed data the hot values should be estimated about exactly, where
+	 * a fixed-width histogram smears them over their whole bucket.
+	 */
+	@Test public void skewedEqualsTest() {
+		int[] values = zipf(new Random(0), 100000, 10000, 1.2);
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 100, values, values.length);
+		IntHistogram fixed = new IntHistogram(100, 1, 10000);
+		for (int v : values)
+			fixed.addValue(v);
+
+		for (int v = 1; v <= 5; v++) {
+			double actual = fraction(values, Op.EQUALS, v);
+			Assert.assertEquals(actual, h.estimateSelectivity(Op.EQUALS, v), actual * 0.01);
+			Assert.assertTrue(Math.abs(fixed.estimateSelectivity(Op.EQUALS, v) - actual) > actual * 0.5);
+		}
+
+		// a rare value should stay rare
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 5000) < 0.001);
+	}
+
+	/**
+	 * Range estimates should stay close to the data even where it is skewed.
+	 */
+	@Test public void skewedRangeTest() {
+		int[] values = zipf(new Random(1), 100000, 10000, 1.2);
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 100, values, values.length);
+		for (int v : new int[] { 0, 1, 2, 10, 50, 200, 1000, 5000, 10001 }) {
+			for (Op op : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+				Assert.assertEquals(op + " " + v, fraction(values, op, v), h.estimateSelectivity(op, v), 0.02);
+			}
+		}
+	}
+
+	/**
+	 * A histogram built from a sample should scale its counts up to the whole
+	 * table, so that the selectivities of all the values still add up to 1.
+	 */
+	@Test public void sampleTest() {
+		int[] values = zipf(new Random(2), 100000, 500, 1.0);
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 100, Arrays.copyOf(values, 10000), values.length);
+		double sum = 0.0;
+		for (int v = 1; v <= 500; v++)
+			sum += h.estimateSelectivity(Op.EQUALS, v);
+		Assert.assertEquals(1.0, sum, 0.05);
+		Assert.assertEquals(fraction(values, Op.EQUALS, 1), h.estimateSelectivity(Op.EQUALS, 1), 0.01);
+		Assert.assertEquals(fraction(values, Op.LESS_THAN, 100), h.estimateSelectivity(Op.LESS_THAN, 100), 0.02);
+	}
+
+	/**
+	 * The chance of two random rows matching is dominated by the hot values.
+	 */
+	@Test public void avgSelectivityTest() {
+		int[] uniform = new int[10000];
+		for (int i = 0; i < uniform.length; i++)
+			uniform[i] = i % 1000;
+		EquiDepthHistogram u = new EquiDepthHistogram(100, 100, uniform, uniform.length);
+		Assert.assertEquals(0.001, u.avgSelectivity(), 0.0001);
+
+		int[] skewed = zipf(new Random(3), 10000, 1000, 1.2);
+		double expected = 0.0;
+		for (int v = 1; v <= 1000; v++) {
+			double f = fraction(skewed, Op.EQUALS, v);
+			expected += f * f;
+		}
+		EquiDepthHistogram s = new EquiDepthHistogram(100, 100, skewed, skewed.length);
+		Assert.assertEquals(expected, s.avgSelectivity(), expected * 0.05);
+	}
+
+	/**
+	 * Strings sharing their first four characters map to the same int, but
+	 * the most common strings should still be told apart by equality, and
+	 * range estimates should count them by their whole values.
+	 */
+	@Test public void stringMcvTest() {
+		String[] values = new String[10000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i < 6000 ? "user_hot" : i < 6100 ? "user_warm" : "user_" + i;
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 100, values, values.length);
+
+		Assert.assertEquals(0.6, h.estimateSelectivity(Op.EQUALS, "user_hot"), 0.001);
+		Assert.assertEquals(0.01, h.estimateSelectivity(Op.EQUALS, "user_warm"), 0.001);
+		// the other strings all fall in buckets bounded by "user", but are
+		// counted as the distinct strings they are
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, "user_cold") < 0.02);
+		// ranges count the MCVs by their whole values
+		Assert.assertTrue(h.estimateSelectivity(Op.LESS_THAN, "user_warm") >= 0.6);
+		Assert.assertTrue(h.estimateSelectivity(Op.GREATER_THAN, "user_hot") <= 0.4);
+		Assert.assertEquals(0.01, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, "user_warm")
+				- h.estimateSelectivity(Op.LESS_THAN, "user_warm"), 0.001);
+
+		h.addValue("user_warm");
+		h.removeValue("user_hot");
+		Assert.assertEquals(101.0 / 10000, h.estimateSelectivity(Op.EQUALS, "user_warm"), 0.0001);
+	}
+
+	@Test public void emptyTest() {
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 100, new int[0], 0);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 3), 0.0);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, 3), 0.0);
+	}
+}
@@ -120,6 +120,24 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for Filter.getNext() over a conjunction of predicates
+   */
+  @Test public void filterConjunction() throws Exception {
+    Predicate[] preds = new Predicate[] {
+        new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(-2)),
+        new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(3)),
+        new Predicate(2, Predicate.Op.NOT_EQUALS, TestUtil.getField(0)) };
+    Filter op = new Filter(preds, scan);
+    op.open();
+    for (int v : new int[] { -2, -1, 1, 2 }) {
+      assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(v, testWidth),
+          op.next()));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
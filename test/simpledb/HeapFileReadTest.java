@@ -121,6 +121,37 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator() with pushed-down predicates and
+     * projection, over several pages
+     */
+    @Test
+    public void testIteratorPushdown() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1500, 50, null, tuples);
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+            new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(25)) };
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 10 && t.get(2) >= 25)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(2), t.get(1))));
+        }
+
+        DbFileIterator it = f.iterator(tid, preds, new int[] { 2, 1 });
+        it.open();
+        ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertNotNull(t.getRecordId());
+            actual.add(SystemTestUtil.tupleToList(t));
+        }
+        it.close();
+        assertEquals(expected, actual);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,65 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+    private static HyperLogLog sketch(int from, int to) {
+        HyperLogLog h = new HyperLogLog();
+        for (int v = from; v < to; v++)
+            h.add(new IntField(v));
+        return h;
+    }
+
+    /**
+     * Estimates should stay within a few standard errors of the truth over a
+     * wide range of cardinalities.
+     */
+    @Test
+    public void estimate() {
+        for (int n : new int[] { 0, 1, 10, 100, 1000, 10000, 100000, 1000000 }) {
+            long e = sketch(0, n).estimate();
+            assertEquals("n = " + n, n, e, Math.max(1, n * 0.05));
+        }
+    }
+
+    /**
+     * Adding the same values again should not change the estimate.
+     */
+    @Test
+    public void duplicates() {
+        HyperLogLog h = new HyperLogLog();
+        for (int i = 0; i < 100000; i++)
+            h.add(new IntField(i % 500));
+        assertEquals(500, h.estimate(), 25);
+
+        HyperLogLog s = new HyperLogLog();
+        for (int i = 0; i < 20000; i++)
+            s.add(new StringField("value" + (i % 3000), Type.STRING_LEN));
+        assertEquals(3000, s.estimate(), 150);
+    }
+
+    @Test
+    public void merge() {
+        HyperLogLog h = sketch(0, 60000);
+        h.merge(sketch(40000, 100000));
+        assertEquals(100000, h.estimate(), 5000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDifferentPrecisions() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HyperLogLogTest.class);
+    }
+}
@@ -0,0 +1,464 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexScanTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private SecondaryIndex index;
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10000, 2000, null, tuples, "c");
+        tid = new TransactionId();
+        File f = File.createTempFile("index", "dat");
+        f.deleteOnExit();
+        index = SecondaryIndex.create(tid, "idx", hf.getId(), 1, f);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(Predicate.Op op, int v) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(1)).compare(op, new IntField(v)))
+                expected.add(t);
+        }
+        return expected;
+    }
+
+    /**
+     * Unit test for point and range lookups through IndexScan
+     */
+    @Test
+    public void lookups() throws Exception {
+        int key = tuples.get(0).get(1);
+        SystemTestUtil.matchTuples(new IndexScan(tid, index,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key))),
+                matching(Predicate.Op.EQUALS, key));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index,
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100))),
+                matching(Predicate.Op.LESS_THAN, 100));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, null), tuples);
+    }
+
+    /**
+     * Unit test for residual predicates and projection
+     */
+    @Test
+    public void residual() throws Exception {
+        Predicate[] preds = new Predicate[] { new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(250)) };
+        IndexScan scan = new IndexScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1800)), preds, new int[] { 0 });
+        assertEquals("t.c0", scan.getTupleDesc().getFieldName(0));
+        assertEquals(1, scan.getTupleDesc().numFields());
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) >= 1800 && t.get(0) > 250)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(0))));
+        }
+        SystemTestUtil.matchTuples(scan, expected);
+    }
+
+    /**
+     * Unit test for index maintenance by BufferPool.insertTuple and
+     * deleteTuple
+     */
+    @Test
+    public void maintenance() throws Exception {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(7));
+        t.setField(1, new IntField(100000));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+
+        IndexScan scan = new IndexScan(tid, index,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(100000)));
+        scan.open();
+        assertTrue(scan.hasNext());
+        Tuple found = scan.next();
+        assertEquals(t.getRecordId(), found.getRecordId());
+        assertFalse(scan.hasNext());
+
+        Database.getBufferPool().deleteTuple(tid, found);
+        scan.rewind();
+        assertFalse(scan.hasNext());
+        scan.close();
+    }
+
+    /**
+     * The planner should read a selective filter on the index key through
+     * the index, and an unselective one with a sequential scan
+     */
+    @Test
+    public void plannerChoosesIndex() throws Exception {
+        String name = Database.getCatalog().getTableName(hf.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "42");
+        lp.addProjectField("t.c0", null);
+        assertTrue(containsIndexScan(lp.physicalPlan(tid, stats, false)));
+
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "10");
+        lp.addProjectField("t.c0", null);
+        assertFalse(containsIndexScan(lp.physicalPlan(tid, stats, false)));
+    }
+
+    /**
+     * Unit test for an index-only scan over an index with an included field
+     */
+    @Test
+    public void indexOnly() throws Exception {
+        File f = File.createTempFile("covering", "dat");
+        f.deleteOnExit();
+        SecondaryIndex covering = SecondaryIndex.create(tid, "covering", hf.getId(), 1, new int[] { 0 }, f);
+        assertEquals(0, covering.entryField(1));
+        assertEquals(SecondaryIndex.INCLUDED_OFFSET, covering.entryField(0));
+        assertEquals(-1, index.entryField(0));
+
+        Predicate[] preds = new Predicate[] { new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(250)) };
+        IndexScan scan = new IndexScan(tid, covering, "t",
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(300)), preds, new int[] { 1, 0 });
+        assertTrue(scan.isIndexOnly());
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 300 && t.get(0) > 250)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(1), t.get(0))));
+        }
+        SystemTestUtil.matchTuples(scan, expected);
+
+        // the tuples still name their heap RecordId
+        scan = new IndexScan(tid, covering, null);
+        assertTrue(scan.isIndexOnly());
+        scan.open();
+        Tuple t = scan.next();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
+                Permissions.READ_ONLY);
+        assertEquals(t.toString(), page.getTuple(t.getRecordId().getTupleNumber(), new Predicate[0], null,
+                hf.getTupleDesc()).toString());
+        scan.close();
+
+        // the index without included fields has to read the heap for c0
+        assertFalse(new IndexScan(tid, index, null).isIndexOnly());
+        assertTrue(new IndexScan(tid, index, "t", null, new Predicate[0], new int[] { 1 }).isIndexOnly());
+    }
+
+    /**
+     * The planner should answer a query covered by an index from the index
+     * alone when the index is narrower than the table, even with no filter
+     * on the index key
+     */
+    @Test
+    public void plannerChoosesIndexOnly() throws Exception {
+        HeapFile wide = SystemTestUtil.createRandomHeapFile(10, 5000, 2000, null, null, "w");
+        File f = File.createTempFile("covering", "dat");
+        f.deleteOnExit();
+        SecondaryIndex.create(tid, "wide_c1", wide.getId(), 1, new int[] { 0 }, f);
+        String name = Database.getCatalog().getTableName(wide.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(wide.getId(), TableStats.IOCOSTPERPAGE));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(wide.getId(), "t");
+        lp.addFilter("t.w0", Predicate.Op.GREATER_THAN, "10");
+        lp.addProjectField("t.w1", null);
+        IndexScan scan = findIndexScan(lp.physicalPlan(tid, stats, false));
+        assertNotNull(scan);
+        assertTrue(scan.isIndexOnly());
+
+        // w2 is not in the index
+        lp = new LogicalPlan();
+        lp.addScan(wide.getId(), "t");
+        lp.addFilter("t.w0", Predicate.Op.GREATER_THAN, "10");
+        lp.addProjectField("t.w2", null);
+        assertNull(findIndexScan(lp.physicalPlan(tid, stats, false)));
+    }
+
+    /**
+     * Unit test for an index on (tenant, ts) read with an equality on the
+     * tenant and a range on ts, and for the planner choosing it
+     */
+    @Test
+    public void compositeKey() throws Exception {
+        // string keys make an index of several hundred pages
+        Database.resetBufferPool(1000);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        Random rand = new Random(0);
+        for (int i = 0; i < 10000; i++)
+            rows.add(new ArrayList<Integer>(Arrays.asList(rand.nextInt(20), rand.nextInt(2000), i)));
+        File data = File.createTempFile("tenants", "dat");
+        data.deleteOnExit();
+        HeapFileEncoder.convert(rows, data, BufferPool.getPageSize(), 3);
+        HeapFile tenants = Utility.openHeapFile(3, "e", data);
+        File f = File.createTempFile("composite", "dat");
+        f.deleteOnExit();
+        SecondaryIndex composite = SecondaryIndex.create(tid, "tenant_ts", tenants.getId(), new int[] { 0, 1 },
+                new int[0], f);
+        assertTrue(composite.isComposite());
+
+        IndexScan scan = new IndexScan(tid, composite, CompositeKey.prefixRange(new Field[] { new IntField(3) },
+                Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1500)));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : rows) {
+            if (row.get(0) == 3 && row.get(1) >= 1500)
+                expected.add(row);
+        }
+        SystemTestUtil.matchTuples(scan, expected);
+
+        // the index is kept up to date like any other
+        Tuple t = new Tuple(tenants.getTupleDesc());
+        t.setField(0, new IntField(3));
+        t.setField(1, new IntField(1999));
+        t.setField(2, new IntField(-1));
+        Database.getBufferPool().insertTuple(tid, tenants.getId(), t);
+        expected.add(new ArrayList<Integer>(Arrays.asList(3, 1999, -1)));
+        SystemTestUtil.matchTuples(scan, expected);
+
+        String name = Database.getCatalog().getTableName(tenants.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(tenants.getId(), TableStats.IOCOSTPERPAGE));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tenants.getId(), "t");
+        lp.addFilter("t.e0", Predicate.Op.EQUALS, "3");
+        lp.addFilter("t.e1", Predicate.Op.GREATER_THAN, "1980");
+        lp.addFilter("t.e2", Predicate.Op.GREATER_THAN, "0");
+        lp.addProjectField("t.e2", null);
+        scan = findIndexScan(lp.physicalPlan(tid, stats, false));
+        assertNotNull(scan);
+        assertEquals(2, scan.getIndexedPredicates().length);
+        assertEquals(1, scan.getPushedPredicates().length);
+
+        expected.clear();
+        for (ArrayList<Integer> row : rows) {
+            if (row.get(0) == 3 && row.get(1) > 1980 && row.get(2) > 0)
+                expected.add(new ArrayList<Integer>(Arrays.asList(row.get(2))));
+        }
+        SystemTestUtil.matchTuples(scan, expected);
+    }
+
+    /**
+     * Unit test for an online build: writes made before and after the table
+     * is scanned are logged and replayed, and the index is hidden from the
+     * planner until it is published
+     */
+    @Test
+    public void onlineBuild() throws Exception {
+        File f = File.createTempFile("online", "dat");
+        f.deleteOnExit();
+        SecondaryIndex online = SecondaryIndex.beginBuild("online", hf.getId(), new int[] { 1 }, new int[0], f);
+        IndexBuild build = online.build;
+        assertFalse(online.isReady());
+        assertFalse(Database.getCatalog().getIndexes(hf.getId()).contains(online));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        it.close();
+
+        // before the scan
+        Tuple early = insert(7, 100001);
+        delete(first, expected);
+        build.load(tid);
+
+        // after the scan, enough to take more than one catch-up batch
+        delete(early, null);
+        delete(second, expected);
+        int n = IndexBuild.CATCH_UP_BATCH * 3 / 2;
+        for (int i = 0; i < n; i++) {
+            insert(i, 200000 + i);
+            expected.add(new ArrayList<Integer>(Arrays.asList(i, 200000 + i)));
+        }
+        assertEquals(4 + n, build.pending());
+
+        build.publish(tid);
+        assertTrue(online.isReady());
+        assertTrue(Database.getCatalog().getIndexes(hf.getId()).contains(online));
+        SystemTestUtil.matchTuples(new IndexScan(tid, online, null), expected);
+
+        // once published, writes go straight to the index
+        insert(8, 100002);
+        expected.add(new ArrayList<Integer>(Arrays.asList(8, 100002)));
+        assertEquals(0, build.pending());
+        SystemTestUtil.matchTuples(new IndexScan(tid, online, null), expected);
+    }
+
+    /**
+     * Unit test for an online build while a writer aborts: replay keeps the
+     * index in step with whatever the table holds after the abort
+     */
+    @Test
+    public void abortedWriter() throws Exception {
+        File f = File.createTempFile("aborted", "dat");
+        f.deleteOnExit();
+        SecondaryIndex online = SecondaryIndex.beginBuild("aborted", hf.getId(), new int[] { 1 }, new int[0], f);
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple victim = it.next();
+        it.close();
+
+        TransactionId writerTid = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(9));
+        t.setField(1, new IntField(400000));
+        Database.getBufferPool().insertTuple(writerTid, hf.getId(), t);
+        Database.getBufferPool().deleteTuple(writerTid, victim);
+        Database.getBufferPool().transactionComplete(writerTid, false);
+
+        online.build.load(tid);
+        online.build.publish(tid);
+
+        ArrayList<ArrayList<Integer>> inTable = new ArrayList<ArrayList<Integer>>();
+        it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple row = it.next();
+            inTable.add(new ArrayList<Integer>(Arrays.asList(((IntField) row.getField(0)).getValue(),
+                    ((IntField) row.getField(1)).getValue())));
+        }
+        it.close();
+        SystemTestUtil.matchTuples(new IndexScan(tid, online, null), inTable);
+    }
+
+    /**
+     * Unit test for an online build with a writer running in another thread
+     * throughout load() and publish()
+     */
+    @Test
+    public void concurrentWriter() throws Exception {
+        final ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 100; i++)
+            victims.add(it.next());
+        it.close();
+
+        final TransactionId writerTid = new TransactionId();
+        final int n = 1000;
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < n; i++) {
+                        Tuple t = new Tuple(hf.getTupleDesc());
+                        t.setField(0, new IntField(i));
+                        t.setField(1, new IntField(300000 + i));
+                        Database.getBufferPool().insertTuple(writerTid, hf.getId(), t);
+                        if (i < victims.size())
+                            Database.getBufferPool().deleteTuple(writerTid, victims.get(i));
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+
+        File f = File.createTempFile("concurrent", "dat");
+        f.deleteOnExit();
+        writer.start();
+        SecondaryIndex built = SecondaryIndex.create(tid, "concurrent", hf.getId(), 1, f);
+        writer.join();
+        assertNull(failure[0]);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        for (Tuple t : victims) {
+            expected.remove(Arrays.asList(((IntField) t.getField(0)).getValue(),
+                    ((IntField) t.getField(1)).getValue()));
+        }
+        for (int i = 0; i < n; i++)
+            expected.add(new ArrayList<Integer>(Arrays.asList(i, 300000 + i)));
+        SystemTestUtil.matchTuples(new IndexScan(tid, built, null), expected);
+    }
+
+    /**
+     * Unit test for a failed build: the index and the table registered for
+     * its file are both withdrawn from the catalog
+     */
+    @Test
+    public void failedBuild() throws Exception {
+        HeapFile wide = SystemTestUtil.createRandomHeapFile(20, 10, null, null);
+        int[] keyFields = new int[20];
+        for (int i = 0; i < keyFields.length; i++)
+            keyFields[i] = i;
+        File f = File.createTempFile("failed", "dat");
+        f.deleteOnExit();
+        try {
+            SecondaryIndex.create(tid, "failed", wide.getId(), keyFields, new int[0], f);
+            fail("expected the composite key to be too long");
+        } catch (DbException e) {
+            // expected
+        }
+        assertTrue(Database.getCatalog().getMaintainedIndexes(wide.getId()).isEmpty());
+        try {
+            Database.getCatalog().getTableId("failed");
+            fail("expected the index file to be unregistered");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    private Tuple insert(int c0, int c1) throws Exception {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(c0));
+        t.setField(1, new IntField(c1));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        return t;
+    }
+
+    private void delete(Tuple t, ArrayList<ArrayList<Integer>> expected) throws Exception {
+        Database.getBufferPool().deleteTuple(tid, t);
+        if (expected != null) {
+            expected.remove(Arrays.asList(((IntField) t.getField(0)).getValue(),
+                    ((IntField) t.getField(1)).getValue()));
+        }
+    }
+
+    private static boolean containsIndexScan(OpIterator op) {
+        return findIndexScan(op) != null;
+    }
+
+    private static IndexScan findIndexScan(OpIterator op) {
+        if (op instanceof IndexScan)
+            return (IndexScan) op;
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                IndexScan scan = findIndexScan(child);
+                if (scan != null)
+                    return scan;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexScanTest.class);
+    }
+}
@@ -178,6 +178,36 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test that SUM_COUNT partials merged by SC_AVG give the same result as AVG
+   */
+  @Test public void mergeSumCountIntoAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator left = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    IntegerAggregator right = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    for (int i = 0; scan1.hasNext(); i++) {
+      (i % 2 == 0 ? left : right).mergeTupleIntoGroup(scan1.next());
+    }
+
+    OpIterator it = left.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new int[] { 1, 8, 2, 3, 4, 1, 5, 7, 1 }), it);
+
+    IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    for (IntegerAggregator partial : new IntegerAggregator[] { left, right }) {
+      it = partial.iterator();
+      it.open();
+      while (it.hasNext()) {
+        avg.mergeTupleIntoGroup(it.next());
+      }
+    }
+    it = avg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,107 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class JoinGraphTest extends SimpleDbTestBase {
+
+    private static LogicalJoinNode join(int a, int b) {
+        return new LogicalJoinNode("t" + a, "t" + b, "c0", "c0", Predicate.Op.EQUALS);
+    }
+
+    /**
+     * A random connected graph: a random spanning tree plus a few extra
+     * edges
+     */
+    private static Vector<LogicalJoinNode> randomGraph(Random rand, int n) {
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        for (int v = 1; v < n; v++)
+            joins.add(join(rand.nextInt(v), v));
+        for (int i = rand.nextInt(n); i > 0; i--) {
+            int a = rand.nextInt(n);
+            int b = rand.nextInt(n);
+            if (a != b)
+                joins.add(join(a, b));
+        }
+        Collections.shuffle(joins, rand);
+        return joins;
+    }
+
+    private static boolean connected(JoinGraph g, long s) {
+        long reached = Long.lowestOneBit(s);
+        while (true) {
+            long next = reached | (g.neighborhood(reached, 0) & s);
+            if (next == reached)
+                return reached == s;
+            reached = next;
+        }
+    }
+
+    private static boolean joined(JoinGraph g, long s1, long s2) {
+        for (int i = 0; i < g.numJoins(); i++) {
+            if (g.connects(i, s1, s2))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * enumerateCcp should list exactly the connected, joined pairs, each
+     * once, and every pair after all of the pairs making up its halves
+     */
+    @Test
+    public void enumerateCcp() throws Exception {
+        Random rand = new Random(0);
+        for (int trial = 0; trial < 50; trial++) {
+            final JoinGraph g = new JoinGraph(randomGraph(rand, 2 + rand.nextInt(7)));
+            long all = g.all();
+
+            HashSet<List<Long>> expected = new HashSet<List<Long>>();
+            for (long s1 = 1; s1 <= all; s1++) {
+                long rest = all & ~s1;
+                for (long s2 = rest; s2 != 0; s2 = (s2 - 1) & rest) {
+                    if (Long.lowestOneBit(s1) < Long.lowestOneBit(s2) && connected(g, s1) && connected(g, s2)
+                            && joined(g, s1, s2))
+                        expected.add(Arrays.asList(s1, s2));
+                }
+            }
+
+            final ArrayList<List<Long>> visited = new ArrayList<List<Long>>();
+            g.enumerateCcp(new JoinGraph.PairVisitor() {
+                public void visit(long s1, long s2) {
+                    visited.add(Arrays.asList(s1, s2));
+                }
+            });
+            assertEquals(expected, new HashSet<List<Long>>(visited));
+            assertEquals(expected.size(), visited.size());
+
+            HashSet<Long> used = new HashSet<Long>();
+            for (List<Long> pair : visited) {
+                used.add(pair.get(0));
+                used.add(pair.get(1));
+                assertFalse(used.contains(pair.get(0) | pair.get(1)));
+            }
+        }
+    }
+
+    @Test(expected = ParsingException.class)
+    public void disconnected() throws Exception {
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        joins.add(join(0, 1));
+        joins.add(join(2, 3));
+        new JoinGraph(joins);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JoinGraphTest.class);
+    }
+}
@@ -3,8 +3,10 @@ package simpledb;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -621,4 +623,288 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * A 15-way star join, which has far more connected subsets than a chain
+     * of the same length, should still be planned quickly
+     */
+    @Test(timeout = 10000)
+    public void starOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        final int DIMENSIONS = 14;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> dimTuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.createRandomHeapFile(2, 100, Integer.MAX_VALUE, null, dimTuples, "c");
+        ArrayList<ArrayList<Integer>> factTuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 10000; i++)
+            factTuples.add(dimTuples.get(i % 100));
+        HeapFile fact = createDuplicateHeapFile(factTuples, 2, "c");
+        Database.getCatalog().addTable(fact, "fact");
+        stats.put("fact", new TableStats(fact.getId(), IO_COST));
+        filterSelectivities.put("fact", 1.0);
+
+        StringBuilder from = new StringBuilder("fact");
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < DIMENSIONS; i++) {
+            String name = "dim" + i;
+            HeapFile dim = createDuplicateHeapFile(dimTuples, 2, "c");
+            Database.getCatalog().addTable(dim, name);
+            stats.put(name, new TableStats(dim.getId(), IO_COST));
+            filterSelectivities.put(name, i == 5 ? 0.01 : 1.0);
+            nodes.add(new LogicalJoinNode("fact", name, "c" + (i % 2), "c0", Predicate.Op.EQUALS));
+            from.append(", ").append(name);
+            where.append(i == 0 ? "" : " AND ").append("fact.c" + (i % 2) + " = " + name + ".c0");
+        }
+        Collections.shuffle(nodes);
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT COUNT(fact.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        Assert.assertTrue(new HashSet<LogicalJoinNode>(nodes).equals(new HashSet<LogicalJoinNode>(result)));
+        // the plan is left-deep: every join after the first adds one table
+        HashSet<String> joined = new HashSet<String>();
+        joined.add(result.get(0).t1Alias);
+        joined.add(result.get(0).t2Alias);
+        for (int i = 1; i < result.size(); i++) {
+            LogicalJoinNode lj = result.get(i);
+            Assert.assertTrue(joined.contains(lj.t1Alias) != joined.contains(lj.t2Alias));
+            joined.add(lj.t1Alias);
+            joined.add(lj.t2Alias);
+        }
+    }
+
+    /**
+     * Two tables joined on more than one predicate: the first predicate joins
+     * them and the others filter the join
+     */
+    @Test
+    public void multiplePredicatesTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> aTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile ta = SystemTestUtil.createRandomHeapFile(2, 200, 5, null, aTuples, "c");
+        Database.getCatalog().addTable(ta, "ta");
+        ArrayList<ArrayList<Integer>> bTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile tb = SystemTestUtil.createRandomHeapFile(2, 200, 5, null, bTuples, "c");
+        Database.getCatalog().addTable(tb, "tb");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ta", new TableStats(ta.getId(), TableStats.IOCOSTPERPAGE));
+        stats.put("tb", new TableStats(tb.getId(), TableStats.IOCOSTPERPAGE));
+
+        int expected = 0;
+        for (ArrayList<Integer> a : aTuples) {
+            for (ArrayList<Integer> b : bTuples) {
+                if (a.get(0).equals(b.get(0)) && a.get(1) < b.get(1))
+                    expected++;
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM ta, tb WHERE ta.c0 = tb.c0 AND ta.c1 < tb.c1;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            Assert.assertEquals(t.getField(0), t.getField(2));
+            Assert.assertTrue(t.getField(1).compare(Predicate.Op.LESS_THAN, t.getField(3)));
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+    }
+
+    /**
+     * A join of more relations than the dynamic program handles should be
+     * planned greedily, still keeping the big table for last
+     */
+    @Test(timeout = 20000)
+    public void greedyOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        final int SMALL = 30;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> smallTuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.createRandomHeapFile(2, 100, Integer.MAX_VALUE, null, smallTuples, "c");
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 100000; i++)
+            bigTuples.add(smallTuples.get(i % 100));
+        HeapFile big = createDuplicateHeapFile(bigTuples, 2, "c");
+        Database.getCatalog().addTable(big, "bigTable");
+        stats.put("bigTable", new TableStats(big.getId(), IO_COST));
+        filterSelectivities.put("bigTable", 1.0);
+
+        StringBuilder from = new StringBuilder("bigTable");
+        StringBuilder where = new StringBuilder("bigTable.c0 = s" + (SMALL - 1) + ".c0");
+        for (int i = 0; i < SMALL; i++) {
+            String name = "s" + i;
+            HeapFile small = createDuplicateHeapFile(smallTuples, 2, "c");
+            Database.getCatalog().addTable(small, name);
+            stats.put(name, new TableStats(small.getId(), IO_COST));
+            filterSelectivities.put(name, 1.0);
+            from.append(", ").append(name);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("s" + (i - 1), name, "c" + (i % 2), "c" + (i % 2),
+                        Predicate.Op.EQUALS));
+                where.append(" AND s" + (i - 1) + ".c" + (i % 2) + " = " + name + ".c" + (i % 2));
+            }
+        }
+        nodes.add(new LogicalJoinNode("s" + (SMALL - 1), "bigTable", "c0", "c0", Predicate.Op.EQUALS));
+        Collections.shuffle(nodes);
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT COUNT(s0.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+        Assert.assertTrue(SMALL + 1 > j.getDpThreshold());
+
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), result.size());
+        Assert.assertTrue(new HashSet<LogicalJoinNode>(nodes).equals(new HashSet<LogicalJoinNode>(result)));
+        Assert.assertEquals("bigTable", result.get(result.size() - 1).t2Alias);
+        Assert.assertTrue(isLeftDeep(result));
+    }
+
+    /**
+     * On the chain a - b - c - d, where a, b and d are big tables filtered
+     * down to a few rows and c is small and unfiltered, joining a with b and
+     * c with d separately and then combining them is cheaper than any
+     * left-deep plan. Plans are left-deep by default, but once bushy plans
+     * are turned on the bushy plan should be chosen, built and executed
+     * correctly.
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws Exception {
+        final int IO_COST = 10;
+        final int BIG = 50000;
+        TransactionId tid = new TransactionId();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        HashMap<Integer, Integer> joinColumn = new HashMap<Integer, Integer>();
+        joinColumn.put(0, 1);
+
+        String[] names = { "a", "b", "c", "d" };
+        int[] limits = { 10, 10, BIG, 20 };
+        int[] matching = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, names[i].equals("c") ? 100 : BIG,
+                    BIG, joinColumn, tuples, "c");
+            Database.getCatalog().addTable(f, names[i]);
+            stats.put(names[i], new TableStats(f.getId(), IO_COST));
+            for (ArrayList<Integer> t : tuples) {
+                if (names[i].equals("c") || t.get(1) < limits[i])
+                    matching[i]++;
+            }
+            filterSelectivities.put(names[i], (double) limits[i] / BIG);
+        }
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("b", "c", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("c", "d", "c0", "c0", Predicate.Op.EQUALS));
+        String query = "SELECT COUNT(a.c0) FROM a, b, c, d WHERE a.c0 = b.c0 AND b.c0 = c.c0 "
+                + "AND c.c0 = d.c0 AND a.c1 < 10 AND b.c1 < 10 AND d.c1 < 20;";
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid, query), nodes);
+        Assert.assertFalse(j.isBushy());
+        Vector<LogicalJoinNode> leftDeep = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertFalse(isBushy(leftDeep));
+        Assert.assertTrue(isLeftDeep(leftDeep));
+        j.setBushy(true);
+        Assert.assertTrue(isBushy(j.orderJoins(stats, filterSelectivities, false)));
+
+        // the default physical plan stays left-deep
+        Assert.assertFalse(joinsJoins(p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false)));
+
+        // every row has the same join key, so the join is a cross product
+        // of the rows passing the filters
+        LogicalPlan lp = p.generateLogicalPlan(tid, query);
+        lp.setBushyJoins(true);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Assert.assertTrue(joinsJoins(plan));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        expected.add(new ArrayList<Integer>(Arrays.asList(matching[0] * matching[1] * matching[2] * matching[3])));
+        SystemTestUtil.matchTuples(plan, expected);
+    }
+
+    /**
+     * @return true if the plan has a join whose children both contain joins
+     */
+    private static boolean joinsJoins(OpIterator op) {
+        if (!(op instanceof Operator))
+            return false;
+        OpIterator[] children = ((Operator) op).getChildren();
+        if ((op instanceof Join || op instanceof HashEquiJoin) && containsJoin(children[0])
+                && containsJoin(children[1]))
+            return true;
+        for (OpIterator child : children) {
+            if (joinsJoins(child))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean containsJoin(OpIterator op) {
+        if (op instanceof Join || op instanceof HashEquiJoin)
+            return true;
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                if (containsJoin(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if every join after the first has the tables joined so
+     *         far as its outer and a single new table as its inner
+     */
+    private static boolean isLeftDeep(Vector<LogicalJoinNode> order) {
+        HashSet<String> joined = new HashSet<String>();
+        for (LogicalJoinNode lj : order) {
+            if (!joined.isEmpty() && (!joined.contains(lj.t1Alias) || joined.contains(lj.t2Alias)))
+                return false;
+            joined.add(lj.t1Alias);
+            joined.add(lj.t2Alias);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if some join in the order combines two plans that are
+     *         both joins already
+     */
+    private static boolean isBushy(Vector<LogicalJoinNode> order) {
+        HashMap<String, HashSet<String>> groups = new HashMap<String, HashSet<String>>();
+        for (LogicalJoinNode lj : order) {
+            HashSet<String> g1 = groups.get(lj.t1Alias);
+            HashSet<String> g2 = groups.get(lj.t2Alias);
+            if (g1 != null && g2 != null)
+                return true;
+            HashSet<String> merged = new HashSet<String>();
+            merged.add(lj.t1Alias);
+            merged.add(lj.t2Alias);
+            if (g1 != null)
+                merged.addAll(g1);
+            if (g2 != null)
+                merged.addAll(g2);
+            for (String alias : merged)
+                groups.put(alias, merged);
+        }
+        return false;
+    }
 }
@@ -1,10 +1,14 @@
 package simpledb;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
 import junit.framework.JUnit4TestAdapter;
 
 public class PredicateTest extends SimpleDbTestBase{
@@ -55,6 +59,40 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * Unit test for CompiledPredicate.filter() over serialized rows, which
+   * must agree with Predicate.filter() for every operator
+   */
+  @Test public void compiledRawBytes() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    int[] offsets = new int[] { 0, Type.INT_TYPE.getLen() };
+    String[] strings = new String[] { "a", "bc", "bcd", "c" };
+    for (int i = 0; i < strings.length; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i - 1));
+      t.setField(1, new StringField(strings[i], Type.STRING_LEN));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(bytes);
+      // an unrelated leading byte, so the row does not start at 0
+      dos.writeByte(7);
+      t.getField(0).serialize(dos);
+      t.getField(1).serialize(dos);
+      byte[] data = bytes.toByteArray();
+
+      for (Predicate.Op op : Predicate.Op.values()) {
+        Predicate[] preds = new Predicate[] { new Predicate(0, op, new IntField(0)),
+            new Predicate(1, op, new StringField("bc", Type.STRING_LEN)) };
+        for (Predicate p : preds) {
+          CompiledPredicate c = CompiledPredicate.compile(p);
+          assertEquals(t + " " + p, p.filter(t), c.filter(data, 1, offsets));
+          assertEquals(t + " " + p, p.filter(t), c.filter(t));
+        }
+        assertEquals(preds[0].filter(t) && preds[1].filter(t),
+            CompiledPredicate.compile(preds).filter(data, 1, offsets));
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
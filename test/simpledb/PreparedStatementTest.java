@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+    private Parser p;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = TestUtil.createTableWithStats("t1", 500, "c", tuples);
+        p = new Parser();
+    }
+
+    /**
+     * Run a prepared statement and return the number of rows it returned.
+     */
+    private int execute(PreparedStatement ps, Object... params) throws Exception {
+        return p.execute(ps, params).size();
+    }
+
+    private int count(int lo, int hi) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= lo && t.get(0) < hi)
+                n++;
+        }
+        return n;
+    }
+
+    @Test public void queryTest() throws Exception {
+        PreparedStatement ps = p.prepare("SELECT * FROM t1 WHERE t1.c0 >= ? AND t1.c0 < ?;");
+        Assert.assertEquals(2, ps.numParameters());
+        for (int lo = 0; lo < 50; lo += 10)
+            Assert.assertEquals(count(lo, lo + 5), execute(ps, lo, lo + 5));
+
+        try {
+            p.execute(ps, 1);
+            Assert.fail("ran a statement without all its parameters");
+        } catch (ParsingException e) {
+            // expected
+        }
+        try {
+            p.execute(ps, "x", 5);
+            Assert.fail("compared an integer field with a string");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    @Test public void insertDeleteTest() throws Exception {
+        PreparedStatement insert = p.prepare("INSERT INTO t1 VALUES (?, 7);");
+        PreparedStatement select = p.prepare("SELECT * FROM t1 WHERE t1.c0 >= ?;");
+        PreparedStatement delete = p.prepare("DELETE FROM t1 WHERE t1.c0 = ?;");
+        Assert.assertEquals(1, insert.numParameters());
+
+        List<Tuple> inserted = p.execute(insert, 100);
+        Assert.assertEquals(1, ((IntField) inserted.get(0).getField(0)).getValue());
+        execute(insert, 101);
+        Assert.assertEquals(2, execute(select, 100));
+
+        execute(delete, 100);
+        Assert.assertEquals(1, execute(select, 100));
+
+        try {
+            p.execute(insert, "x");
+            Assert.fail("inserted a string into an integer field");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A statement prepared before the statistics changed is planned again.
+     */
+    @Test public void replanTest() throws Exception {
+        PreparedStatement ps = p.prepare("SELECT * FROM t1 WHERE t1.c0 < ?;");
+        StatementCache.Entry plan = ps.plan;
+        execute(ps, 10);
+        Assert.assertSame(plan, ps.plan);
+
+        TableStats.setTableStats("t1", new TableStats(f.getId(), 1));
+        Assert.assertEquals(count(0, 20), execute(ps, 20));
+        Assert.assertNotSame(plan, ps.plan);
+    }
+
+    @Test(expected = ParsingException.class) public void subqueryTest() throws Exception {
+        p.prepare("SELECT * FROM t1 WHERE t1.c0 = (SELECT t1.c1 FROM t1 WHERE t1.c1 < ?);");
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
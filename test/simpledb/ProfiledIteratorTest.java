@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ProfiledIteratorTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "t1");
+        TableStats.setTableStats("t1", new TableStats(f.getId(), 1));
+    }
+
+    private int countBelow(int v) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < v)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Each operator should be credited with the rows it produced, and the
+     * scan with a page access for each page of the table.
+     */
+    @Test public void countersTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t1");
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30)), scan);
+        Map<OpIterator, ProfiledIterator> profiles = new IdentityHashMap<OpIterator, ProfiledIterator>();
+        ProfiledIterator root = ProfiledIterator.instrument(filter, profiles);
+        Assert.assertEquals(2, profiles.size());
+        Assert.assertSame(profiles.get(scan), filter.getChildren()[0]);
+
+        root.open();
+        int n = 0;
+        while (root.hasNext()) {
+            root.next();
+            n++;
+        }
+        root.close();
+        ProfiledIterator.uninstrument(filter);
+        Assert.assertSame(scan, filter.getChildren()[0]);
+
+        ProfiledIterator s = profiles.get(scan);
+        Assert.assertEquals(countBelow(30), n);
+        Assert.assertEquals(n, root.rows());
+        Assert.assertEquals(tuples.size(), s.rows());
+        Assert.assertEquals(f.numPages(), s.pagesRead() + s.pageHits());
+        Assert.assertEquals(s.pagesRead(), root.pagesRead());
+        Assert.assertTrue(root.nanos() >= s.nanos());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Rows passed on in batches should be counted as well.
+     */
+    @Test public void batchTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t1");
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)), scan);
+        Aggregate agg = new Aggregate(filter, 0, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        Map<OpIterator, ProfiledIterator> profiles = new IdentityHashMap<OpIterator, ProfiledIterator>();
+        ProfiledIterator root = ProfiledIterator.instrument(agg, profiles);
+        Assert.assertTrue(agg.getChildren()[0] instanceof BatchOpIterator);
+
+        root.open();
+        Tuple t = root.next();
+        Assert.assertFalse(root.hasNext());
+        root.close();
+        ProfiledIterator.uninstrument(agg);
+
+        Assert.assertEquals(countBelow(50), ((IntField) t.getField(0)).getValue());
+        Assert.assertEquals(1, root.rows());
+        Assert.assertEquals(countBelow(50), profiles.get(filter).rows());
+        Assert.assertEquals(tuples.size(), profiles.get(scan).rows());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void explainAnalyzeTest() {
+        PrintStream out = System.out;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buf));
+        try {
+            new Parser().processNextStatement("explain analyze SELECT * FROM t1 WHERE t1.c0 < 30;");
+        } finally {
+            System.setOut(out);
+        }
+        String printed = buf.toString();
+        Assert.assertTrue(printed, printed.contains("actual:" + countBelow(30) + ","));
+        Assert.assertTrue(printed, printed.contains(" " + countBelow(30) + " rows, "));
+        // the rows themselves are not printed
+        Assert.assertFalse(printed, printed.contains("----"));
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ProfiledIteratorTest.class);
+    }
+}
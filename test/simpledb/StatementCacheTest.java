@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StatementCacheTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples1;
+    private ArrayList<ArrayList<Integer>> tuples2;
+    private HeapFile f1;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples1 = new ArrayList<ArrayList<Integer>>();
+        f1 = TestUtil.createTableWithStats("t1", 500, "c", tuples1);
+        tuples2 = new ArrayList<ArrayList<Integer>>();
+        TestUtil.createTableWithStats("t2", 200, "d", tuples2);
+    }
+
+    /**
+     * Run a statement and return the number of rows it produced.
+     */
+    private static int run(Parser p, String sql) {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        p.processNextStatement(sql, rows);
+        return rows.size();
+    }
+
+    private List<ArrayList<Integer>> below(int v) {
+        List<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples1) {
+            if (t.get(0) < v)
+                rows.add(t);
+        }
+        return rows;
+    }
+
+    private int countBelow(int v) {
+        return below(v).size();
+    }
+
+    /** @return the number of rows of t1 joining a row of t2 with d1 below v */
+    private int countJoined(int v) {
+        int n = 0;
+        for (ArrayList<Integer> a : tuples1) {
+            for (ArrayList<Integer> b : tuples2) {
+                if (a.get(0).equals(b.get(0)) && b.get(1) < v)
+                    n++;
+            }
+        }
+        return n;
+    }
+
+    @Test public void normalizeTest() {
+        List<String> constants = new ArrayList<String>();
+        Assert.assertEquals("SELECT * FROM t1 WHERE t1.c0 < ? AND t1.c1 = ?;", StatementCache.normalize(
+                "  SELECT *\n FROM t1   WHERE t1.c0 < 10 AND t1.c1 = 'a 2'; ", constants));
+        Assert.assertEquals(Arrays.asList("10", "a 2"), constants);
+
+        // digits in names, escaped quotes and quoted names stay as they are
+        constants.clear();
+        Assert.assertEquals("SELECT t1.c0 FROM t1 WHERE t1.c1 = 'it''s' AND \"c 1\" > ?;", StatementCache.normalize(
+                "SELECT t1.c0 FROM t1 WHERE t1.c1 = 'it''s' AND \"c 1\" > 3.5;", constants));
+        Assert.assertEquals(Arrays.asList("3.5"), constants);
+    }
+
+    @Test public void bindTest() throws Exception {
+        Parser p = new Parser();
+        LogicalPlan template = p.generateLogicalPlan(new TransactionId(), "SELECT * FROM t1 WHERE t1.c0 < ?;");
+        Assert.assertEquals(1, template.numParameters());
+        try {
+            template.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+            Assert.fail("planned a query without its parameter");
+        } catch (ParsingException e) {
+            // expected
+        }
+
+        for (int v : new int[] { 0, 20, 51 }) {
+            TransactionId tid = new TransactionId();
+            OpIterator it = template.bind(Arrays.asList(Integer.toString(v)))
+                    .physicalPlan(tid, TableStats.getStatsMap(), false);
+            SystemTestUtil.matchTuples(it, below(v));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * A query repeated with other constants should be planned once, and
+     * still return the rows matching its own constants.
+     */
+    @Test public void repeatedQueryTest() {
+        Parser p = new Parser();
+        StatementCache cache = p.getStatementCache();
+        Assert.assertEquals(countBelow(10), run(p, "SELECT * FROM t1 WHERE t1.c0 < 10;"));
+        Assert.assertEquals(1, cache.misses());
+        Assert.assertEquals(0, cache.hits());
+
+        for (int v : new int[] { 0, 25, 40 })
+            Assert.assertEquals(countBelow(v), run(p, "SELECT *  FROM t1 WHERE t1.c0 < " + v + ";"));
+        Assert.assertEquals(3, cache.hits());
+        Assert.assertEquals(1, cache.size());
+
+        // a join reuses its join order
+        String join = "SELECT * FROM t1, t2 WHERE t1.c0 = t2.d0 AND t2.d1 < %d;";
+        for (int v : new int[] { 10, 30 })
+            Assert.assertEquals(countJoined(v), run(p, String.format(join, v)));
+        Assert.assertEquals(4, cache.hits());
+    }
+
+    /**
+     * Changing the statistics or the catalog should plan the query again.
+     */
+    @Test public void invalidationTest() throws Exception {
+        Parser p = new Parser();
+        StatementCache cache = p.getStatementCache();
+        run(p, "SELECT * FROM t1 WHERE t1.c0 < 10;");
+        run(p, "SELECT * FROM t1 WHERE t1.c0 < 20;");
+        Assert.assertEquals(1, cache.hits());
+
+        TableStats.setTableStats("t1", new TableStats(f1.getId(), 1));
+        Assert.assertEquals(countBelow(30), run(p, "SELECT * FROM t1 WHERE t1.c0 < 30;"));
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.misses());
+
+        Database.getCatalog().addTable(
+                SystemTestUtil.createRandomHeapFile(1, 10, null, null), "t3");
+        run(p, "SELECT * FROM t1 WHERE t1.c0 < 30;");
+        Assert.assertEquals(3, cache.misses());
+        run(p, "SELECT * FROM t1 WHERE t1.c0 < 30;");
+        Assert.assertEquals(2, cache.hits());
+    }
+
+    /**
+     * Statements that cannot be planned once for all their constants, like
+     * those with a subquery, are parsed as written every time.
+     */
+    @Test public void uncachedTest() {
+        Parser p = new Parser();
+        String sql = "SELECT * FROM t1 WHERE t1.c0 = (SELECT t2.d0 FROM t2 WHERE t2.d1 < %d);";
+        Assert.assertEquals(countJoined(10), run(p, String.format(sql, 10)));
+        Assert.assertEquals(countJoined(30), run(p, String.format(sql, 30)));
+        Assert.assertEquals(1, p.getStatementCache().misses());
+        Assert.assertEquals(1, p.getStatementCache().hits());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StatementCacheTest.class);
+    }
+}
@@ -1,7 +1,13 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -151,4 +157,185 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that the distinct values of each column are counted: every
+	 * column holds values between 0 and 32 over 10200 rows, so all 32 of
+	 * them should appear.
+	 */
+	@Test public void estimateDistinctTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(32, s.estimateDistinct(col), 2);
+		}
+	}
+
+	/**
+	 * Verify that statistics from a sample of the pages of a table are close
+	 * to the truth: a unique column and a column of values between 0 and 32
+	 * over 200000 rows, of which only about 5% are read.
+	 */
+	@Test public void sampledStatsTest() throws IOException {
+		final int rows = 200000;
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		Random r = new Random(0);
+		for (int i = 0; i < rows; i++) {
+			tuples.add(new ArrayList<Integer>(Arrays.asList(i, r.nextInt(32))));
+		}
+		// block sampling assumes rows are not clustered by value
+		Collections.shuffle(tuples, r);
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, temp);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+		TableStats s = new TableStats(hf.getId(), IO_COST, 0.05, 0.05, 0);
+		Assert.assertEquals(rows, s.totalTuples(), rows * 0.02);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(rows / 2)), 0.05);
+		Assert.assertEquals(1.0/32.0, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(5)), 0.01);
+		Assert.assertEquals(rows, s.estimateDistinct(0), rows * 0.1);
+		Assert.assertEquals(32, s.estimateDistinct(1), 2);
+
+		// a tighter error bound reads more pages, and so counts the rows
+		// more closely
+		TableStats tight = new TableStats(hf.getId(), IO_COST, 0.05, 0.005, 0);
+		Assert.assertEquals(rows, tight.totalTuples(), rows * 0.01);
+	}
+
+	/**
+	 * Verify that statistics saved to a sidecar file are loaded back instead
+	 * of being computed again, unless full scans are asked for.
+	 */
+	@Test public void persistStatsTest() throws IOException {
+		File file = File.createTempFile("catalog", ".stats");
+		file.delete();
+		file.deleteOnExit();
+		TableStats.loadStatistics(file, 0.5, 0.0);
+		// the statistics of a table are only computed once asked for, and
+		// only saved when asked to
+		Assert.assertFalse(TableStats.getStatsMap().containsKey(tableName));
+		TableStats saved = TableStats.getTableStats(tableName);
+		Assert.assertFalse(file.exists());
+
+		// a change the table file does not show tells saved statistics from
+		// freshly computed ones
+		TableStats.tupleInserted(tableId, Utility.getHeapTuple(new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }),
+				new ArrayList<Page>());
+		TableStats.saveStatistics();
+		Assert.assertTrue(file.exists());
+		int savedTuples = saved.totalTuples();
+
+		TableStats.loadStatistics(file, 0.5, 0.0);
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(saved, loaded);
+		Assert.assertEquals(savedTuples, loaded.totalTuples());
+		Assert.assertEquals(saved.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(10)),
+				loaded.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(10)), 0.0);
+
+		TableStats.loadStatistics(file, 1.0, 0.0);
+		Assert.assertEquals(10200, TableStats.getTableStats(tableName).totalTuples());
+	}
+
+	/**
+	 * Verify that inserts and deletes through the BufferPool update the
+	 * statistics in the stats map.
+	 */
+	@Test public void incrementalStatsTest() throws Exception {
+		TableStats s = new TableStats(tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		double before = s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7));
+
+		Database.resetBufferPool(1000);
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 500; i++) {
+			Tuple t = Utility.getHeapTuple(new int[] { 7, 0, 0, 0, 0, 0, 0, 0, 0, 100 + i });
+			Database.getBufferPool().insertTuple(tid, tableId, t);
+			inserted.add(t);
+		}
+		Assert.assertEquals(10700, s.totalTuples());
+		Assert.assertEquals((before * 10200 + 500) / 10700, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7)), 0.01);
+		Assert.assertEquals(500.0 / 10700, s.estimateSelectivity(9, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)), 0.01);
+		Assert.assertEquals(532, s.estimateDistinct(9), 20);
+
+		for (Tuple t : inserted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Assert.assertEquals(10200, s.totalTuples());
+		Assert.assertEquals(before, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7)), 0.005);
+		Assert.assertFalse(s.isRefreshing());
+	}
+
+	/**
+	 * Verify that the statistics can be read while tuples are counted into
+	 * them, starting each round from an empty table whose histograms grow
+	 * their first buckets.
+	 */
+	@Test public void concurrentPlanningTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, 32, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+
+		AtomicReference<TableStats> current = new AtomicReference<TableStats>(new TableStats(hf.getId(), IO_COST));
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread planner = new Thread(() -> {
+			try {
+				for (int v = 0; !done.get(); v++) {
+					TableStats s = current.get();
+					for (int i = 0; i < 2; i++) {
+						double sel = s.estimateSelectivity(i, Predicate.Op.LESS_THAN, new IntField(v % 100));
+						Assert.assertTrue(sel >= 0.0 && sel <= 1.0);
+						s.estimateDistinct(i);
+						s.avgSelectivity(i, Predicate.Op.EQUALS);
+					}
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		planner.start();
+
+		try {
+			for (int round = 0; round < 500 && error.get() == null; round++) {
+				TableStats s = new TableStats(hf.getId(), IO_COST);
+				TableStats.setTableStats(name, s);
+				current.set(s);
+				for (int i = 0; i < 100; i++)
+					TableStats.tupleInserted(hf.getId(), Utility.getHeapTuple(new int[] { i, -i }),
+							new ArrayList<Page>());
+				Assert.assertEquals(100, s.totalTuples());
+			}
+		} finally {
+			done.set(true);
+			planner.join();
+		}
+		Assert.assertNull(error.get());
+	}
+
+	/**
+	 * Verify that once enough of a table has changed, its statistics are
+	 * rebuilt in the background and replaced in the stats map.
+	 */
+	@Test public void staleStatsTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, 32, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, s);
+
+		Database.resetBufferPool(1000);
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < TableStats.MIN_STALE_MODIFICATIONS; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+		Assert.assertTrue(s.isRefreshing());
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(name) == s && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		TableStats fresh = TableStats.getTableStats(name);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(2000, fresh.totalTuples());
+		Assert.assertFalse(fresh.isRefreshing());
+	}
 }
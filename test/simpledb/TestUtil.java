@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 
+import simpledb.systemtest.SystemTestUtil;
+
 import static org.junit.Assert.*;
 
 public class TestUtil {
@@ -371,6 +373,22 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Create a table of two random columns with values below 50, add it to
+     * the catalog and give it fresh statistics, for tests that run SQL.
+     * @param name the name of the table
+     * @param rows the number of rows
+     * @param colPrefix the prefix of the column names
+     * @param tuples filled with the rows of the table
+     */
+    public static HeapFile createTableWithStats(String name, int rows, String colPrefix,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, 50, null, tuples, colPrefix);
+        Database.getCatalog().addTable(f, name);
+        TableStats.setTableStats(name, new TableStats(f.getId(), 1));
+        return f;
+    }
+
     /** JUnit fixture that creates a heap file and cleans it up afterward. */
     public static abstract class CreateHeapFile {
         protected CreateHeapFile() {
@@ -0,0 +1,217 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, tuples);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static ArrayList<ArrayList<Integer>> drainBatches(BatchOpIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.size() <= TupleBatch.DEFAULT_CAPACITY);
+            for (int i = 0; i < batch.numSelected(); i++)
+                rows.add(SystemTestUtil.tupleToList(batch.getTuple(batch.selectedRow(i))));
+        }
+        return rows;
+    }
+
+    /**
+     * Unit test for SeqScan.nextBatch()
+     */
+    @Test
+    public void scanBatches() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        scan.open();
+        assertEquals(tuples, drainBatches(scan));
+        scan.close();
+    }
+
+    /**
+     * Unit test for SeqScan.nextBatch() with pushed-down predicates and
+     * projection, against the row path
+     */
+    @Test
+    public void pushdownBatches() throws Exception {
+        Predicate[] preds = new Predicate[] { new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(20)),
+            new Predicate(1, Predicate.Op.LESS_THAN, new IntField(40)) };
+        int[] fields = new int[] { 2, 1 };
+
+        SeqScan rows = new SeqScan(tid, hf.getId(), "t", preds, fields);
+        rows.open();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        while (rows.hasNext())
+            expected.add(SystemTestUtil.tupleToList(rows.next()));
+        rows.close();
+        assertFalse(expected.isEmpty());
+
+        SeqScan batches = new SeqScan(tid, hf.getId(), "t", preds, fields);
+        batches.open();
+        assertEquals(expected, drainBatches(batches));
+        batches.rewind();
+        assertEquals(expected, drainBatches(batches));
+        batches.close();
+    }
+
+    /**
+     * Unit test for SeqScan.nextBatch() over a string column, both from
+     * tuples inserted in memory and from page bytes read back from disk
+     */
+    @Test
+    public void stringBatches() throws Exception {
+        File file = File.createTempFile("strings", ".dat");
+        file.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        HeapFile strings = new HeapFile(file, td);
+        Database.getCatalog().addTable(strings, "strings");
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("value" + (i % 7), Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, strings.getId(), t);
+        }
+        Predicate pred = new Predicate(1, Predicate.Op.EQUALS, new StringField("value3", Type.STRING_LEN));
+
+        for (int pass = 0; pass < 2; pass++) {
+            SeqScan scan = new SeqScan(tid, strings.getId(), "s", new Predicate[] { pred }, null);
+            scan.open();
+            int n = 0;
+            TupleBatch batch;
+            while ((batch = scan.nextBatch()) != null) {
+                for (int i = 0; i < batch.numSelected(); i++) {
+                    int row = batch.selectedRow(i);
+                    assertEquals("value3", batch.getString(1, row));
+                    assertEquals(3, batch.getInt(0, row) % 7);
+                    n++;
+                }
+                assertEquals(1, batch.getDictionary(1).size());
+            }
+            scan.close();
+            assertEquals(71, n);
+
+            // read the pages back from their bytes
+            Database.getBufferPool().flushAllPages();
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        }
+    }
+
+    /**
+     * Only operators reading batches from a source that builds them without
+     * tuples are columnar, so Aggregate reads other children row by row
+     */
+    @Test
+    public void columnarSources() throws Exception {
+        Predicate pred = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30));
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        assertTrue(scan.isColumnar());
+        assertTrue(new Filter(pred, scan).isColumnar());
+
+        OpIterator join = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+            new SeqScan(tid, hf.getId()), new SeqScan(tid, hf.getId()));
+        assertFalse(new Filter(pred, join).isColumnar());
+        assertFalse(new Filter(pred, TestUtil.createTupleList(1, new int[] { 1 })).isColumnar());
+        assertFalse(new Aggregate(scan, 1, 0, Aggregator.Op.SUM).isColumnar());
+    }
+
+    /**
+     * Unit test for Filter.nextBatch() and Project.nextBatch() against the
+     * row path
+     */
+    @Test
+    public void filterProjectBatches() throws Exception {
+        ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        Predicate pred = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30));
+
+        Project rows = new Project(fields, types, new Filter(pred, new SeqScan(tid, hf.getId())));
+        rows.open();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        while (rows.hasNext())
+            expected.add(SystemTestUtil.tupleToList(rows.next()));
+        rows.close();
+        assertFalse(expected.isEmpty());
+
+        Project batches = new Project(fields, types, new Filter(pred, new SeqScan(tid, hf.getId())));
+        batches.open();
+        assertEquals(expected, drainBatches(batches));
+        batches.close();
+    }
+
+    /**
+     * Unit test for Filter.nextBatch() over a child that only has the row
+     * interface, including string columns
+     */
+    @Test
+    public void rowAdapter() throws Exception {
+        OpIterator child = TestUtil.createTupleList(2,
+            new Object[] { 1, "a", 2, "b", 3, "a", 4, "c", 5, "a" });
+        Filter op = new Filter(new Predicate(1, Predicate.Op.EQUALS,
+            new StringField("a", Type.STRING_LEN)), child);
+        op.open();
+        TupleBatch batch = op.nextBatch();
+        assertEquals(5, batch.size());
+        assertEquals(3, batch.numSelected());
+        assertEquals(3, batch.getInt(0, batch.selectedRow(1)));
+        assertEquals("a", batch.getString(1, batch.selectedRow(2)));
+        assertNull(op.nextBatch());
+    }
+
+    /**
+     * Unit test for Aggregate consuming its child through nextBatch()
+     */
+    @Test
+    public void aggregateBatches() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, hf.getId()), 1, 0, Aggregator.Op.SUM);
+        Aggregate expected = new Aggregate(TestUtil.createTupleList(3, flatten(tuples)), 1, 0, Aggregator.Op.SUM);
+        agg.open();
+        expected.open();
+        TestUtil.matchAllTuples(expected, agg);
+        agg.rewind();
+        TupleBatch batch = agg.nextBatch();
+        assertEquals(batch.size(), batch.numSelected());
+        assertNull(agg.nextBatch());
+    }
+
+    private static int[] flatten(ArrayList<ArrayList<Integer>> rows) {
+        int[] data = new int[rows.size() * 3];
+        int i = 0;
+        for (ArrayList<Integer> row : rows)
+            for (int v : row)
+                data[i++] = v;
+        return data;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}